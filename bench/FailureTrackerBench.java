@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010-2015 by David A. Parker <parker.david.a@gmail.com>
+ * 
+ * This file is part of CheckValve, an HLDS/SRCDS query app for Android.
+ * 
+ * CheckValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ * 
+ * CheckValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the CheckValve source code.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * PROGRAM:
+ * FailureTrackerBench.java
+ *
+ * DESCRIPTION:
+ * Simulates a scan from 1,000,000 distinct IPv4 and IPv6 addresses, each
+ * failing once, against the failed connection tracker.  A few repeat
+ * offenders are mixed into the scan.  Reports the heap in use before,
+ * during and after the scan, and checks that each repeat offender still
+ * reaches autoBanThreshold within autoBanTimeLimit while the scan evicts
+ * everything around it.  An offender can still lose its counter now and
+ * then when several scanners land in its set between two of its failures,
+ * which only delays its ban.  Exits with status 1 if the heap grows, if an
+ * offender takes longer than autoBanTimeLimit to be banned, or if fewer
+ * than 95% of the possible bans are made.
+ *
+ * Build and run from the top of the source tree:
+ *
+ *     javac -d /tmp/cvcr src/*.java bench/FailureTrackerBench.java
+ *     java -cp /tmp/cvcr com.dparker.apps.checkvalve.FailureTrackerBench
+ */
+
+package com.dparker.apps.checkvalve;
+
+public class FailureTrackerBench
+{
+    private static final int SOURCES = 1000000;
+    private static final int TRACKER_SIZE = 8192;   // Default autoBanTrackerSize
+    private static final int THRESHOLD = 5;         // Default autoBanThreshold
+    private static final long TIME_LIMIT = 60000;   // autoBanTimeLimit of 60 seconds
+    private static final int SOURCES_PER_MS = 10;   // The scan takes 100 seconds of simulated time
+    private static final int OFFENDERS = 4;
+    private static final int OFFENDER_EVERY = 500;  // Each offender fails every 50 ms
+    private static final long HEAP_SLACK = 1024*1024;
+
+    public static void main(String args[])
+    {
+        CheckValveConsoleRelay.autoBanThreshold = THRESHOLD;
+        CheckValveConsoleRelay.autoBanTimeLimit = TIME_LIMIT;
+
+        CheckValveConsoleRelay.FailureTracker tracker = new CheckValveConsoleRelay.FailureTracker(TRACKER_SIZE);
+        long start = 1000000000000L;
+        long[] firstFailure = new long[OFFENDERS];
+        int[] bans = new int[OFFENDERS];
+        long slowest = 0;
+        boolean failed = false;
+
+        long before = usedHeap();
+        System.out.println( "Heap in use before the scan: " + before + " bytes" );
+
+        for( int i = 0; i < SOURCES; i++ )
+        {
+            long now = start + i/SOURCES_PER_MS;
+
+            // Alternate IPv4 (IPv4-mapped) and IPv6 scanners
+            if( (i & 1) == 0 )
+                tracker.recordFailure(0, 0x0000FFFF00000000L | (0x0A000000L + i), now);
+            else
+                tracker.recordFailure(0x20010DB800000000L | (i >>> 16), ((long)i << 32) | 0x1234, now);
+
+            if( i % OFFENDER_EVERY < OFFENDERS )
+            {
+                int o = i % OFFENDER_EVERY;
+                long h = (o % 2 == 0)?0:0x20010DB8FFFF0000L;
+                long l = (o % 2 == 0)?(0x0000FFFFC0A80000L | o):(0xBADL + o);
+
+                if( firstFailure[o] == 0 )
+                    firstFailure[o] = now;
+
+                if( tracker.recordFailure(h, l, now) >= THRESHOLD )
+                {
+                    slowest = Math.max(slowest, now - firstFailure[o]);
+                    firstFailure[o] = 0;
+                    bans[o]++;
+                }
+            }
+
+            if( i > 0 && i % (SOURCES/4) == 0 )
+                System.out.println( "Heap in use after " + i + " sources: " + usedHeap() + " bytes (tracked=" + tracker.size() + ", evictions=" + tracker.evictions() + ")" );
+        }
+
+        long after = usedHeap();
+        int expected = (SOURCES/OFFENDER_EVERY)/THRESHOLD;
+
+        System.out.println( "Heap in use after the scan: " + after + " bytes (tracked=" + tracker.size() + ", capacity=" + tracker.capacity() + ", evictions=" + tracker.evictions() + ")" );
+
+        for( int o = 0; o < OFFENDERS; o++ )
+        {
+            System.out.println( "Repeat offender " + o + ((o % 2 == 0)?" (IPv4)":" (IPv6)") + ": banned " + bans[o] + " times, expected " + expected );
+
+            if( bans[o] < expected*95/100 )
+                failed = true;
+        }
+
+        System.out.println( "Longest time from first failure to ban: " + slowest + " ms (limit " + TIME_LIMIT + " ms)" );
+
+        if( slowest > TIME_LIMIT )
+            failed = true;
+
+        if( after - before > HEAP_SLACK )
+        {
+            System.out.println( "FAILED: the heap grew by " + (after - before) + " bytes" );
+            failed = true;
+        }
+
+        System.out.println( failed?"FAILED":"OK" );
+        System.exit(failed?1:0);
+    }
+
+    private static long usedHeap()
+    {
+        Runtime rt = Runtime.getRuntime();
+
+        for( int i = 0; i < 3; i++ )
+        {
+            System.gc();
+
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch( InterruptedException ie )
+            {
+                // Carry on
+            }
+        }
+
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2015 by David A. Parker <parker.david.a@gmail.com>
+ * 
+ * This file is part of CheckValve, an HLDS/SRCDS query app for Android.
+ * 
+ * CheckValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ * 
+ * CheckValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the CheckValve source code.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * PROGRAM:
+ * TimestampCacheBench.java
+ *
+ * DESCRIPTION:
+ * Compares the logger's cached timestamp prefix against formatting every
+ * line with one SimpleDateFormat, as the logger used to.
+ *
+ * Build and run from the top of the source tree:
+ *
+ *     javac -d /tmp/cvcr src/*.java bench/TimestampCacheBench.java
+ *     java -cp /tmp/cvcr com.dparker.apps.checkvalve.TimestampCacheBench
+ */
+
+package com.dparker.apps.checkvalve;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+
+public class TimestampCacheBench
+{
+    // Same pattern as the logger's TIMESTAMP_FORMAT
+    private static final String FORMAT = "[EEE MMM dd HH:mm:ss yyyy]: ";
+    private static final int LINES = 2000000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String args[])
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(FORMAT);
+        CheckValveConsoleRelay.TimestampCache cache = new CheckValveConsoleRelay.TimestampCache(FORMAT);
+        ByteBuffer buf = ByteBuffer.allocateDirect(64*1024);
+        long start = System.currentTimeMillis();
+        long t, formatNanos, cacheNanos;
+
+        // One line per millisecond of simulated log time, so the cache is
+        // rebuilt once per thousand lines
+        for( int round = 0; round < ROUNDS; round++ )
+        {
+            t = System.nanoTime();
+
+            for( int i = 0; i < LINES; i++ )
+            {
+                if( buf.remaining() < 64 ) buf.clear();
+                buf.put(sdf.format(start + i).getBytes());
+            }
+
+            formatNanos = System.nanoTime() - t;
+            buf.clear();
+            t = System.nanoTime();
+
+            for( int i = 0; i < LINES; i++ )
+            {
+                if( buf.remaining() < 64 ) buf.clear();
+                cache.appendTo(buf, start + i);
+            }
+
+            cacheNanos = System.nanoTime() - t;
+            buf.clear();
+
+            System.out.println( "Round " + (round+1) + ": SimpleDateFormat per line = " + (formatNanos/LINES) + " ns, cached prefix = " + (cacheNanos/LINES) + " ns" );
+        }
+    }
+}
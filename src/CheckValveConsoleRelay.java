@@ -37,6 +37,37 @@
  * - Version 1.1.0
  * - Added control listener
  * - Fixed default ports not matching config file
+ *
+ * October 18, 2026
+ * - Version 1.2.0
+ * - Added optional TLS client listener with session resumption
+ * - Replaced the ban map with a concurrent table expired by a timer wheel
+ * - Added CIDR allow/deny access list with hot reload
+ * - Track failed connection attempts in a fixed-size table
+ * - Save bans to a snapshot file and restore them at startup
+ * - Export bans as an nftables or ipset ruleset with an optional hook command
+ * - Added per-IP and per-game-server connection caps
+ * - Client heartbeats are scheduled per connection and skipped for active clients
+ * - Messages are queued for each client's own writer thread
+ * - Added heartbeat acknowledgements with per-client RTT and adaptive dead-peer timeouts
+ * - Client sockets are watched by a selector so disconnects are noticed at once
+ * - Added TCP keepalive settings for client connections
+ * - Log lines are written in batches by a background thread
+ * - Log timestamps are cached once per second instead of formatted per line
+ * - Log files are rotated by size or time without losing lines, then compressed
+ * - Added an in-memory flight recorder of debug events which can be dumped through the control port
+ * - Repeated client rejections are rate limited by subnet and summarized in the log
+ * - Shared counters are striped so they no longer lose updates under load
+ * - Added latency histograms for each stage from receiving a message to writing it to a client
+ * - Added an optional Prometheus metrics endpoint on localhost
+ * - Added per-game-server and per-client traffic counters, returned by a new control request
+ * - Added version 2 of the control protocol with TLV fields and a stats subscription
+ * - Added JDK Flight Recorder events for slow datagrams, client writes, handshakes and bans
+ * - Added a watchdog which reports stalled pipeline stages with a thread dump and evicts stuck clients
+ * - Keep a per-second and per-minute history of the main counters, returned by a new control request
+ * - Track the heaviest datagram sources in a fixed-size Space-Saving sketch
+ * - Report GC, buffer pool, thread and CPU figures from the platform MXBeans
+ * - Publish the counters and gauges in a memory-mapped file for external monitors
  */
 
 package com.dparker.apps.checkvalve;
@@ -53,6 +84,34 @@ import java.nio.ByteOrder;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
 
 public class CheckValveConsoleRelay
 {
@@ -70,9 +129,21 @@ public class CheckValveConsoleRelay
     final static byte PTYPE_CONNECTION_FAILURE = (byte) 0x03;
     final static byte PTYPE_CONNECTION_SUCCESS = (byte) 0x04;
     final static byte PTYPE_MESSAGE_DATA = (byte) 0x05;
+    final static byte PTYPE_HEARTBEAT_ACK = (byte) 0x06;
     final static long START_TIME = System.currentTimeMillis();
-    final static String PROGRAM_VERSION = "1.1.0";
+    final static String PROGRAM_VERSION = "1.2.0";
     final static String IDENTITY_STRING = "CheckValve Console Relay " + PROGRAM_VERSION;
+    final static long BAN_CHECK_INTERVAL = 1000;
+    final static long HEARTBEAT_TICK = 100;
+    final static long HEARTBEAT_ACK_MIN_TIMEOUT = 500;
+    final static int HEARTBEAT_ACK_RETRIES = 2;
+    final static int CONNECTION_QUEUE_SIZE = 256;
+    final static long FLIGHT_RECORDER_DUMP_INTERVAL = 60000;
+    final static long CTL_SUBSCRIPTION_LEASE = 30000;
+    final static int CTL_PUBLISH_TICK = 100;
+    final static int MAX_STATS_SUBSCRIPTIONS = 8;
+    final static long STALL_CHECK_INTERVAL = 1000;
+    final static long STALL_DUMP_INTERVAL = 60000;
 
     //
     // Class global variables
@@ -81,24 +152,62 @@ public class CheckValveConsoleRelay
     static int messageListenPort = 0;
     static int clientListenPort = 0;
     static int controlListenPort = 0;
-    static int numClients = 0;
+    static int tlsListenPort = 0;
     static int maxClients = 0;
     static int logStatsEnabled = 0;
     static int logRotateEnabled = 0;
     static int logRotateKeepFiles = 0;
+    static int logRotateCompress = 0;
+    static int flightRecorderSize = 0;
+    static int flightRecorderErrorDump = 0;
+    static int logSuppressBurst = 0;
+    static int metricsListenPort = 0;
+    static int heavyHitterSize = 0;
+    static int heavyHitterReport = 0;
     static int autoBanEnabled = 0;
     static int autoBanThreshold = 0;
-    static int acceptedConnections = 0;
-    static int rejectedConnections = 0;
+    static int autoBanTrackerSize = 0;
+    static int maxClientsPerIp = 0;
+    static int maxClientsPerServer = 0;
+    static int ipCapRejections = 0;
+    static int serverCapRejections = 0;
+    static int heartbeatAckEnabled = 0;
+    static int deadPeerRemovals = 0;
+    static int pipelineStalls = 0;
+    static int stallEvict = 0;
+    static int tcpKeepAlive = 0;
+    static int tcpKeepAliveIdle = 0;
+    static int tcpKeepAliveInterval = 0;
+    static int tcpKeepAliveCount = 0;
+    static int logQueueSize = 0;
+    static int logFlushSize = 0;
     static int debugLevel = 0;
+    static int tlsEnabled = 0;
+    static int tlsSessionCacheSize = 0;
+    static int tlsSessionTimeout = 0;
 
     static long clientCheckInterval = 0;
     static long logStatsInterval = 0;
     static long logRotateInterval = 0;
+    static long logRotateSize = 0;
+    static long logRotateKeepBytes = 0;
     static long autoBanTimeLimit = 0;
     static long autoBanDuration = 0;
-    static long totalPackets = 0;
-    static long relayedPackets = 0;
+    static long accessListReloadInterval = 0;
+    static long banSnapshotInterval = 0;
+    static long banSnapshotVersion = -1;
+    static long firewallHookTimeout = 0;
+    static long heartbeatAckInterval = 0;
+    static long heartbeatAckMaxTimeout = 0;
+    static long logFlushInterval = 0;
+    static long logSuppressInterval = 0;
+    static long stallTimeout = 0;
+    static long sharedCountersInterval = 0;
+    static long tlsFullHandshakes = 0;
+    static long tlsResumedHandshakes = 0;
+    static long tlsFailedHandshakes = 0;
+    static long tlsFullHandshakeCpu = 0;
+    static long tlsResumedHandshakeCpu = 0;
 
     static boolean newMessage = false;
     static boolean shuttingDown = false;
@@ -108,14 +217,67 @@ public class CheckValveConsoleRelay
     static String logFile = new String();
     static String password = new String();
     static String configFile = new String();
+    static String tlsKeyStore = new String();
+    static String tlsKeyStorePassword = new String();
+    static String tlsKeyStoreType = new String();
+    static String accessListFile = new String();
+    static String banSnapshotFile = new String();
+    static String firewallFile = new String();
+    static String firewallFormat = new String();
+    static String firewallTable = new String();
+    static String firewallHook = new String();
+    static String flightRecorderFile = new String();
+    static String stallDumpFile = new String();
+    static String sharedCountersFile = new String();
     static String[] messageInfo = new String[2];
 
+    static ConnectionLimits connectionLimits = new ConnectionLimits();
+    static ClientReader clientReader;
+    static FirewallSync firewallSync;
+    static boolean printFirewall = false;
     static Logger logger = new Logger();
-    static Map<String, Long> bannedClients = new HashMap<String, Long>();
+    static FlightRecorder flightRecorder = new FlightRecorder(0);
+    static LogLimiter logLimiter = new LogLimiter();
+    static MetricsServer metricsServer;
+    static SharedCounters sharedCounters;
+    static Thread sharedCountersThread;
+    static Stage receiveStage = new Stage("MessageListener");
+    static Stage fanOutStage = new Stage("SendConsoleMessage");
+    static Stage logStage = new Stage("LogWriter");
+    static ServerTraffic serverTraffic = new ServerTraffic();
+    static StatsHistory statsHistory = new StatsHistory();
+    static HeavyHitters heavyHitters = new HeavyHitters(0);
+    static JvmHealth jvmHealth = new JvmHealth();
+    static Map<Long,Long> closedWriterCpu = new java.util.concurrent.ConcurrentHashMap<Long,Long>();
+    static BanTable bannedClients = new BanTable();
+    static TimerWheel<BanEntry> banWheel = new TimerWheel<BanEntry>(BAN_CHECK_INTERVAL, 1024);
+    static TimerWheel<Heartbeat> heartbeatWheel = new TimerWheel<Heartbeat>(HEARTBEAT_TICK, 1024);
+    static volatile AccessList accessList;
+    static FailureTracker failureTracker;
     static ServerSocket clientListenerSocket;
+    static ServerSocket tlsListenerSocket;
+    static SSLContext tlsContext;
     static DatagramSocket messageListenerSocket;
     static Connection[] connections;
     static ByteBuffer messageData = ByteBuffer.allocate(4096);
+    static long messageReceived = 0;
+    static long messageReady = 0;
+    static int messageServer = -1;
+
+    // Counters updated from several threads
+    static LongAdder numClients = new LongAdder();
+    static LongAdder acceptedConnections = new LongAdder();
+    static LongAdder rejectedConnections = new LongAdder();
+    static LongAdder totalPackets = new LongAdder();
+    static LongAdder relayedPackets = new LongAdder();
+    static LongAdder queuedMessages = new LongAdder();
+    static LongAdder droppedMessages = new LongAdder();
+
+    // Latency of each stage between receiving a log message and writing it to a client
+    static LatencyHistogram receiveLatency = new LatencyHistogram("receive");
+    static LatencyHistogram deliverLatency = new LatencyHistogram("deliver");
+    static LatencyHistogram totalLatency = new LatencyHistogram("total");
+    static LatencyHistogram[] latencyHistograms = { receiveLatency, deliverLatency, totalLatency };
 
     public static void main(String args[]) throws InterruptedException
     {
@@ -147,6 +309,10 @@ public class CheckValveConsoleRelay
                         System.exit(1);
                     }
                 }
+                else if( opt.equals("-f") || opt.equals("--firewall") )
+                {
+                    printFirewall = true;
+                }
                 else if( opt.equals("-h") || opt.equals("--help") )
                 {
                     usage();
@@ -172,7 +338,45 @@ public class CheckValveConsoleRelay
         String osArch = System.getProperty("os.arch");
 
         parseConfig();
+
+        // Print the ruleset for the saved bans without starting the relay
+        if( printFirewall )
+        {
+            try
+            {
+                Writer w = new OutputStreamWriter(System.out);
+                FirewallSync.writeRuleset(w, readBanSnapshot(new File(banSnapshotFile)), System.currentTimeMillis());
+                w.flush();
+                System.exit(0);
+            }
+            catch( IOException ioe )
+            {
+                System.err.println( "[ERROR] Unable to read bans from " + banSnapshotFile + "." );
+                System.err.println( "[ERROR] " + ioe.toString() );
+                System.exit(1);
+            }
+        }
+
         connections = new Connection[maxClients];
+        failureTracker = new FailureTracker(autoBanTrackerSize);
+        flightRecorder = new FlightRecorder(flightRecorderSize);
+        heavyHitters = new HeavyHitters(heavyHitterSize);
+
+        // Set up the TLS context before any listener is started
+        if( tlsEnabled == 1 )
+        {
+            try
+            {
+                initTls();
+            }
+            catch( Exception e )
+            {
+                System.err.println();
+                System.err.println( "[ERROR] Unable to initialize TLS using key store " + tlsKeyStore + "." );
+                System.err.println( "[ERROR] " + e.toString() );
+                System.exit(1);
+            }
+        }
 
         if( logFile.length() > 0 )
         {
@@ -212,6 +416,16 @@ public class CheckValveConsoleRelay
         logger.writeln( "[STARTUP] Message Listener Address = " + messageListenAddress );
         logger.writeln( "[STARTUP] Message Listener Port = " + messageListenPort );
 
+        if( tlsEnabled == 1 )
+        {
+            logger.writeln( "[STARTUP] TLS Client Listener Port = " + tlsListenPort );
+            logger.writeln( "[STARTUP] TLS session cache size = " + tlsSessionCacheSize + ", session timeout = " + tlsSessionTimeout + " seconds." );
+        }
+        else
+        {
+            logger.writeln( "[STARTUP] The TLS client listener is NOT enabled." );
+        }
+
         if( password.length() > 0 )
             logger.writeln( "[STARTUP] A password is required for client connections." );
         else
@@ -223,10 +437,15 @@ public class CheckValveConsoleRelay
             logger.writeln( "[STARTUP] Statistics logging is NOT enabled." );
 
         if( logRotateEnabled == 1 )
-            logger.writeln( "[STARTUP] Log rotation is enabled." );
+            logger.writeln( "[STARTUP] Log rotation is enabled (every " + ((logRotateInterval > 0)?((logRotateInterval/3600000) + " hours"):"-") + ", at " + ((logRotateSize > 0)?((logRotateSize/1048576) + " MB"):"-") + ((logRotateCompress == 1)?", compressed).":")."));
         else
             logger.writeln( "[STARTUP] Log rotation is NOT enabled." );
 
+        if( flightRecorder.isEnabled() )
+            logger.writeln( "[STARTUP] Flight recorder is enabled (" + flightRecorderSize + " events)." );
+        else
+            logger.writeln( "[STARTUP] Flight recorder is NOT enabled." );
+
         if( autoBanEnabled == 1 )
             logger.writeln( "[STARTUP] Auto-ban is enabled." );
         else
@@ -238,8 +457,55 @@ public class CheckValveConsoleRelay
 
         logger.writeln( "[STARTUP] Initialized " + maxClients + " client slots." );
 
+        if( maxClientsPerIp > 0 )
+            logger.writeln( "[STARTUP] Clients are limited to " + maxClientsPerIp + " connections per IP address." );
+
+        if( maxClientsPerServer > 0 )
+            logger.writeln( "[STARTUP] Clients are limited to " + maxClientsPerServer + " connections per game server." );
+
+        // Keep the kernel firewall in step with the ban table
+        if( autoBanEnabled == 1 && (firewallFile.length() > 0 || firewallHook.length() > 0) )
+        {
+            firewallSync = new FirewallSync();
+            logger.writeln( "[STARTUP] Exporting bans as " + firewallFormat + " rules" + ((firewallFile.length() > 0)?(" to " + firewallFile):"") + ((firewallHook.length() > 0)?(" via " + firewallHook):"") + "." );
+        }
+
+        // Restore the bans which were in effect when the relay last stopped
+        if( autoBanEnabled == 1 && banSnapshotFile.length() > 0 )
+            loadBanSnapshot();
+
+        // Load the access list before any client can connect
+        if( accessListFile.length() > 0 )
+        {
+            accessList = AccessList.load(new File(accessListFile));
+
+            if( accessList != null )
+                logger.writeln( "[STARTUP] Loaded " + accessList.size() + " access list rules from " + accessListFile + "." );
+            else
+                logger.writeln( "[STARTUP] [WARNING] Unable to read access list " + accessListFile + ".  All clients are allowed until it can be read." );
+        }
+        else
+        {
+            logger.writeln( "[STARTUP] The access list is NOT enabled." );
+        }
+
+        // Client sockets are watched for input and disconnects by a single selector
+        try
+        {
+            clientReader = new ClientReader();
+        }
+        catch( IOException ioe )
+        {
+            logger.writeln( "[ERROR] Unable to open a selector for client connections." );
+            System.err.println( "[ERROR] Unable to open a selector for client connections." );
+            logger.writeln( "[ERROR] " + ioe.toString() );
+            System.err.println( "[ERROR] " + ioe.toString() );
+            System.exit(1);
+        }
+
         // Create threads
-        final Thread tcpListenerThread = new Thread(new ClientListener());
+        final Thread tcpListenerThread = new Thread(new ClientListener(false));
+        final Thread tlsListenerThread = new Thread(new ClientListener(true));
         final Thread udpListenerThread = new Thread(new MessageListener());
         final Thread ctlListenerThread = new Thread(new ControlListener());
         final Thread sendConsoleMessageThread = new Thread(new SendConsoleMessage());
@@ -247,9 +513,15 @@ public class CheckValveConsoleRelay
         final Thread checkBansThread = new Thread(new CheckBans());
         final Thread logStatsThread = new Thread(new LogStats());
         final Thread logRotateThread = new Thread(new LogRotate());
+        final Thread accessListThread = new Thread(new AccessListReload());
+        final Thread firewallSyncThread = new Thread(firewallSync);
+        final Thread clientReaderThread = new Thread(clientReader);
+        final Thread watchdogThread = new Thread(new Watchdog());
+        final Thread statsHistoryThread = new Thread(statsHistory);
 
         // Set thread names
         tcpListenerThread.setName("ClientListener");
+        tlsListenerThread.setName("TlsClientListener");
         udpListenerThread.setName("MessageListener");
         ctlListenerThread.setName("ControlListener");
         sendConsoleMessageThread.setName("SendConsoleMessage");
@@ -257,26 +529,104 @@ public class CheckValveConsoleRelay
         checkBansThread.setName("CheckBans");
         logStatsThread.setName("LogStats");
         logRotateThread.setName("LogRotate");
+        accessListThread.setName("AccessListReload");
+        firewallSyncThread.setName("FirewallSync");
+        clientReaderThread.setName("ClientReader");
+        watchdogThread.setName("Watchdog");
+        statsHistoryThread.setName("StatsHistory");
+
+        // Threads whose CPU time is reported
+        jvmHealth.watch(tcpListenerThread);
+        jvmHealth.watch(tlsListenerThread);
+        jvmHealth.watch(udpListenerThread);
+        jvmHealth.watch(ctlListenerThread);
+        jvmHealth.watch(sendConsoleMessageThread);
+        jvmHealth.watch(checkConnectionThread);
+        jvmHealth.watch(checkBansThread);
+        jvmHealth.watch(logStatsThread);
+        jvmHealth.watch(logRotateThread);
+        jvmHealth.watch(accessListThread);
+        jvmHealth.watch(firewallSyncThread);
+        jvmHealth.watch(clientReaderThread);
+        jvmHealth.watch(watchdogThread);
+        jvmHealth.watch(statsHistoryThread);
+        jvmHealth.watch(logger.getWriterThread());
 
         // Start threads
+        clientReaderThread.start();
         tcpListenerThread.start();
         udpListenerThread.start();
         ctlListenerThread.start();
         sendConsoleMessageThread.start();
         checkConnectionThread.start();
+        statsHistoryThread.start();
+
+        // Only start the TLS listener if TLS is enabled
+        if( tlsEnabled == 1 )
+            tlsListenerThread.start();
 
-        // Only start the CheckBans thread if bans are enabled and they will expire
-        if( autoBanEnabled > 0 && autoBanDuration > 0 )
+        // Only start the CheckBans thread if bans are enabled and they will expire or be saved
+        if( autoBanEnabled > 0 && (autoBanDuration > 0 || banSnapshotFile.length() > 0) )
             checkBansThread.start();
 
         // Only start the LogStats thread if stats logging is enabled
         if( logStatsEnabled == 1 )
             logStatsThread.start();
 
-        // Only start the LogRotate thread if stats logging is enabled
-        if( logRotateEnabled == 1 )
+        // Only start the LogRotate thread if log rotation is enabled
+        if( logRotateEnabled == 1 && logFile.length() > 0 )
             logRotateThread.start();
 
+        // Only start the AccessListReload thread if there is an access list to watch
+        if( accessListFile.length() > 0 && accessListReloadInterval > 0 )
+            accessListThread.start();
+
+        // Only start the FirewallSync thread if bans are being exported
+        if( firewallSync != null )
+            firewallSyncThread.start();
+
+        // Only start the Watchdog thread if stalls are being looked for
+        if( stallTimeout > 0 )
+            watchdogThread.start();
+
+        // Only publish the shared counters if a file is set
+        if( sharedCountersFile.length() > 0 )
+        {
+            try
+            {
+                sharedCounters = new SharedCounters(new File(sharedCountersFile));
+                sharedCountersThread = new Thread(sharedCounters);
+                sharedCountersThread.setName("SharedCounters");
+                sharedCountersThread.setDaemon(true);
+                jvmHealth.watch(sharedCountersThread);
+                sharedCountersThread.start();
+                logger.writeln( "Publishing counters to " + sharedCountersFile + " every " + sharedCountersInterval + " ms." );
+            }
+            catch( IOException ioe )
+            {
+                sharedCounters = null;
+                logger.writeln( "[ERROR] Unable to create the shared counters file " + sharedCountersFile + "." );
+                logger.writeln( "[ERROR] " + ioe.toString() );
+            }
+        }
+
+        // Only start the metrics server if a port is set
+        if( metricsListenPort > 0 )
+        {
+            try
+            {
+                metricsServer = new MetricsServer();
+                metricsServer.start();
+                logger.writeln( "Metrics server started; serving metrics on http://127.0.0.1:" + metricsListenPort + "/metrics." );
+            }
+            catch( IOException ioe )
+            {
+                metricsServer = null;
+                logger.writeln( "[ERROR] Unable to start the metrics server on 127.0.0.1:" + metricsListenPort + "." );
+                logger.writeln( "[ERROR] " + ioe.toString() );
+            }
+        }
+
         // Add a shutdown hook to clean up before shutting down
         Runtime.getRuntime().addShutdownHook(new Thread()
         {
@@ -317,6 +667,7 @@ public class CheckValveConsoleRelay
                     // Close the listen sockets
                     logger.writeln( "[SHUTDOWN] Closing all sockets." );
                     if( clientListenerSocket != null ) { clientListenerSocket.close(); }
+                    if( tlsListenerSocket != null ) { tlsListenerSocket.close(); }
                     if( messageListenerSocket != null ) { messageListenerSocket.close(); }
 
                     // Stop all threads
@@ -325,6 +676,11 @@ public class CheckValveConsoleRelay
                     udpListenerThread.interrupt();
                     sendConsoleMessageThread.interrupt();
                     checkConnectionThread.interrupt();
+                    clientReaderThread.interrupt();
+                    statsHistoryThread.interrupt();
+
+                    if( tlsListenerThread.isAlive() )
+                        tlsListenerThread.interrupt();
 
                     if( checkBansThread.isAlive() )
                         checkBansThread.interrupt();
@@ -335,6 +691,32 @@ public class CheckValveConsoleRelay
                     if( logRotateThread.isAlive() )
                         logRotateThread.interrupt();
 
+                    if( accessListThread.isAlive() )
+                        accessListThread.interrupt();
+
+                    if( firewallSyncThread.isAlive() )
+                        firewallSyncThread.interrupt();
+
+                    if( watchdogThread.isAlive() )
+                        watchdogThread.interrupt();
+
+                    if( metricsServer != null )
+                        metricsServer.stop();
+
+                    // Tell readers the values are final
+                    if( sharedCounters != null )
+                    {
+                        sharedCountersThread.interrupt();
+                        sharedCounters.close();
+                    }
+
+                    // Save the bans for the next start
+                    if( autoBanEnabled == 1 && banSnapshotFile.length() > 0 )
+                    {
+                        logger.writeln( "[SHUTDOWN] Saving " + bannedClients.size() + " bans to " + banSnapshotFile + "." );
+                        saveBanSnapshot();
+                    }
+
                     logger.writeln( "[SHUTDOWN] Shutting down the CheckValve Console Relay." );
                     logger.close();
 
@@ -367,10 +749,11 @@ public class CheckValveConsoleRelay
     private static void usage()
     {
         System.out.println();
-        System.out.println("Usage: java -jar checkvalveconsolerelay.jar [-c <file>] [-h]");
+        System.out.println("Usage: java -jar checkvalveconsolerelay.jar [-c <file>] [-f] [-h]");
         System.out.println();
         System.out.println("Command line options:");
         System.out.println("    -c|--config <file>  Get configuration from <file> instead of the default (checkvalveconsolerelay.properties)");
+        System.out.println("    -f|--firewall       Print the firewall ruleset for the bans in the ban snapshot file and exit.");
         System.out.println("    -h|--help           Show this help and exit.");
         System.out.println();
     }
@@ -380,6 +763,7 @@ public class CheckValveConsoleRelay
         // Defaults
         final String DEFAULT_AUTOBAN_ENABLED = "1";
         final String DEFAULT_AUTOBAN_THRESHOLD = "5";
+        final String DEFAULT_AUTOBAN_TRACKER_SIZE = "8192";
         final String DEFAULT_AUTOBAN_TIMELIMIT = "0";
         final String DEFAULT_AUTOBAN_DURATION = "86400";
         final String DEFAULT_CHECK_INTERVAL = "10";
@@ -391,12 +775,56 @@ public class CheckValveConsoleRelay
         final String DEFAULT_LOGROTATE_ENABLED = "1";
         final String DEFAULT_LOGROTATE_INTERVAL = "168";
         final String DEFAULT_LOGROTATE_KEEP_FILES = "10";
+        final String DEFAULT_LOGROTATE_SIZE = "0";
+        final String DEFAULT_LOGROTATE_KEEP_BYTES = "0";
+        final String DEFAULT_LOGROTATE_COMPRESS = "1";
+        final String DEFAULT_FLIGHT_RECORDER_SIZE = "8192";
+        final String DEFAULT_FLIGHT_RECORDER_FILE = "checkvalveconsolerelay.events";
+        final String DEFAULT_FLIGHT_RECORDER_ERROR_DUMP = "1";
+        final String DEFAULT_STALL_TIMEOUT = "10";
+        final String DEFAULT_STALL_DUMP_FILE = "checkvalveconsolerelay.threads";
+        final String DEFAULT_STALL_EVICT = "1";
+        final String DEFAULT_HEAVY_HITTER_SIZE = "128";
+        final String DEFAULT_HEAVY_HITTER_REPORT = "10";
+        final String DEFAULT_SHARED_COUNTERS_FILE = "";
+        final String DEFAULT_SHARED_COUNTERS_INTERVAL = "1000";
         final String DEFAULT_LOGSTATS_ENABLED = "1";
         final String DEFAULT_LOGSTATS_INTERVAL = "86400";
         final String DEFAULT_MAX_CLIENTS = "10";
         final String DEFAULT_MESSAGE_ADDRESS = "0.0.0.0";
         final String DEFAULT_MESSAGE_PORT = "12346";
         final String DEFAULT_PASSWORD = "";
+        final String DEFAULT_TLS_ENABLED = "0";
+        final String DEFAULT_TLS_PORT = "23458";
+        final String DEFAULT_TLS_KEYSTORE = "";
+        final String DEFAULT_TLS_KEYSTORE_PASSWORD = "";
+        final String DEFAULT_TLS_KEYSTORE_TYPE = "PKCS12";
+        final String DEFAULT_TLS_SESSION_CACHE_SIZE = "1000";
+        final String DEFAULT_TLS_SESSION_TIMEOUT = "86400";
+        final String DEFAULT_ACCESS_LIST_FILE = "";
+        final String DEFAULT_ACCESS_LIST_RELOAD_INTERVAL = "10";
+        final String DEFAULT_BAN_SNAPSHOT_FILE = "checkvalveconsolerelay.bans";
+        final String DEFAULT_BAN_SNAPSHOT_INTERVAL = "300";
+        final String DEFAULT_FIREWALL_FILE = "";
+        final String DEFAULT_FIREWALL_FORMAT = "nftables";
+        final String DEFAULT_FIREWALL_TABLE = "checkvalve";
+        final String DEFAULT_FIREWALL_HOOK = "";
+        final String DEFAULT_FIREWALL_HOOK_TIMEOUT = "10";
+        final String DEFAULT_MAX_CLIENTS_PER_IP = "0";
+        final String DEFAULT_MAX_CLIENTS_PER_SERVER = "0";
+        final String DEFAULT_HEARTBEAT_ACK_ENABLED = "1";
+        final String DEFAULT_HEARTBEAT_ACK_INTERVAL = "2";
+        final String DEFAULT_HEARTBEAT_ACK_MAX_TIMEOUT = "5";
+        final String DEFAULT_TCP_KEEPALIVE = "1";
+        final String DEFAULT_TCP_KEEPALIVE_IDLE = "60";
+        final String DEFAULT_TCP_KEEPALIVE_INTERVAL = "10";
+        final String DEFAULT_TCP_KEEPALIVE_COUNT = "3";
+        final String DEFAULT_LOG_QUEUE_SIZE = "8192";
+        final String DEFAULT_LOG_FLUSH_SIZE = "64";
+        final String DEFAULT_LOG_FLUSH_INTERVAL = "1000";
+        final String DEFAULT_LOG_SUPPRESS_INTERVAL = "60";
+        final String DEFAULT_LOG_SUPPRESS_BURST = "5";
+        final String DEFAULT_METRICS_PORT = "0";
 
         Properties config = new Properties();
 
@@ -529,6 +957,18 @@ public class CheckValveConsoleRelay
             System.out.println( "WARNING: Specified value for autoBanThreshold is invalid, using default (" + DEFAULT_AUTOBAN_THRESHOLD + ")." );
         }
 
+        try
+        {
+            autoBanTrackerSize = Integer.parseInt(config.getProperty("autoBanTrackerSize",DEFAULT_AUTOBAN_TRACKER_SIZE).trim());
+            if( autoBanTrackerSize < 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            autoBanTrackerSize = Integer.parseInt(DEFAULT_AUTOBAN_TRACKER_SIZE);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for autoBanTrackerSize is invalid, using default (" + DEFAULT_AUTOBAN_TRACKER_SIZE + ")." );
+        }
+
         try
         {
             debugLevel = Integer.parseInt(config.getProperty("debugLevel",DEFAULT_DEBUG_LEVEL).trim());
@@ -541,6 +981,54 @@ public class CheckValveConsoleRelay
             System.out.println( "WARNING: Specified value for debugLevel is invalid, using default (" + DEFAULT_DEBUG_LEVEL + ")." );
         }
 
+        try
+        {
+            tlsEnabled = Integer.parseInt(config.getProperty("tlsEnabled",DEFAULT_TLS_ENABLED).trim());
+            if( tlsEnabled < 0 || tlsEnabled > 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tlsEnabled = Integer.parseInt(DEFAULT_TLS_ENABLED);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tlsEnabled is invalid, using default (" + DEFAULT_TLS_ENABLED + ")." );
+        }
+
+        try
+        {
+            tlsListenPort = Integer.parseInt(config.getProperty("tlsListenPort",DEFAULT_TLS_PORT).trim());
+            if( tlsListenPort < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tlsListenPort = Integer.parseInt(DEFAULT_TLS_PORT);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tlsListenPort is invalid, using default (" + DEFAULT_TLS_PORT + ")." );
+        }
+
+        try
+        {
+            tlsSessionCacheSize = Integer.parseInt(config.getProperty("tlsSessionCacheSize",DEFAULT_TLS_SESSION_CACHE_SIZE).trim());
+            if( tlsSessionCacheSize < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tlsSessionCacheSize = Integer.parseInt(DEFAULT_TLS_SESSION_CACHE_SIZE);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tlsSessionCacheSize is invalid, using default (" + DEFAULT_TLS_SESSION_CACHE_SIZE + ")." );
+        }
+
+        try
+        {
+            tlsSessionTimeout = Integer.parseInt(config.getProperty("tlsSessionTimeout",DEFAULT_TLS_SESSION_TIMEOUT).trim());
+            if( tlsSessionTimeout < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tlsSessionTimeout = Integer.parseInt(DEFAULT_TLS_SESSION_TIMEOUT);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tlsSessionTimeout is invalid, using default (" + DEFAULT_TLS_SESSION_TIMEOUT + ")." );
+        }
+
         //
         // Long options
         //
@@ -605,1197 +1093,6881 @@ public class CheckValveConsoleRelay
             System.out.println( "WARNING: Specified value for autoBanDuration is invalid, using default (" + DEFAULT_AUTOBAN_DURATION + ")." );
         }
 
-        //
-        // String options
-        //
+        try
+        {
+            accessListReloadInterval = Long.parseLong(config.getProperty("accessListReloadInterval",DEFAULT_ACCESS_LIST_RELOAD_INTERVAL).trim())*1000;
+            if( accessListReloadInterval < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            accessListReloadInterval = Long.parseLong(DEFAULT_ACCESS_LIST_RELOAD_INTERVAL)*1000;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for accessListReloadInterval is invalid, using default (" + DEFAULT_ACCESS_LIST_RELOAD_INTERVAL + ")." );
+        }
 
-        clientListenAddress = config.getProperty("clientListenAddress",DEFAULT_CLIENT_ADDRESS).trim();
-        messageListenAddress = config.getProperty("messageListenAddress",DEFAULT_MESSAGE_ADDRESS).trim();
-        logFile = config.getProperty("logFile",DEFAULT_LOG_FILE).trim();
-        password = config.getProperty("password",DEFAULT_PASSWORD).trim();
-    }
+        try
+        {
+            banSnapshotInterval = Long.parseLong(config.getProperty("banSnapshotInterval",DEFAULT_BAN_SNAPSHOT_INTERVAL).trim())*1000;
+            if( banSnapshotInterval < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            banSnapshotInterval = Long.parseLong(DEFAULT_BAN_SNAPSHOT_INTERVAL)*1000;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for banSnapshotInterval is invalid, using default (" + DEFAULT_BAN_SNAPSHOT_INTERVAL + ")." );
+        }
 
-    /*
-     * TCP listener for client connections
-     */
-    private static class ClientListener implements Runnable
-    {
-        private InetAddress addr;
-        private InputStream in;
-        private String [] fields;
-        private String data = new String();
-        private String clientIp = new String();
-        private String clientPass = new String();
-        private String clientString = new String();
-        private byte reqType = BYTE_ZERO;
-        private int reqHeader = 0;
-        private int nextSlot = 0;
-        private int clientPort = 0;
-        private int ready = 0;
-        private int connectTimeout = 2000;
-        private long connectTimeMillis = 0;
-        private short contentLength = 0;
-        private boolean listening = false;
-        private boolean waiting = false;
-        private Map<String, Integer> badConnectionAttempts = new HashMap<String, Integer>();
-        private Map<String, Long> badAttemptTimes = new HashMap<String, Long>();
+        try
+        {
+            firewallHookTimeout = Long.parseLong(config.getProperty("firewallHookTimeout",DEFAULT_FIREWALL_HOOK_TIMEOUT).trim())*1000;
+            if( firewallHookTimeout < 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            firewallHookTimeout = Long.parseLong(DEFAULT_FIREWALL_HOOK_TIMEOUT)*1000;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for firewallHookTimeout is invalid, using default (" + DEFAULT_FIREWALL_HOOK_TIMEOUT + ")." );
+        }
 
-        private long id = 0;
-        private String name = new String();
+        try
+        {
+            maxClientsPerIp = Integer.parseInt(config.getProperty("maxClientsPerIp",DEFAULT_MAX_CLIENTS_PER_IP).trim());
+            if( maxClientsPerIp < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            maxClientsPerIp = Integer.parseInt(DEFAULT_MAX_CLIENTS_PER_IP);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for maxClientsPerIp is invalid, using default (" + DEFAULT_MAX_CLIENTS_PER_IP + ")." );
+        }
 
-        public void run()
+        try
         {
-            id = Thread.currentThread().getId();
-            name = Thread.currentThread().getName();
+            maxClientsPerServer = Integer.parseInt(config.getProperty("maxClientsPerServer",DEFAULT_MAX_CLIENTS_PER_SERVER).trim());
+            if( maxClientsPerServer < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            maxClientsPerServer = Integer.parseInt(DEFAULT_MAX_CLIENTS_PER_SERVER);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for maxClientsPerServer is invalid, using default (" + DEFAULT_MAX_CLIENTS_PER_SERVER + ")." );
+        }
 
-            if( debugLevel >= 3 )
-                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+        try
+        {
+            heartbeatAckEnabled = Integer.parseInt(config.getProperty("heartbeatAckEnabled",DEFAULT_HEARTBEAT_ACK_ENABLED).trim());
+            if( heartbeatAckEnabled < 0 || heartbeatAckEnabled > 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            heartbeatAckEnabled = Integer.parseInt(DEFAULT_HEARTBEAT_ACK_ENABLED);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for heartbeatAckEnabled is invalid, using default (" + DEFAULT_HEARTBEAT_ACK_ENABLED + ")." );
+        }
 
-            for(;;)
-            {
-                try
-                {
-                    runClientListener();
-                }
-                catch( InterruptedException ie )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+        try
+        {
+            heartbeatAckInterval = Long.parseLong(config.getProperty("heartbeatAckInterval",DEFAULT_HEARTBEAT_ACK_INTERVAL).trim())*1000;
+            if( heartbeatAckInterval < 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            heartbeatAckInterval = Long.parseLong(DEFAULT_HEARTBEAT_ACK_INTERVAL)*1000;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for heartbeatAckInterval is invalid, using default (" + DEFAULT_HEARTBEAT_ACK_INTERVAL + ")." );
+        }
 
-                    return;
-                }
-                catch( SocketException se )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] caught a SocketException.");
+        try
+        {
+            heartbeatAckMaxTimeout = Long.parseLong(config.getProperty("heartbeatAckMaxTimeout",DEFAULT_HEARTBEAT_ACK_MAX_TIMEOUT).trim())*1000;
+            if( heartbeatAckMaxTimeout < 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            heartbeatAckMaxTimeout = Long.parseLong(DEFAULT_HEARTBEAT_ACK_MAX_TIMEOUT)*1000;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for heartbeatAckMaxTimeout is invalid, using default (" + DEFAULT_HEARTBEAT_ACK_MAX_TIMEOUT + ")." );
+        }
 
-                    if( shuttingDown )
-                    {
-                        if( debugLevel >= 3 )
-                            logger.debug(3, name + " [ID=" + id + "] ignored the SocketException (shutdown flag is set).");
+        try
+        {
+            tcpKeepAlive = Integer.parseInt(config.getProperty("tcpKeepAlive",DEFAULT_TCP_KEEPALIVE).trim());
+            if( tcpKeepAlive < 0 || tcpKeepAlive > 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tcpKeepAlive = Integer.parseInt(DEFAULT_TCP_KEEPALIVE);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tcpKeepAlive is invalid, using default (" + DEFAULT_TCP_KEEPALIVE + ")." );
+        }
 
-                        return;
-                    }
+        try
+        {
+            tcpKeepAliveIdle = Integer.parseInt(config.getProperty("tcpKeepAliveIdle",DEFAULT_TCP_KEEPALIVE_IDLE).trim());
+            if( tcpKeepAliveIdle < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tcpKeepAliveIdle = Integer.parseInt(DEFAULT_TCP_KEEPALIVE_IDLE);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tcpKeepAliveIdle is invalid, using default (" + DEFAULT_TCP_KEEPALIVE_IDLE + ")." );
+        }
 
-                    //
-                    // If the listening flag is not set then the socket could not be opened
-                    //
+        try
+        {
+            tcpKeepAliveInterval = Integer.parseInt(config.getProperty("tcpKeepAliveInterval",DEFAULT_TCP_KEEPALIVE_INTERVAL).trim());
+            if( tcpKeepAliveInterval < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tcpKeepAliveInterval = Integer.parseInt(DEFAULT_TCP_KEEPALIVE_INTERVAL);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tcpKeepAliveInterval is invalid, using default (" + DEFAULT_TCP_KEEPALIVE_INTERVAL + ")." );
+        }
+
+        try
+        {
+            tcpKeepAliveCount = Integer.parseInt(config.getProperty("tcpKeepAliveCount",DEFAULT_TCP_KEEPALIVE_COUNT).trim());
+            if( tcpKeepAliveCount < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            tcpKeepAliveCount = Integer.parseInt(DEFAULT_TCP_KEEPALIVE_COUNT);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for tcpKeepAliveCount is invalid, using default (" + DEFAULT_TCP_KEEPALIVE_COUNT + ")." );
+        }
+
+        try
+        {
+            logQueueSize = Integer.parseInt(config.getProperty("logQueueSize",DEFAULT_LOG_QUEUE_SIZE).trim());
+            if( logQueueSize < 16 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logQueueSize = Integer.parseInt(DEFAULT_LOG_QUEUE_SIZE);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logQueueSize is invalid, using default (" + DEFAULT_LOG_QUEUE_SIZE + ")." );
+        }
+
+        try
+        {
+            logFlushSize = Integer.parseInt(config.getProperty("logFlushSize",DEFAULT_LOG_FLUSH_SIZE).trim())*1024;
+            if( logFlushSize < 1 || logFlushSize > 65536 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logFlushSize = Integer.parseInt(DEFAULT_LOG_FLUSH_SIZE)*1024;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logFlushSize is invalid, using default (" + DEFAULT_LOG_FLUSH_SIZE + ")." );
+        }
+
+        try
+        {
+            logFlushInterval = Long.parseLong(config.getProperty("logFlushInterval",DEFAULT_LOG_FLUSH_INTERVAL).trim());
+            if( logFlushInterval < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logFlushInterval = Long.parseLong(DEFAULT_LOG_FLUSH_INTERVAL);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logFlushInterval is invalid, using default (" + DEFAULT_LOG_FLUSH_INTERVAL + ")." );
+        }
+
+        try
+        {
+            logRotateSize = Long.parseLong(config.getProperty("logRotateSize",DEFAULT_LOGROTATE_SIZE).trim())*1024*1024;
+            if( logRotateSize < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logRotateSize = Long.parseLong(DEFAULT_LOGROTATE_SIZE)*1024*1024;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logRotateSize is invalid, using default (" + DEFAULT_LOGROTATE_SIZE + ")." );
+        }
+
+        try
+        {
+            logRotateKeepBytes = Long.parseLong(config.getProperty("logRotateKeepBytes",DEFAULT_LOGROTATE_KEEP_BYTES).trim())*1024*1024;
+            if( logRotateKeepBytes < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logRotateKeepBytes = Long.parseLong(DEFAULT_LOGROTATE_KEEP_BYTES)*1024*1024;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logRotateKeepBytes is invalid, using default (" + DEFAULT_LOGROTATE_KEEP_BYTES + ")." );
+        }
+
+        try
+        {
+            logRotateCompress = Integer.parseInt(config.getProperty("logRotateCompress",DEFAULT_LOGROTATE_COMPRESS).trim());
+            if( logRotateCompress < 0 || logRotateCompress > 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logRotateCompress = Integer.parseInt(DEFAULT_LOGROTATE_COMPRESS);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logRotateCompress is invalid, using default (" + DEFAULT_LOGROTATE_COMPRESS + ")." );
+        }
+
+        try
+        {
+            flightRecorderSize = Integer.parseInt(config.getProperty("flightRecorderSize",DEFAULT_FLIGHT_RECORDER_SIZE).trim());
+            if( flightRecorderSize < 0 || flightRecorderSize > 1048576 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            flightRecorderSize = Integer.parseInt(DEFAULT_FLIGHT_RECORDER_SIZE);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for flightRecorderSize is invalid, using default (" + DEFAULT_FLIGHT_RECORDER_SIZE + ")." );
+        }
+
+        try
+        {
+            flightRecorderErrorDump = Integer.parseInt(config.getProperty("flightRecorderErrorDump",DEFAULT_FLIGHT_RECORDER_ERROR_DUMP).trim());
+            if( flightRecorderErrorDump < 0 || flightRecorderErrorDump > 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            flightRecorderErrorDump = Integer.parseInt(DEFAULT_FLIGHT_RECORDER_ERROR_DUMP);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for flightRecorderErrorDump is invalid, using default (" + DEFAULT_FLIGHT_RECORDER_ERROR_DUMP + ")." );
+        }
+
+        try
+        {
+            logSuppressInterval = Long.parseLong(config.getProperty("logSuppressInterval",DEFAULT_LOG_SUPPRESS_INTERVAL).trim())*1000;
+            if( logSuppressInterval < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logSuppressInterval = Long.parseLong(DEFAULT_LOG_SUPPRESS_INTERVAL)*1000;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logSuppressInterval is invalid, using default (" + DEFAULT_LOG_SUPPRESS_INTERVAL + ")." );
+        }
+
+        try
+        {
+            logSuppressBurst = Integer.parseInt(config.getProperty("logSuppressBurst",DEFAULT_LOG_SUPPRESS_BURST).trim());
+            if( logSuppressBurst < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            logSuppressBurst = Integer.parseInt(DEFAULT_LOG_SUPPRESS_BURST);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for logSuppressBurst is invalid, using default (" + DEFAULT_LOG_SUPPRESS_BURST + ")." );
+        }
+
+        try
+        {
+            metricsListenPort = Integer.parseInt(config.getProperty("metricsListenPort",DEFAULT_METRICS_PORT).trim());
+            if( metricsListenPort < 0 || metricsListenPort > 65535 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            metricsListenPort = Integer.parseInt(DEFAULT_METRICS_PORT);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for metricsListenPort is invalid, using default (" + DEFAULT_METRICS_PORT + ")." );
+        }
+
+        try
+        {
+            stallTimeout = Long.parseLong(config.getProperty("stallTimeout",DEFAULT_STALL_TIMEOUT).trim())*1000;
+            if( stallTimeout < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            stallTimeout = Long.parseLong(DEFAULT_STALL_TIMEOUT)*1000;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for stallTimeout is invalid, using default (" + DEFAULT_STALL_TIMEOUT + ")." );
+        }
+
+        try
+        {
+            stallEvict = Integer.parseInt(config.getProperty("stallEvict",DEFAULT_STALL_EVICT).trim());
+            if( stallEvict < 0 || stallEvict > 1 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            stallEvict = Integer.parseInt(DEFAULT_STALL_EVICT);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for stallEvict is invalid, using default (" + DEFAULT_STALL_EVICT + ")." );
+        }
+
+        try
+        {
+            heavyHitterSize = Integer.parseInt(config.getProperty("heavyHitterSize",DEFAULT_HEAVY_HITTER_SIZE).trim());
+            if( heavyHitterSize < 0 || heavyHitterSize > 65536 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            heavyHitterSize = Integer.parseInt(DEFAULT_HEAVY_HITTER_SIZE);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for heavyHitterSize is invalid, using default (" + DEFAULT_HEAVY_HITTER_SIZE + ")." );
+        }
+
+        try
+        {
+            heavyHitterReport = Integer.parseInt(config.getProperty("heavyHitterReport",DEFAULT_HEAVY_HITTER_REPORT).trim());
+            if( heavyHitterReport < 0 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            heavyHitterReport = Integer.parseInt(DEFAULT_HEAVY_HITTER_REPORT);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for heavyHitterReport is invalid, using default (" + DEFAULT_HEAVY_HITTER_REPORT + ")." );
+        }
+
+        try
+        {
+            sharedCountersInterval = Long.parseLong(config.getProperty("sharedCountersInterval",DEFAULT_SHARED_COUNTERS_INTERVAL).trim());
+            if( sharedCountersInterval < 10 ) throw new NumberFormatException();
+        }
+        catch( NumberFormatException n )
+        {
+            sharedCountersInterval = Long.parseLong(DEFAULT_SHARED_COUNTERS_INTERVAL);
+            System.out.println();
+            System.out.println( "WARNING: Specified value for sharedCountersInterval is invalid, using default (" + DEFAULT_SHARED_COUNTERS_INTERVAL + ")." );
+        }
+
+        //
+        // String options
+        //
+
+        clientListenAddress = config.getProperty("clientListenAddress",DEFAULT_CLIENT_ADDRESS).trim();
+        messageListenAddress = config.getProperty("messageListenAddress",DEFAULT_MESSAGE_ADDRESS).trim();
+        logFile = config.getProperty("logFile",DEFAULT_LOG_FILE).trim();
+        password = config.getProperty("password",DEFAULT_PASSWORD).trim();
+        tlsKeyStore = config.getProperty("tlsKeyStore",DEFAULT_TLS_KEYSTORE).trim();
+        tlsKeyStorePassword = config.getProperty("tlsKeyStorePassword",DEFAULT_TLS_KEYSTORE_PASSWORD).trim();
+        tlsKeyStoreType = config.getProperty("tlsKeyStoreType",DEFAULT_TLS_KEYSTORE_TYPE).trim();
+        accessListFile = config.getProperty("accessListFile",DEFAULT_ACCESS_LIST_FILE).trim();
+        banSnapshotFile = config.getProperty("banSnapshotFile",DEFAULT_BAN_SNAPSHOT_FILE).trim();
+        firewallFile = config.getProperty("firewallFile",DEFAULT_FIREWALL_FILE).trim();
+        firewallFormat = config.getProperty("firewallFormat",DEFAULT_FIREWALL_FORMAT).trim().toLowerCase();
+        firewallTable = config.getProperty("firewallTable",DEFAULT_FIREWALL_TABLE).trim();
+        firewallHook = config.getProperty("firewallHook",DEFAULT_FIREWALL_HOOK).trim();
+        flightRecorderFile = config.getProperty("flightRecorderFile",DEFAULT_FLIGHT_RECORDER_FILE).trim();
+        stallDumpFile = config.getProperty("stallDumpFile",DEFAULT_STALL_DUMP_FILE).trim();
+        sharedCountersFile = config.getProperty("sharedCountersFile",DEFAULT_SHARED_COUNTERS_FILE).trim();
+
+        if( ! firewallFormat.equals("nftables") && ! firewallFormat.equals("ipset") )
+        {
+            firewallFormat = DEFAULT_FIREWALL_FORMAT;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for firewallFormat is invalid, using default (" + DEFAULT_FIREWALL_FORMAT + ")." );
+        }
+
+        if( ! firewallTable.matches("[A-Za-z][A-Za-z0-9_]*") )
+        {
+            firewallTable = DEFAULT_FIREWALL_TABLE;
+            System.out.println();
+            System.out.println( "WARNING: Specified value for firewallTable is invalid, using default (" + DEFAULT_FIREWALL_TABLE + ")." );
+        }
+
+        if( tlsEnabled == 1 && tlsKeyStore.length() == 0 )
+        {
+            tlsEnabled = 0;
+            System.out.println();
+            System.out.println( "WARNING: TLS is enabled but no tlsKeyStore is defined.  The TLS client listener is disabled." );
+        }
+    }
+
+    private static void initTls() throws Exception
+    {
+        // Let reconnecting clients resume from a stateless session ticket
+        // even after their entry has been evicted from the session cache
+        if( System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null )
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+
+        char[] pass = tlsKeyStorePassword.toCharArray();
+        KeyStore ks = KeyStore.getInstance(tlsKeyStoreType);
+        FileInputStream input = new FileInputStream(tlsKeyStore);
+
+        try
+        {
+            ks.load(input, pass);
+        }
+        finally
+        {
+            input.close();
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, pass);
+
+        tlsContext = SSLContext.getInstance("TLS");
+        tlsContext.init(kmf.getKeyManagers(), null, null);
+        tlsContext.getServerSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+        tlsContext.getServerSessionContext().setSessionTimeout(tlsSessionTimeout);
+    }
+
+    private static long getThreadCpuTime()
+    {
+        ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+
+        // Fall back to wall clock time if the JVM cannot measure CPU time
+        if( tmx.isCurrentThreadCpuTimeSupported() )
+            return tmx.getCurrentThreadCpuTime();
+        else
+            return System.nanoTime();
+    }
+
+    private static void banClient(InetAddress addr, long now)
+    {
+        banClient(BanTable.addressHigh(addr), BanTable.addressLow(addr), (autoBanDuration > 0)?(now + autoBanDuration):Long.MAX_VALUE);
+    }
+
+    private static void banClient(long hi, long lo, long expires)
+    {
+        BanEvent event = new BanEvent();
+
+        bannedClients.ban(hi, lo, expires);
+        flightRecorder.record(FlightRecorder.CLIENT_BANNED, hi, lo, (expires != Long.MAX_VALUE)?(expires - System.currentTimeMillis()):-1, 0);
+
+        if( event.isEnabled() )
+        {
+            event.address = BanTable.addressString(hi, lo);
+            event.action = (expires != Long.MAX_VALUE)?"banned":"banned permanently";
+            event.banLength = (expires != Long.MAX_VALUE)?(expires - System.currentTimeMillis()):Long.MAX_VALUE;
+            event.commit();
+        }
+
+        if( firewallSync != null )
+            firewallSync.banned(hi, lo, expires);
+
+        // Permanent bans never need to come off the wheel
+        if( expires != Long.MAX_VALUE )
+            banWheel.schedule(new BanEntry(hi, lo, expires), expires);
+    }
+
+    /*
+     * Ban snapshot file layout (big-endian):
+     *
+     *    int   magic ("CVBN")
+     *    int   format version
+     *    long  time the snapshot was written
+     *    long  number of entries
+     *    then for each entry:
+     *        long  high 64 bits of the address (0 for IPv4)
+     *        long  low 64 bits of the address (IPv4-mapped for IPv4)
+     *        long  expiry time (Long.MAX_VALUE for a permanent ban)
+     */
+    final static int BAN_SNAPSHOT_MAGIC = 0x4356424E;
+    final static int BAN_SNAPSHOT_VERSION = 1;
+    final static int BAN_SNAPSHOT_HEADER_SIZE = 24;
+
+    private static synchronized void saveBanSnapshot()
+    {
+        File file = new File(banSnapshotFile);
+        File temp = new File(banSnapshotFile + ".tmp");
+        FileOutputStream output = null;
+
+        // Nothing to do if no ban has been added or removed since the last snapshot
+        if( bannedClients.version() == banSnapshotVersion && file.exists() )
+            return;
+
+        try
+        {
+            output = new FileOutputStream(temp);
+            banSnapshotVersion = bannedClients.writeSnapshot(output.getChannel());
+            output.close();
+            output = null;
+
+            // Replace the old snapshot in one step so a crash never leaves a partial file
+            java.nio.file.Files.move(temp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+
+            if( debugLevel >= 2 )
+                logger.debug(2, "Saved " + bannedClients.size() + " bans to " + banSnapshotFile + ".");
+        }
+        catch( IOException ioe )
+        {
+            logger.writeln( "[ERROR] Failed to save bans to " + banSnapshotFile + "." );
+            logger.writeln( "[ERROR] " + ioe.toString() );
+        }
+        finally
+        {
+            try
+            {
+                if( output != null ) output.close();
+            }
+            catch( IOException ioe )
+            {
+                // Ignore
+            }
+        }
+    }
+
+    // Read a ban snapshot into an array of (high, low, expires) triples
+    private static long[] readBanSnapshot(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            // Read into the heap rather than mapping the file, since a live
+            // mapping stops the next snapshot from replacing it on Windows
+            java.nio.channels.FileChannel ch = raf.getChannel();
+
+            if( ch.size() > Integer.MAX_VALUE )
+                throw new IOException("Ban snapshot is too large");
+
+            ByteBuffer buf = ByteBuffer.allocate((int)ch.size());
+            buf.order(ByteOrder.BIG_ENDIAN);
+
+            while( buf.hasRemaining() && ch.read(buf) >= 0 );
+
+            buf.flip();
+
+            if( buf.limit() < BAN_SNAPSHOT_HEADER_SIZE || buf.getInt(0) != BAN_SNAPSHOT_MAGIC || buf.getInt(4) != BAN_SNAPSHOT_VERSION )
+                throw new IOException("Not a valid ban snapshot");
+
+            long count = buf.getLong(16);
+
+            // Divide rather than multiply so a corrupt count cannot overflow
+            if( count < 0 || count > (buf.limit() - BAN_SNAPSHOT_HEADER_SIZE) / 24 )
+                throw new IOException("Ban snapshot is truncated");
+
+            long[] bans = new long[(int)(count*3)];
+
+            buf.position(BAN_SNAPSHOT_HEADER_SIZE);
+            buf.asLongBuffer().get(bans);
+
+            return bans;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static void loadBanSnapshot()
+    {
+        File file = new File(banSnapshotFile);
+        long now = System.currentTimeMillis();
+        long[] bans;
+        int loaded = 0;
+        int expired = 0;
+
+        if( ! file.exists() )
+            return;
+
+        try
+        {
+            bans = readBanSnapshot(file);
+        }
+        catch( IOException ioe )
+        {
+            logger.writeln( "[STARTUP] [WARNING] Failed to read bans from " + banSnapshotFile + ", it will be replaced." );
+            logger.writeln( "[STARTUP] [WARNING] " + ioe.toString() );
+            return;
+        }
+
+        for( int i = 0; i < bans.length; i += 3 )
+        {
+            if( bans[i+2] <= now )
+            {
+                expired++;
+                continue;
+            }
+
+            banClient(bans[i], bans[i+1], bans[i+2]);
+            loaded++;
+        }
+
+        banSnapshotVersion = bannedClients.version();
+        logger.writeln( "[STARTUP] Restored " + loaded + " bans from " + banSnapshotFile + " (" + expired + " had expired)." );
+    }
+
+    /*
+     * TCP listener for client connections
+     */
+    private static class ClientListener implements Runnable
+    {
+        private InetAddress addr;
+        private InetAddress clientAddr;
+        private ServerSocket listenerSocket;
+        private TlsStream tlsStream;
+        private InputStream in;
+        private OutputStream out;
+        private String [] fields;
+        private String data = new String();
+        private String clientIp = new String();
+        private String clientPass = new String();
+        private String clientString = new String();
+        private String serverKey = new String();
+        private byte reqType = BYTE_ZERO;
+        private int reqHeader = 0;
+        private int nextSlot = 0;
+        private int capped = ConnectionLimits.OK;
+        private int clientPort = 0;
+        private int ready = 0;
+        private int connectTimeout = 2000;
+        private int listenPort = 0;
+        private long connectTimeMillis = 0;
+        private long handshakeCpu = 0;
+        private HandshakeEvent handshake;
+        private short contentLength = 0;
+        private boolean listening = false;
+        private boolean waiting = false;
+        private boolean tls = false;
+
+        private long id = 0;
+        private String name = new String();
+
+        public ClientListener(boolean useTls)
+        {
+            tls = useTls;
+            listenPort = (tls)?tlsListenPort:clientListenPort;
+        }
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            for(;;)
+            {
+                try
+                {
+                    runClientListener();
+                }
+                catch( InterruptedException ie )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                    return;
+                }
+                catch( SocketException se )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] caught a SocketException.");
+
+                    if( shuttingDown )
+                    {
+                        if( debugLevel >= 3 )
+                            logger.debug(3, name + " [ID=" + id + "] ignored the SocketException (shutdown flag is set).");
+
+                        return;
+                    }
+
+                    //
+                    // If the listening flag is not set then the socket could not be opened
+                    //
+                    if( ! listening )
+                    {
+                        System.err.println();
+
+                        logger.writeln( "[ERROR] Unable to create TCP listening socket." );
+                        System.err.println( "[ERROR] Unable to create TCP listening socket." );
+                        logger.writeln( "[ERROR] " + se.toString() );
+                        System.err.println( "[ERROR] " + se.toString() );
+
+                        if( debugLevel >= 2 )
+                        {
+                            StackTraceElement[] ste = se.getStackTrace();
+
+                            for(int x = 0; x < ste.length; x++)
+                                logger.debug(2, ste[x].toString() );
+                        }
+
+                        if( ! shuttingDown )
+                        {
+                            if( debugLevel >= 2 )
+                                logger.debug(2, "Client listener is calling for the program to shut down.");
+
+                            System.exit(1);
+                        }
+
+                        return;
+                    }
+                    else
+                    {
+                        logger.writeln( "[ERROR] Client listener thread caught an exception:" );
+                        logger.writeln( "[ERROR] " + se.toString() );
+                        flightRecorder.error(se);
+
+                        if( debugLevel >= 2 )
+                        {
+                            StackTraceElement[] ste = se.getStackTrace();
+
+                            for(int x = 0; x < ste.length; x++)
+                                logger.debug(2, ste[x].toString() );
+                        }
+
+                        if( listenerSocket.isClosed() )
+                        {
+                            listening = false;
+                            logger.writeln( "[ERROR] The client listener socket closed unexpectedly." );
+                            logger.writeln( "[ERROR] Attempting to restart the client listener." );
+                        }
+                        else
+                        {
+                            logger.writeln( "This exception appears to be non-fatal." );
+                        }
+                    }
+                }
+                catch( Exception e )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] caught an exception.");
+
+                    if( shuttingDown )
+                    {
+                        if( debugLevel >= 3 )
+                            logger.debug(3, name + " [ID=" + id + "] ignored the exception (shutdown flag is set).");
+
+                        return;
+                    }
+
+                    logger.writeln( "[ERROR] Client listener thread caught an exception:" );
+                    logger.writeln( "[ERROR] " + e.toString() );
+                    flightRecorder.error(e);
+
+                    if( debugLevel >= 2 )
+                    {
+                        StackTraceElement[] ste = e.getStackTrace();
+
+                        for(int x = 0; x < ste.length; x++)
+                            logger.debug(2, ste[x].toString() );
+                    }
+
+                    if( listenerSocket.isClosed() )
+                    {
+                        listening = false;
+                        logger.writeln( "[ERROR] The client listener socket closed unexpectedly." );
+                        logger.writeln( "[ERROR] Attempting to restart the client listener." );
+                    }
+                    else
+                    {
+                        logger.writeln( "This exception appears to be non-fatal." );
+                    }
+                }
+            }
+        }
+
+        private void runClientListener() throws Exception
+        {
+            if( ! listening )
+            {
+                // Create the TCP listen socket
+                addr = InetAddress.getByName(clientListenAddress);
+
+                // Accepted sockets come with a channel so they can be handed to the selector later
+                listenerSocket = ServerSocketChannel.open().socket();
+                listenerSocket.bind(new InetSocketAddress(addr, listenPort), 1);
+
+                if( tls )
+                    tlsListenerSocket = listenerSocket;
+                else
+                    clientListenerSocket = listenerSocket;
+
+                // Set the listening flag
+                listening = true;
+
+                logger.writeln( "Client listener started; listening for clients on " + clientListenAddress + ":" + listenPort + ((tls)?" (TCP/TLS).":" (TCP).") );
+            }
+
+            byte[] dataBytes = new byte[2048];
+            ByteBuffer dataBuffer = ByteBuffer.wrap(dataBytes);
+            dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            for(;;)
+            {
+                dataBuffer.clear();
+
+                // Create a new open socket for the next connection
+                Socket clientSocket = listenerSocket.accept();
+
+                // Set the I/O timeout for the client socket
+                clientSocket.setSoTimeout(connectTimeout);
+
+                // Get the client's address
+                clientAddr = clientSocket.getInetAddress();
+
+                // Close this connection immediately if the client's network is denied by the access list
+                if( accessList != null && ! accessList.isAllowed(clientAddr) )
+                {
+                    clientSocket.close();
+
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "Denied request from " + clientAddr.getHostAddress() + " by access list rule.");
+
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                // Close this connection immediately if the client IP is banned
+                if( bannedClients.isBanned(clientAddr) )
+                {
+                    clientSocket.close();
+
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "Ignored request from banned IP address " + clientAddr.getHostAddress() + ".");
+
+                    continue;
+                }
+
+                // Get the client's IP address
+                clientIp = clientAddr.getHostAddress();
+
+                // Get the current time
+                connectTimeMillis = System.currentTimeMillis();
+
+                // Get the client's port number
+                clientPort = clientSocket.getPort();
+                clientString = clientIp + ":" + clientPort;
+
+                handshake = new HandshakeEvent();
+                handshake.begin();
+
+                if( tls )
+                {
+                    // Everything sent or received after this point goes through the TLS session
+                    try
+                    {
+                        tlsStream = new TlsStream(clientSocket, tlsContext.createSSLEngine(clientIp, clientPort));
+                        handshakeCpu = getThreadCpuTime();
+                        tlsStream.handshake(connectTimeout);
+                        handshakeCpu = getThreadCpuTime() - handshakeCpu;
+                    }
+                    catch( Exception e )
+                    {
+                        logRejection("TLS handshake failed", e.toString());
+                        updateBanList(clientAddr, clientIp);
+                        clientSocket.close();
+                        tlsFailedHandshakes++;
+                        rejectedConnections.increment();
+                        continue;
+                    }
+
+                    if( tlsStream.isResumed() )
+                    {
+                        tlsResumedHandshakes++;
+                        tlsResumedHandshakeCpu += handshakeCpu;
+                    }
+                    else
+                    {
+                        tlsFullHandshakes++;
+                        tlsFullHandshakeCpu += handshakeCpu;
+                    }
+
+                    if( debugLevel >= 2 )
+                        logger.debug(2, "Completed " + ((tlsStream.isResumed())?"abbreviated":"full") + " TLS handshake with " + clientString + " using " + tlsStream.getProtocol() + " in " + (handshakeCpu/1000) + " us of CPU time.");
+
+                    in = tlsStream.getInputStream();
+                    out = tlsStream.getOutputStream();
+                }
+                else
+                {
+                    tlsStream = null;
+                    in = clientSocket.getInputStream();
+                    out = clientSocket.getOutputStream();
+                }
+
+                // Send our identity string to the client
+                sendMessageToClient(out, PTYPE_IDENTITY_STRING, IDENTITY_STRING);
+
+                if( debugLevel >= 3 )
+                    logger.debug(3, "Identity string has been sent to " + clientString + ".");
+
+                try
+                {
+                    in.read(dataBytes, 0, 7);
+                }
+                catch( SocketTimeoutException ste )
+                {
+                    logRejection("No connection request", null);
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    continue;
+                }
+                catch( Exception e )
+                {
+                    logRejection("Error reading request header", e.toString());
+
+                    if( debugLevel >= 2 )
+                    {
+                        StackTraceElement[] ste = e.getStackTrace();
+
+                        for(int x = 0; x < ste.length; x++)
+                            logger.debug(2, ste[x].toString() );
+                    }
+
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    continue;
+                }
+
+                if( debugLevel >= 2 )
+                    logger.debug(2, "Validating connection request from " + clientString + ".");
+
+                if( (reqHeader = dataBuffer.getInt()) != PACKET_HEADER )
+                {
+                    if( debugLevel >= 3 )
+                    {
+                        String exp = "0x" + Integer.toHexString(PACKET_HEADER).toUpperCase();
+                        String rcv = "0x" + String.format("%8s", Integer.toHexString(reqHeader)).replace(' ','0').toUpperCase();
+                        logger.debug(3, "Request contains an invalid header (expected " + exp + ", received " + rcv + ").");
+                    }
+
+                    logRejection("Invalid packet (bad header)", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                if( (reqType = dataBuffer.get()) != PTYPE_CONNECTION_REQUEST )
+                {
+                    if( debugLevel >= 3 )
+                    {
+                        String exp = "0x" + String.format("%2s", Byte.toString(PTYPE_CONNECTION_REQUEST)).replace(' ','0').toUpperCase();
+                        String rcv = "0x" + String.format("%2s", Byte.toString(reqType)).replace(' ','0').toUpperCase();
+                        logger.debug(3, "Request contains an invalid packet type (expected " + exp + ", received " + rcv + ").");
+                    }
+
+                    logRejection("Invalid packet (bad packet type)", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                contentLength = dataBuffer.getShort();
+
+                if( contentLength < 1 || contentLength > 4096 )
+                {
+                    if( debugLevel >= 3 )
+                    {
+                        String rcv = "0x" + String.format("%4s", Integer.toHexString((int)contentLength)).replace(' ','0').toUpperCase();
+                        logger.debug(3, "Request contains an invalid content length (" + rcv + ").");
+                    }
+
+                    logRejection("Invalid content length", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Invalid content length");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                //
+                // Read the rest of the packet data
+                //
+
+                try
+                {
+                    in.read(dataBytes, dataBuffer.position(), contentLength);
+                }
+                catch( SocketTimeoutException ste )
+                {
+                    logRejection("Socket timeout while waiting for request data", null);
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    continue;
+                }
+                catch( Exception e )
+                {
+                    logRejection("Error reading request data", e.toString());
+
+                    if( debugLevel >= 2 )
+                    {
+                        StackTraceElement[] ste = e.getStackTrace();
+
+                        for(int x = 0; x < ste.length; x++)
+                            logger.debug(2, ste[x].toString() );
+                    }
+
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    continue;
+                }
+
+                data = new String(dataBytes, dataBuffer.position(), contentLength, "UTF-8");
+
+                // Make sure the packet has data
+                if( (data == null) || (data.length() < 2) )
+                {
+                    logRejection("Empty packet", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Empty packet");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                // Make sure the packet data conforms to the protocol
+                if( ! data.startsWith( "P ") )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "Incorrect start of packet data (expected 'P ', found '" + data.substring(0,2) + "').");
+
+                    logRejection("Invalid packet (bad connection request)", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                // Split the remaining packet data into strings delimited by 0x00
+                fields = data.split( "\u0000" );
+
+                //
+                // FIELDS:
+                //    [0]: Password (ignored if no password is required)
+                //    [1]: IP of the game server from which this client wants console messages
+                //    [2]: Port of the game server from which this client wants console messages
+                //
+
+                // Make sure the packet has 3 fields
+                if( fields.length != 3 )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "Incorrect number of fields in packet data (expected 3, found " + fields.length + ").");
+
+                    logRejection("Invalid packet (unable to parse)", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                // Validate the password in this packet if one is required
+                if( password.length() > 0 )
+                {
+                    clientPass = fields[0].substring(2, fields[0].length());
+
+                    if( ! clientPass.equals(password) )
+                    {
+                        logRejection("Bad password", null);
+                        sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Bad password");
+                        updateBanList(clientAddr, clientIp);
+                        in.close();
+                        clientSocket.close();
+                        rejectedConnections.increment();
+                        continue;
+                    }
+                }
+
+                // Validate requested IP address
+                if( ! isValidIPv4Address(fields[1]) && ! isValidIPv6Address(fields[1]) )
+                {
+                    logRejection("Bad IP address in request", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Bad IP address");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                // Validate requested port
+                if( ! isValidPortNumber(fields[2]) )
+                {
+                    logRejection("Bad port number in request", null);
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Bad port number");
+                    updateBanList(clientAddr, clientIp);
+                    in.close();
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    continue;
+                }
+
+                //
+                // Connection request is valid
+                //
+
+                // Remove the bad connection counter for this IP if one exists
+                if( failureTracker.clear(BanTable.addressHigh(clientAddr), BanTable.addressLow(clientAddr)) )
+                {
+                    if( debugLevel >= 2 )
+                        logger.debug(2, "Removed bad connection counter for " + clientIp + ".");
+                }
+
+                serverKey = InetAddress.getByName(fields[1]).getHostAddress() + ":" + Integer.parseInt(fields[2]);
+
+                // Assign this client to the next available slot or reject the connection if no slots are available
+                synchronized( connections )
+                {
+                    if( (nextSlot = getNextSlot()) != -1 )
+                    {
+                        // Count this client against its IP and game server before it gets the slot
+                        if( (capped = connectionLimits.acquire(clientIp, serverKey)) == ConnectionLimits.OK )
+                        {
+                            sendMessageToClient(out, PTYPE_CONNECTION_SUCCESS, "OK");
+
+                            // Use the Connection class to handle everything
+                            connections[nextSlot] = new Connection( clientSocket, tlsStream, out, fields[1], fields[2], clientIp, serverKey );
+                        }
+                    }
+                }
+
+                if( capped != ConnectionLimits.OK )
+                {
+                    if( capped == ConnectionLimits.IP_CAP )
+                    {
+                        logRefusal("Too many connections from one IP", "Too many connections from " + clientIp);
+                        ipCapRejections++;
+                    }
+                    else
+                    {
+                        logRefusal("Too many connections to one game server", "Too many connections to " + serverKey);
+                        serverCapRejections++;
+                    }
+
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Too many connections");
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                    capped = ConnectionLimits.OK;
+                    continue;
+                }
+
+                if( nextSlot != -1 )
+                {
+                    commitHandshake("Accepted");
+                    logger.writeln( "New client connection from " + clientString + ((tls)?" (TLS).":".") );
+
+                    if( debugLevel >= 2 )
+                        logger.debug(2, "Created a new Connection object for " + clientString + " in slot " + nextSlot + ".");
+
+                    logger.writeln( "Assigned client " + clientString + " to slot " + nextSlot );
+                    logger.writeln( "Client " + clientString + " wants messages from " + fields[1] + ":" + fields[2] );
+                }
+                else
+                {
+                    logRefusal("Too many connections", "Too many connections");
+                    sendMessageToClient(out, PTYPE_CONNECTION_FAILURE, "E Too many connections");
+                    clientSocket.close();
+                    rejectedConnections.increment();
+                }
+            }
+        }
+
+        // Rejections are rate limited by reason and subnet so a scan cannot flood the log
+        private void logRejection(String reason, String detail)
+        {
+            commitHandshake(reason);
+
+            if( logLimiter.allow("Rejecting client : " + reason, clientAddr, System.currentTimeMillis()) )
+                logger.writeln( "Rejecting client " + clientString + " : " + reason + ((detail != null)?" (" + detail + ")":"") + "." );
+        }
+
+        private void logRefusal(String event, String reason)
+        {
+            commitHandshake(event);
+
+            if( logLimiter.allow("Refusing connection : " + event, clientAddr, System.currentTimeMillis()) )
+                logger.writeln( "Refusing connection from " + clientString + " : " + reason + "." );
+        }
+
+        private void commitHandshake(String outcome)
+        {
+            handshake.end();
+
+            if( handshake.shouldCommit() )
+            {
+                handshake.client = clientString;
+                handshake.tls = tls;
+                handshake.outcome = outcome;
+                handshake.commit();
+            }
+        }
+
+        private void updateBanList(InetAddress a, String ip)
+        {
+            if( autoBanEnabled == 0 )
+                return;
+
+            long now = System.currentTimeMillis();
+            int num = failureTracker.recordFailure(BanTable.addressHigh(a), BanTable.addressLow(a), now);
+
+            flightRecorder.record(FlightRecorder.CLIENT_FAILED, BanTable.addressHigh(a), BanTable.addressLow(a), num, 0);
+
+            if( autoBanThreshold > 0 && num >= autoBanThreshold )
+            {
+                banClient(a, now);
+
+                if( debugLevel >= 2 )
+                {
+                    logger.debug(2, "Created a new ban entry for " + ip + ".");
+                    logger.debug(2, "Removed bad connection counter for " + ip + ".");
+                }
+
+                logger.writeln( "[AUTO-BAN] Banning IP " + ip + " after " + num + " failed connection attempts." );
+                logger.writeln( "[AUTO-BAN] Future connection attempts from " + ip + " will be ignored." );
+                return;
+            }
+
+            if( debugLevel >= 2 )
+            {
+                if( num == 1 )
+                    logger.debug(2, "Started a bad connection counter for " + ip + ".");
+                else
+                    logger.debug(2, "Updated bad connection counter for " + ip + " to " + num + ".");
+            }
+
+            return;
+        }
+
+        private int getNextSlot()
+        {
+            if( debugLevel >= 3 )
+                logger.debug(3, "Looking for an available connection slot.");
+
+            for( int i = 0; i < maxClients; i++ )
+            {
+                if( ! connections[i].isAlive() )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "Slot " + i + " is available.");
+
+                    return i;
+                }
+            }
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Failed to find an available connection slot.");
+
+            return -1;
+        }
+
+        private boolean isValidIPv6Address(String address)
+        {
+            try
+            {
+                java.net.Inet6Address.getByName(address);
+                return true;
+            }
+            catch( Exception e )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, address + " is not a valid IPv6 address.");
+
+                return false;
+            }
+        }
+
+        private boolean isValidIPv4Address(String address)
+        {
+            try
+            {
+                java.net.Inet4Address.getByName(address);
+                return true;
+            }
+            catch( Exception e )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, address + " is not a valid IPv4 address.");
+
+                return false;
+            }
+        }
+
+        private boolean isValidPortNumber(String s)
+        {
+            try
+            {
+                int i = Integer.parseInt(s);
+
+                if( i > 0 && i < 65536 )
+                    return true;
+                else
+                    return false;
+            }
+            catch( Exception e )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, s + " is not a valid port number.");
+
+                return false;
+            }
+        }
+
+        private void sendMessageToClient(OutputStream out, byte ptype, String message)
+        {
+            try
+            {
+                byte[] messageData = new byte[4096];
+                byte[] messageBytes = message.getBytes("UTF-8");
+
+                ByteBuffer buffer = ByteBuffer.wrap(messageData);
+
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(PACKET_HEADER);
+                buffer.put(ptype);
+                buffer.putShort((short)(messageBytes.length + 1));
+                buffer.put(messageBytes);
+                buffer.put(BYTE_ZERO);
+                buffer.flip();
+
+                out.write(buffer.array(), 0, buffer.limit());
+                out.flush();
+            }
+            catch( Exception e )
+            {
+                logger.writeln( "[ERROR] Caught an exception while sending message to " + clientString + " (message=" + message + ")." );
+                logger.writeln( "[ERROR] " + e.toString() );
+
+                if( debugLevel >= 2 )
+                {
+                    StackTraceElement[] ste = e.getStackTrace();
+
+                    for(int x = 0; x < ste.length; x++)
+                        logger.debug(2, ste[x].toString() );
+                }
+
+                return;
+            }
+        }
+    }
+
+    /*
+     * UDP listener for incoming messages from the game server(s)
+     */
+    private static class MessageListener implements Runnable
+    {
+        private InetAddress addr;
+        private DatagramPacket packet;
+        private int idx = 0;
+        private int port = 0;
+        private int serverTimestamp = 0;
+        private long packetId = 0;
+        private long received = 0;
+        private int serverSlot = -1;
+        private DatagramReceivedEvent event;
+        private String from = new String();
+        private String data = new String();
+        private String message = new String();
+        private String messageTimestamp = new String();
+        private String playerName = new String();
+        private String playerTeam = new String();
+        private String playerSays = new String();
+        private String [] tokens = new String[2];
+        private byte isSayTeam = BYTE_ZERO;
+        private byte[] buffer = new byte[4096];
+        private boolean listening = false;
+
+        private int messageSize = 0;
+        private ByteBuffer messageBody = ByteBuffer.allocate(4096);
+
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            receiveStage.setOwner(Thread.currentThread());
+
+            messageBody.order(ByteOrder.LITTLE_ENDIAN);
+            messageData.order(ByteOrder.LITTLE_ENDIAN);
+
+            for(;;)
+            {
+                try
+                {
+                    runMessageListener();
+                }
+                catch( InterruptedException ie )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                    return;
+                }
+                catch( SocketException se )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] caught a SocketException.");
+
+                    if( shuttingDown )
+                    {
+                        if( debugLevel >= 3 )
+                            logger.debug(3, name + " [ID=" + id + "] ignored the SocketException (shutdown flag is set).");
+
+                        return;
+                    }
+
+                    //
+                    // If the listening flag is not set then the socket could not be opened
+                    //
                     if( ! listening )
                     {
-                        System.err.println();
+                        System.err.println();
+
+                        logger.writeln( "[ERROR] Unable to create UDP listening socket." );
+                        System.err.println( "[ERROR] Unable to create UDP listening socket." );
+                        logger.writeln( "[ERROR] " + se.toString() );
+                        System.err.println( "[ERROR] " + se.toString() );
+
+                        if( debugLevel >= 2 )
+                        {
+                            StackTraceElement[] ste = se.getStackTrace();
+
+                            for(int x = 0; x < ste.length; x++)
+                                logger.debug(2, ste[x].toString() );
+                        }
+
+                        if( ! shuttingDown )
+                        {
+                            if( debugLevel >= 2 )
+                                logger.debug(2, "Message listener is calling for the program to shut down.");
+
+                            System.exit(1);
+                        }
+
+                        return;
+                    }
+                    else
+                    {
+                        logger.writeln( "[ERROR] Message listener thread caught an exception:" );
+                        logger.writeln( "[ERROR] " + se.toString() );
+                        flightRecorder.error(se);
+
+                        if( debugLevel >= 2 )
+                        {
+                            StackTraceElement[] ste = se.getStackTrace();
+
+                            for(int x = 0; x < ste.length; x++)
+                                logger.debug(2, ste[x].toString() );
+                        }
+
+                        if( messageListenerSocket.isClosed() )
+                        {
+                            listening = false;
+                            logger.writeln( "[ERROR] The message listener socket closed unexpectedly." );
+                            logger.writeln( "[ERROR] Attempting to restart the message listener." );
+                        }
+                        else
+                        {
+                            logger.writeln( "This exception appears to be non-fatal." );
+                        }
+                    }
+                }
+                catch( Exception e )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] caught an exception.");
+
+                    if( shuttingDown )
+                    {
+                        if( debugLevel >= 3 )
+                            logger.debug(3, name + " [ID=" + id + "] ignored the exception (shutdown flag is set).");
+
+                        return;
+                    }
+
+                    logger.writeln( "[ERROR] Message listener thread caught an exception:" );
+                    logger.writeln( "[ERROR] " + e.toString() );
+                    flightRecorder.error(e);
+
+                    if( debugLevel >= 2 )
+                    {
+                        StackTraceElement[] ste = e.getStackTrace();
+
+                        for(int x = 0; x < ste.length; x++)
+                            logger.debug(2, ste[x].toString() );
+                    }
+
+                    if( clientListenerSocket.isClosed() )
+                    {
+                        listening = false;
+                        logger.writeln( "[ERROR] The client listener socket closed unexpectedly." );
+                        logger.writeln( "[ERROR] Attempting to restart the client listener." );
+                    }
+                    else
+                    {
+                        logger.writeln( "This exception appears to be non-fatal." );
+                    }
+                }
+            }
+        }
+
+        private void runMessageListener() throws Exception
+        {
+            if( ! listening )
+            {
+                // Create the UDP listen socket
+                addr = InetAddress.getByName(messageListenAddress);
+                messageListenerSocket = new DatagramSocket(messageListenPort, addr);
+
+                // Set the listening flag
+                listening = true;
+
+                // Create the datagram packet to handle incoming data
+                packet = new DatagramPacket(buffer,buffer.length);
+
+                logger.writeln( "Message listener started; receiving log messages on " + messageListenAddress + ":" + messageListenPort + " (UDP)." );
+            }
+
+            for(;;)
+            {
+                // Get the next packet from the socket
+                receiveStage.idle();
+                messageListenerSocket.receive(packet);
+                received = System.nanoTime();
+                receiveStage.busy();
+
+                event = new DatagramReceivedEvent();
+                event.begin();
+
+                //Increment the total packets counter
+                totalPackets.increment();
+                packetId++;
+
+                serverSlot = serverTraffic.received(packet.getAddress(), packet.getPort(), packet.getLength(), System.currentTimeMillis());
+                heavyHitters.offer(packet.getAddress(), packet.getPort(), packet.getLength());
+
+                flightRecorder.record(FlightRecorder.PACKET_RECEIVED, packetId, packet.getLength());
+
+                if( numClients.sum() > 0 )
+                {
+                    // Get the data from the packet
+                    data = new String(buffer, 0, packet.getLength(), "UTF-8");
+
+                    // Get the remote address and remote port from the packet
+                    messageInfo[0] = packet.getAddress().getHostAddress();
+                    messageInfo[1] = Integer.valueOf(packet.getPort()).toString();
+
+                    // Only continue processing if a client wants messages from this game server
+                    if( ! isWanted(messageInfo[0], messageInfo[1]) )
+                    {
+                        flightRecorder.record(FlightRecorder.PACKET_UNWANTED, packetId);
+                        commitEvent(false);
+
+                        if( debugLevel >= 1 )
+                            logger.debug(1, "[id=" + packetId + "] No client wants this message.");
+
+                        continue;
+                    }
+
+                    if( debugLevel >= 1 )
+                        logger.debug(1, "[id=" + packetId + "] At least one client wants this message.");
+
+                    while( newMessage ) Thread.sleep(1);
+
+                    // Clear the byte buffer
+                    messageBody.clear();
+                    messageData.clear();
+
+                    // Extract the log message from the packet
+                    message = data.substring(data.indexOf("L "), data.length()-1);
+
+                    // Include the current timestamp in case the one in the message is mangled
+                    serverTimestamp = (int) (System.currentTimeMillis()/1000);
+
+                    messageBody.putInt(serverTimestamp);
+                    messageBody.put(messageInfo[0].getBytes("UTF-8")).put(BYTE_ZERO);
+                    messageBody.put(messageInfo[1].getBytes("UTF-8")).put(BYTE_ZERO);
+                    messageBody.put(message.getBytes("UTF-8")).put(BYTE_ZERO);
+                    messageBody.flip();
+
+                    // Assemble the packet data
+                    messageData.putInt(PACKET_HEADER);
+                    messageData.put(PTYPE_MESSAGE_DATA);
+                    messageData.putShort((short)(messageBody.limit()+1));
+                    messageData.put(PROTOCOL_VERSION);
+                    messageData.put(messageBody);
+                    messageData.flip();
+
+                    messageReceived = received;
+                    messageReady = System.nanoTime();
+                    messageServer = serverSlot;
+                    receiveLatency.record(messageReady - received);
+
+                    // Set the new message flag
+                    fanOutStage.busy();
+                    newMessage = true;
+                    commitEvent(true);
+
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "Set the new message flag.");
+                }
+            }
+        }
+
+        private void commitEvent(boolean wanted)
+        {
+            event.end();
+
+            // Only slow datagrams get past the threshold, so nothing is built for the rest
+            if( event.shouldCommit() )
+            {
+                event.source = packet.getAddress().getHostAddress() + ":" + packet.getPort();
+                event.size = packet.getLength();
+                event.wanted = wanted;
+                event.commit();
+            }
+        }
+
+        private boolean isWanted(String i, String p)
+        {
+            for( int x = 0; x < maxClients; x++ )
+            {
+                if( connections[x].isAlive() )
+                    if( connections[x].getWantsIP().equals(i) )
+                        if( connections[x].getWantsPort().equals(p) )
+                            return true;
+            }
+
+            return false;
+        } 
+    }
+
+    /*
+     * Send a message to all connected clients who want it
+     */
+    private static class SendConsoleMessage implements Runnable
+    {
+        private int i = 0;
+        private int queued = 0;
+        private int dropped = 0;
+        private long relayed = 0;
+        private Frame message;
+        private DatagramRelayedEvent event;
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            fanOutStage.setOwner(Thread.currentThread());
+
+            try
+            {
+                for(;;)
+                {
+                    while( ! newMessage ) Thread.sleep(10);
+
+                    // The clients' writer threads share one copy of the message
+                    message = null;
+                    queued = 0;
+                    dropped = 0;
+
+                    event = new DatagramRelayedEvent();
+                    event.begin();
+
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "New message flag is set, processing new outgoing message.");
+
+                    // Send the message to the clients
+                    for( i = 0; i < maxClients; i++ )
+                    {
+                        if( connections[i].isAlive() )
+                        {
+                            if( connections[i].getWantsIP().equals(messageInfo[0]) )
+                            {
+                                if( connections[i].getWantsPort().equals(messageInfo[1]) )
+                                {
+                                    if( message == null )
+                                        message = new Frame(Arrays.copyOf(messageData.array(), messageData.limit()), messageReceived, messageReady);
+
+                                    // A client which cannot keep up misses messages rather than holding up the others
+                                    if( connections[i].send(message) == 0 )
+                                    {
+                                        queued++;
+                                        queuedMessages.increment();
+
+                                        if( debugLevel >= 2 )
+                                            logger.debug(2, "Queued this message for " + connections[i].getClientString() + ".");
+                                    }
+                                    else
+                                    {
+                                        connections[i].record(FlightRecorder.SEND_QUEUE_FULL, 0);
+                                        droppedMessages.increment();
+                                        dropped++;
+
+                                        if( debugLevel >= 2 )
+                                            logger.debug(2, "Dropped this message for " + connections[i].getClientString() + " (send queue is full).");
+                                    }
+                                }
+                            }
+                        }
+                    }
+
+                    // Increment the relayed packets counter
+                    relayedPackets.increment();
+                    serverTraffic.relayed(messageServer);
+                    relayed++;
+
+                    flightRecorder.record(FlightRecorder.PACKET_RELAYED, relayed, queued);
+
+                    event.end();
+
+                    if( event.shouldCommit() )
+                    {
+                        event.source = messageInfo[0] + ":" + messageInfo[1];
+                        event.size = messageData.limit();
+                        event.queued = queued;
+                        event.dropped = dropped;
+                        event.commit();
+                    }
+
+                    // Clear the new message flag
+                    newMessage = false;
+                    fanOutStage.idle();
+
+                    if( debugLevel >= 3 )
+                        logger.debug(3, "Cleared the new message flag.");
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+    }
+
+    /*
+     * Check for disconnected clients
+     *
+     * Each client has its own heartbeat on a timer wheel, spread out by a
+     * random jitter so the checks do not all happen at once.  A heartbeat is
+     * skipped if something was written to the client during the interval,
+     * since that write would have failed just the same on a dead socket.
+     */
+    private static class CheckConnection implements Runnable
+    {
+        private List<Heartbeat> due = new ArrayList<Heartbeat>();
+        private Heartbeat hb;
+        private Connection c;
+        private long now;
+        private int i = 0;
+
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                for(;;)
+                {
+                    Thread.sleep(HEARTBEAT_TICK);
+
+                    due.clear();
+                    now = System.currentTimeMillis();
+                    heartbeatWheel.expire(now, due);
+
+                    // Summarize any log lines which were held back
+                    logLimiter.flush(now);
+
+                    for( i = 0; i < due.size(); i++ )
+                    {
+                        hb = due.get(i);
+                        c = hb.connection;
+
+                        if( ! c.isAlive() )
+                            continue;
+
+                        // Waiting for a client to acknowledge a heartbeat
+                        if( c.isAckOutstanding() )
+                        {
+                            if( now < c.getAckDeadline() )
+                            {
+                                heartbeatWheel.schedule(hb, c.getAckDeadline());
+                                continue;
+                            }
+
+                            // The client did not acknowledge its first heartbeat, so it never will
+                            if( ! c.isAckCapable() )
+                            {
+                                c.clearAck();
+                                Heartbeat.schedule(hb, c.getLastProbe(), heartbeatInterval());
+                                continue;
+                            }
+
+                            if( c.getAckMisses() + 1 >= HEARTBEAT_ACK_RETRIES )
+                            {
+                                logger.writeln( "Removing client " + c.getClientString() + " : Heartbeat was not acknowledged." );
+                                c.record(FlightRecorder.HEARTBEAT_TIMEOUT, 0);
+                                deadPeerRemovals++;
+                                c.closeSocket();
+                                c.kill();
+                                continue;
+                            }
+
+                            // Try once more, allowing twice as long.  The writer thread
+                            // must know an ack is due before it writes the heartbeat.
+                            c.expectAck(now, true);
+
+                            if( ! c.sendHeartbeat() )
+                            {
+                                logger.writeln( "Removing client " + c.getClientString() + " : No response to socket check." );
+                                c.closeSocket();
+                                c.kill();
+                                continue;
+                            }
+
+                            heartbeatWheel.schedule(hb, c.getAckDeadline());
+                            continue;
+                        }
+
+                        // Clients which acknowledge heartbeats are probed on their own interval, busy or not
+                        if( c.isAckCapable() )
+                        {
+                            if( now - c.getLastProbe() < heartbeatAckInterval )
+                            {
+                                Heartbeat.schedule(hb, c.getLastProbe(), heartbeatAckInterval);
+                                continue;
+                            }
+
+                            c.expectAck(now, false);
+
+                            if( ! c.sendHeartbeat() )
+                            {
+                                logger.writeln( "Removing client " + c.getClientString() + " : No response to socket check." );
+                                c.closeSocket();
+                                c.kill();
+                                continue;
+                            }
+
+                            heartbeatWheel.schedule(hb, c.getAckDeadline());
+                            continue;
+                        }
+
+                        if( now - c.getLastWrite() < heartbeatInterval() )
+                        {
+                            Heartbeat.schedule(hb, c.getLastWrite(), heartbeatInterval());
+                            continue;
+                        }
+
+                        // Watch for an acknowledgement of the first heartbeat to see if the client sends them
+                        boolean trial = (heartbeatAckEnabled == 1 && c.getLastProbe() == 0);
+
+                        if( trial )
+                            c.expectAck(now, false);
+
+                        // A client whose queue is still full has not taken anything for a whole interval
+                        if( ! c.sendHeartbeat() )
+                        {
+                            logger.writeln( "Removing client " + c.getClientString() + " : No response to socket check." );
+                            c.closeSocket();
+                            c.kill();
+                            continue;
+                        }
+
+                        if( trial )
+                            heartbeatWheel.schedule(hb, c.getAckDeadline());
+                        else
+                            Heartbeat.schedule(hb, now, heartbeatInterval());
+                    }
+
+                    hb = null;
+                    c = null;
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+    }
+
+    private static long heartbeatInterval()
+    {
+        return Math.max(clientCheckInterval, HEARTBEAT_TICK);
+    }
+
+    /*
+     * Pending heartbeat of a client connection
+     */
+    private static class Heartbeat extends TimerWheel.Timeout
+    {
+        private static Random random = new Random();
+
+        final Connection connection;
+
+        public Heartbeat(Connection c)
+        {
+            connection = c;
+        }
+
+        // Schedule the next heartbeat one interval (plus up to a tenth of it) after the given time
+        public static void schedule(Heartbeat hb, long from, long interval)
+        {
+            long jitter;
+
+            synchronized( random )
+            {
+                jitter = (long)(random.nextDouble() * (interval/10));
+            }
+
+            heartbeatWheel.schedule(hb, from + interval + jitter);
+        }
+    }
+
+    /*
+     * Periodically log some statsistics
+     */
+    private static class LogStats implements Runnable
+    {
+        long uptime = 0;
+        long upDays = 0;
+        long upHours = 0;
+        long upMinutes = 0;
+        long usedMem = 0;
+        long freeMem = 0;
+        long totalMem = 0;
+        long maxMem = Runtime.getRuntime().maxMemory()/1024;
+        long tlsHandshakes = 0;
+
+        private String uptimeMessage = new String();
+        private String memoryMessage = new String();
+
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            for(;;)
+            {
+                try
+                {
+                    Thread.sleep(logStatsInterval);
+
+                    totalMem = Runtime.getRuntime().totalMemory()/1024;
+                    freeMem = Runtime.getRuntime().freeMemory()/1024;
+                    usedMem = totalMem - freeMem;
+
+                    uptime = ((System.currentTimeMillis() - START_TIME)/1000)/60;
+                    upDays = uptime/1440;
+                    upHours = (uptime - (upDays*1440))/60;
+                    upMinutes = (uptime - (upDays*1440) - (upHours*60));
+                    uptimeMessage = "";
+
+                    if( upDays == 1 )
+                        uptimeMessage += upDays + " day ";
+                    else
+                        uptimeMessage += upDays + " days ";
+
+                    if( upHours == 1 )
+                        uptimeMessage += upHours + " hour ";
+                    else
+                        uptimeMessage += upHours + " hours ";
+
+                    if( upMinutes == 1 )
+                        uptimeMessage += upMinutes + " minute";
+                    else
+                        uptimeMessage += upMinutes + " minutes";
+
+                    memoryMessage  = "max=" + maxMem + "k, ";
+                    memoryMessage += "allocated=" + totalMem + "k, ";
+                    memoryMessage += "used=" + usedMem + "k, ";
+                    memoryMessage += "free=" + freeMem + "k";
+
+                    logger.writeln( "[STATS] Uptime: " + uptimeMessage );
+                    logger.writeln( "[STATS] Memory: " + memoryMessage );
+
+                    for( JvmHealth.Item g : jvmHealth.getGcs() )
+                        logger.writeln( "[STATS] GC " + g.name + ": collections=" + g.a + ", time=" + g.b + "ms" + ((g.c >= 0)?(", last pause=" + g.c + "ms"):"") );
+
+                    for( JvmHealth.Item p : jvmHealth.getPools() )
+                        logger.writeln( "[STATS] Buffer pool " + p.name + ": buffers=" + p.a + ", used=" + (p.b/1024) + "k, capacity=" + (p.c/1024) + "k" );
+
+                    logger.writeln( "[STATS] Threads: live=" + jvmHealth.getLiveThreads() + ", peak=" + jvmHealth.getPeakThreads() + ", daemon=" + jvmHealth.getDaemonThreads() );
+
+                    if( jvmHealth.getProcessCpuLoad() >= 0 )
+                        logger.writeln( "[STATS] Process CPU: load=" + (jvmHealth.getProcessCpuLoad()/10.0) + "%, time=" + (jvmHealth.getProcessCpuTime()/1000) + "s" );
+
+                    for( JvmHealth.Item t : jvmHealth.getThreads() )
+                        logger.writeln( "[STATS] Thread " + t.name + " CPU: time=" + (t.a/1000) + "ms, recent=" + (t.b/10.0) + "%" );
+
+                    logger.writeln( "[STATS] Total packets received: " + totalPackets.sum() );
+                    logger.writeln( "[STATS] Total packets relayed: " + relayedPackets.sum() );
+                    logger.writeln( "[STATS] Accepted client connections: " + acceptedConnections.sum() );
+                    logger.writeln( "[STATS] Rejected client connections: " + rejectedConnections.sum() );
+                    logger.writeln( "[STATS] Clients currently connected: " + numClients.sum() );
+
+                    for( LatencyHistogram h : latencyHistograms )
+                        logger.writeln( "[STATS] Latency " + h.summary() );
+
+                    List<Integer> servers = serverTraffic.sorted();
+
+                    for( int i = 0; i < servers.size() && i < 5; i++ )
+                    {
+                        int slot = servers.get(i);
+                        logger.writeln( "[STATS] Game server " + serverTraffic.serverString(slot) + ": datagrams=" + serverTraffic.getDatagrams(slot) + ", bytes=" + serverTraffic.getBytes(slot) + ", relayed=" + serverTraffic.getRelayed(slot) );
+                    }
+
+                    for( HeavyHitters.Source s : heavyHitters.top(heavyHitterReport, false) )
+                        logger.writeln( "[STATS] Heavy source " + s.address + ": datagrams=" + s.datagrams + " (+/-" + s.error + "), bytes=" + s.bytes );
+
+                    logger.writeln( "[STATS] Log lines dropped (queue full): " + logger.dropped() );
+
+                    if( heartbeatAckEnabled == 1 )
+                    {
+                        logger.writeln( "[STATS] Clients removed for unacknowledged heartbeats: " + deadPeerRemovals );
+
+                        for( int i = 0; i < maxClients; i++ )
+                        {
+                            if( connections[i].isAlive() && connections[i].getRtt() > 0 )
+                                logger.writeln( "[STATS] Client " + connections[i].getClientString() + " RTT: srtt=" + (connections[i].getRtt()/1000) + "ms, rttvar=" + (connections[i].getRttVariance()/1000) + "ms" );
+                        }
+                    }
+
+                    if( stallTimeout > 0 )
+                        logger.writeln( "[STATS] Pipeline stalls: " + pipelineStalls );
+
+                    if( maxClientsPerIp > 0 || maxClientsPerServer > 0 )
+                        logger.writeln( "[STATS] Connection cap rejections: per-IP=" + ipCapRejections + ", per-server=" + serverCapRejections );
+
+                    if( autoBanEnabled == 1 )
+                        logger.writeln( "[STATS] Clients currently banned: " + bannedClients.size() );
+
+                    if( autoBanEnabled == 1 )
+                        logger.writeln( "[STATS] Failed connection tracker: tracked=" + failureTracker.size() + ", capacity=" + failureTracker.capacity() + ", evictions=" + failureTracker.evictions() );
+
+                    if( accessList != null )
+                        accessList.logStats();
+
+                    if( tlsEnabled == 1 )
+                    {
+                        tlsHandshakes = tlsFullHandshakes + tlsResumedHandshakes;
+
+                        logger.writeln( "[STATS] TLS handshakes: full=" + tlsFullHandshakes + ", resumed=" + tlsResumedHandshakes + ", failed=" + tlsFailedHandshakes );
+
+                        if( tlsHandshakes > 0 )
+                            logger.writeln( "[STATS] TLS session resumption rate: " + ((tlsResumedHandshakes*100)/tlsHandshakes) + "%" );
+
+                        if( tlsFullHandshakes > 0 )
+                            logger.writeln( "[STATS] TLS full handshake CPU time: avg=" + ((tlsFullHandshakeCpu/tlsFullHandshakes)/1000) + "us, total=" + (tlsFullHandshakeCpu/1000000) + "ms" );
+
+                        if( tlsResumedHandshakes > 0 )
+                            logger.writeln( "[STATS] TLS resumed handshake CPU time: avg=" + ((tlsResumedHandshakeCpu/tlsResumedHandshakes)/1000) + "us, total=" + (tlsResumedHandshakeCpu/1000000) + "ms" );
+                    }
+                }
+                catch( InterruptedException ie )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                    return;
+                }
+                catch( Exception e )
+                {
+                    if( debugLevel >= 3 )
+                        logger.debug(3, name + " [ID=" + id + "] caught an exception.");
+
+                    logger.writeln( "[ERROR] LogStats thread caught an exception:" );
+                    logger.writeln( "[ERROR] " + e.toString() );
+                    flightRecorder.error(e);
+
+                    if( debugLevel >= 2 )
+                    {
+                        StackTraceElement[] ste = e.getStackTrace();
+
+                        for(int x = 0; x < ste.length; x++)
+                            logger.debug(2, ste[x].toString() );
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Check for expired bans
+     */
+    private static class CheckBans implements Runnable
+    {
+        private List<BanEntry> expired = new ArrayList<BanEntry>();
+        private BanEntry entry;
+        private long lastSnapshot = System.currentTimeMillis();
+        private int i;
+
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                for(;;)
+                {
+                    Thread.sleep(BAN_CHECK_INTERVAL);
+
+                    // Only the bans which are due on this tick are looked at
+                    expired.clear();
+                    banWheel.expire(System.currentTimeMillis(), expired);
+
+                    for( i = 0; i < expired.size(); i++ )
+                    {
+                        entry = expired.get(i);
+
+                        // The entry is stale if the address has been banned again since
+                        if( bannedClients.unban(entry.hi, entry.lo, entry.expires) )
+                        {
+                            logger.writeln( "[AUTO-BAN] Removing expired ban for " + BanTable.addressString(entry.hi, entry.lo) + "." );
+
+                            BanEvent event = new BanEvent();
+
+                            if( event.isEnabled() )
+                            {
+                                event.address = BanTable.addressString(entry.hi, entry.lo);
+                                event.action = "expired";
+                                event.commit();
+                            }
+
+                            if( firewallSync != null )
+                                firewallSync.unbanned(entry.hi, entry.lo);
+                        }
+                    }
+
+                    entry = null;
+
+                    // Save the bans now and then so they survive a crash as well as a restart
+                    if( banSnapshotFile.length() > 0 && banSnapshotInterval > 0 )
+                    {
+                        if( System.currentTimeMillis() - lastSnapshot >= banSnapshotInterval )
+                        {
+                            lastSnapshot = System.currentTimeMillis();
+                            saveBanSnapshot();
+                        }
+                    }
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+    }
+
+    /*
+     * Pending expiry of an auto-ban
+     */
+    private static class BanEntry extends TimerWheel.Timeout
+    {
+        final long hi;
+        final long lo;
+        final long expires;
+
+        public BanEntry(long hi, long lo, long expires)
+        {
+            this.hi = hi;
+            this.lo = lo;
+            this.expires = expires;
+        }
+    }
+
+    /*
+     * Fixed-size table of failed connection attempts
+     *
+     * Counters are kept per address in a set-associative table of primitive
+     * arrays.  When every way of a set is in use, the least recently failed
+     * address in that set is evicted, so a scan from any number of addresses
+     * never grows the heap.  Addresses which keep failing stay in the table
+     * and are banned once they reach autoBanThreshold within autoBanTimeLimit.
+     * Not private so that bench/FailureTrackerBench.java can drive it.
+     */
+    static class FailureTracker
+    {
+        private static final int WAYS = 4;
+
+        private final long[] hi;
+        private final long[] lo;
+        private final long[] first;
+        private final long[] last;
+        private final int[] count;
+        private final int setMask;
+        private int size = 0;
+        private long evictions = 0;
+
+        public FailureTracker(int capacity)
+        {
+            int sets = Integer.highestOneBit(Math.max(capacity/WAYS, 1));
+
+            hi = new long[sets*WAYS];
+            lo = new long[sets*WAYS];
+            first = new long[sets*WAYS];
+            last = new long[sets*WAYS];
+            count = new int[sets*WAYS];
+            setMask = sets-1;
+        }
+
+        private int setOf(long h, long l)
+        {
+            long x = (h * 0x9E3779B97F4A7C15L) ^ l;
+            x *= 0xC2B2AE3D27D4EB4FL;
+            return ((int)(x ^ (x >>> 32)) & setMask) * WAYS;
+        }
+
+        // Record a failure and return the number of failures counted for the
+        // address within the time limit.  The counter is dropped once it
+        // reaches the ban threshold.
+        public synchronized int recordFailure(long h, long l, long now)
+        {
+            int base = setOf(h, l);
+            int victim = base;
+            int i;
+
+            for( i = base; i < base+WAYS; i++ )
+            {
+                if( count[i] > 0 && hi[i] == h && lo[i] == l )
+                    break;
+
+                // Prefer a free way, otherwise the least recently used one
+                if( count[victim] > 0 && (count[i] == 0 || last[i] < last[victim]) )
+                    victim = i;
+            }
+
+            if( i == base+WAYS )
+            {
+                if( count[victim] > 0 )
+                    evictions++;
+                else
+                    size++;
+
+                i = victim;
+                hi[i] = h;
+                lo[i] = l;
+                count[i] = 0;
+            }
+
+            // Start counting again if the first failure is outside the time limit
+            if( count[i] == 0 || (autoBanTimeLimit > 0 && now - first[i] >= autoBanTimeLimit) )
+            {
+                first[i] = now;
+                count[i] = 0;
+            }
+
+            last[i] = now;
+
+            int num = ++count[i];
+
+            if( autoBanThreshold > 0 && num >= autoBanThreshold )
+            {
+                count[i] = 0;
+                size--;
+            }
+
+            return num;
+        }
+
+        public synchronized boolean clear(long h, long l)
+        {
+            int base = setOf(h, l);
+
+            for( int i = base; i < base+WAYS; i++ )
+            {
+                if( count[i] > 0 && hi[i] == h && lo[i] == l )
+                {
+                    count[i] = 0;
+                    size--;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        public synchronized int size()
+        {
+            return size;
+        }
+
+        public int capacity()
+        {
+            return count.length;
+        }
+
+        public synchronized long evictions()
+        {
+            return evictions;
+        }
+    }
+
+    /*
+     * Table of banned client addresses
+     *
+     * Every address is kept as two longs (IPv4 addresses in their IPv4-mapped
+     * IPv6 form) in a linear probing table, so checking an address on the
+     * accept path never boxes or allocates.  Readers take an optimistic read
+     * stamp and only fall back to the read lock if a writer got in the way.
+     */
+    private static class BanTable
+    {
+        private static final long IPV4_MAPPED = 0x0000FFFF00000000L;
+
+        private final StampedLock lock = new StampedLock();
+
+        // Three longs per slot: high and low address bits and the expiry time (0 = empty)
+        private long[] slots = new long[3*64];
+        private volatile int size = 0;
+        private volatile long version = 0;
+
+        public static long addressHigh(InetAddress a)
+        {
+            if( a instanceof Inet4Address )
+                return 0L;
+
+            return toLong(a.getAddress(), 0);
+        }
+
+        public static long addressLow(InetAddress a)
+        {
+            // Inet4Address.hashCode() is the address itself, so no copy is needed
+            if( a instanceof Inet4Address )
+                return IPV4_MAPPED | (a.hashCode() & 0xFFFFFFFFL);
+
+            return toLong(a.getAddress(), 8);
+        }
+
+        public static long addressLow(int ipv4)
+        {
+            return IPV4_MAPPED | (ipv4 & 0xFFFFFFFFL);
+        }
+
+        private static long toLong(byte[] b, int off)
+        {
+            long v = 0;
+
+            for( int i = off; i < off+8; i++ )
+                v = (v << 8) | (b[i] & 0xFF);
+
+            return v;
+        }
+
+        private static int hash(long hi, long lo)
+        {
+            long h = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int)(h ^ (h >>> 32));
+        }
+
+        public boolean isBanned(InetAddress a)
+        {
+            if( a instanceof Inet4Address )
+                return isBanned(a.hashCode());
+
+            byte[] b = a.getAddress();
+            return isBanned(toLong(b, 0), toLong(b, 8));
+        }
+
+        public boolean isBanned(int ipv4)
+        {
+            return isBanned(0L, addressLow(ipv4));
+        }
+
+        public boolean isBanned(long hi, long lo)
+        {
+            long stamp = lock.tryOptimisticRead();
+            boolean found = (find(slots, hi, lo) >= 0);
+
+            if( ! lock.validate(stamp) )
+            {
+                stamp = lock.readLock();
+
+                try
+                {
+                    found = (find(slots, hi, lo) >= 0);
+                }
+                finally
+                {
+                    lock.unlockRead(stamp);
+                }
+            }
+
+            return found;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        // Incremented whenever a ban is added or removed
+        public long version()
+        {
+            return version;
+        }
+
+        public static String addressString(long hi, long lo)
+        {
+            byte[] b;
+
+            if( hi == 0 && (lo & 0xFFFFFFFF00000000L) == IPV4_MAPPED )
+            {
+                b = new byte[4];
+
+                for( int i = 0; i < 4; i++ )
+                    b[i] = (byte)(lo >>> (24 - i*8));
+            }
+            else
+            {
+                b = new byte[16];
+
+                for( int i = 0; i < 8; i++ )
+                {
+                    b[i] = (byte)(hi >>> (56 - i*8));
+                    b[i+8] = (byte)(lo >>> (56 - i*8));
+                }
+            }
+
+            try
+            {
+                return InetAddress.getByAddress(b).getHostAddress();
+            }
+            catch( UnknownHostException uhe )
+            {
+                return "?";
+            }
+        }
+
+        // Copy the table as (high, low, expires) triples
+        public long[] entries()
+        {
+            long stamp = lock.readLock();
+
+            try
+            {
+                return copy();
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Write the table in the ban snapshot format and return the version
+        // it was written at.  Writers only wait while the table is copied,
+        // not while it is written out.
+        public long writeSnapshot(java.nio.channels.FileChannel ch) throws IOException
+        {
+            long[] bans;
+            long v;
+            long stamp = lock.readLock();
+
+            try
+            {
+                bans = copy();
+                v = version;
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(BAN_SNAPSHOT_HEADER_SIZE + 8*bans.length);
+
+            buf.putInt(BAN_SNAPSHOT_MAGIC);
+            buf.putInt(BAN_SNAPSHOT_VERSION);
+            buf.putLong(System.currentTimeMillis());
+            buf.putLong(bans.length/3);
+
+            for( int i = 0; i < bans.length; i++ )
+                buf.putLong(bans[i]);
+
+            buf.flip();
+            while( buf.hasRemaining() ) ch.write(buf);
+
+            return v;
+        }
+
+        // Called with the lock held
+        private long[] copy()
+        {
+            long[] out = new long[size*3];
+            int n = 0;
+
+            for( int off = 0; off < slots.length; off += 3 )
+            {
+                if( slots[off+2] == 0 )
+                    continue;
+
+                out[n++] = slots[off];
+                out[n++] = slots[off+1];
+                out[n++] = slots[off+2];
+            }
+
+            return out;
+        }
+
+        public void ban(long hi, long lo, long expires)
+        {
+            long stamp = lock.writeLock();
+
+            try
+            {
+                int i = find(slots, hi, lo);
+
+                if( i < 0 )
+                {
+                    if( (size+1)*2 > slots.length/3 )
+                        resize(slots.length/3*2);
+
+                    i = ~find(slots, hi, lo);
+                    slots[i] = hi;
+                    slots[i+1] = lo;
+                    size++;
+                }
+
+                slots[i+2] = expires;
+                version++;
+            }
+            finally
+            {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Remove a ban, but only if it has not been replaced by a newer one
+        public boolean unban(long hi, long lo, long expires)
+        {
+            long stamp = lock.writeLock();
+
+            try
+            {
+                int i = find(slots, hi, lo);
+
+                if( i < 0 || slots[i+2] != expires )
+                    return false;
+
+                remove(i);
+                size--;
+                version++;
+                return true;
+            }
+            finally
+            {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Returns the slot offset of the key, or the complement of the free
+        // slot where it would go.  The probe is bounded so that an optimistic
+        // reader cannot spin on a table which is being modified.
+        private static int find(long[] t, long hi, long lo)
+        {
+            int n = t.length/3;
+            int mask = n-1;
+            int i = hash(hi, lo) & mask;
+
+            for( int probes = 0; probes < n; probes++ )
+            {
+                int off = i*3;
+
+                if( t[off+2] == 0 )
+                    return ~off;
+
+                if( t[off] == hi && t[off+1] == lo )
+                    return off;
+
+                i = (i+1) & mask;
+            }
+
+            return ~0;
+        }
+
+        // Backward shift deletion keeps probe sequences intact without tombstones
+        private void remove(int off)
+        {
+            int mask = slots.length/3 - 1;
+            int hole = off/3;
+            int i = hole;
+
+            for(;;)
+            {
+                i = (i+1) & mask;
+
+                if( slots[i*3+2] == 0 )
+                    break;
+
+                int home = hash(slots[i*3], slots[i*3+1]) & mask;
+
+                // Move the entry into the hole if the hole lies on its probe path
+                if( ((i - home) & mask) >= ((i - hole) & mask) )
+                {
+                    System.arraycopy(slots, i*3, slots, hole*3, 3);
+                    hole = i;
+                }
+            }
+
+            slots[hole*3] = 0;
+            slots[hole*3+1] = 0;
+            slots[hole*3+2] = 0;
+        }
+
+        private void resize(int capacity)
+        {
+            long[] old = slots;
+            long[] t = new long[capacity*3];
+
+            for( int off = 0; off < old.length; off += 3 )
+            {
+                if( old[off+2] != 0 )
+                {
+                    int i = ~find(t, old[off], old[off+1]);
+                    System.arraycopy(old, off, t, i, 3);
+                }
+            }
+
+            slots = t;
+        }
+    }
+
+    /*
+     * Hashed timer wheel
+     *
+     * Timeouts are hashed into slots by their deadline tick and each tick
+     * only walks the slot which is due, so advancing the wheel costs the
+     * same no matter how many timeouts are pending.
+     */
+    private static class TimerWheel<T extends TimerWheel.Timeout>
+    {
+        private final long tickMillis;
+        private final long startMillis;
+        private final Timeout[] wheel;
+        private final int mask;
+        private long currentTick = 0;
+        private int pending = 0;
+
+        // Timeouts are intrusive: anything scheduled on the wheel extends this
+        // class, so a pending timeout costs no allocation beyond the item itself
+        public static class Timeout
+        {
+            long tick;
+            Timeout prev;
+            Timeout next;
+            boolean scheduled = false;
+
+            public boolean isScheduled()
+            {
+                return scheduled;
+            }
+        }
+
+        public TimerWheel(long tickMillis, int ticksPerWheel)
+        {
+            int n = Integer.highestOneBit(Math.max(ticksPerWheel, 2) - 1) << 1;
+
+            this.tickMillis = tickMillis;
+            this.startMillis = System.currentTimeMillis();
+            this.wheel = new Timeout[n];
+            this.mask = n-1;
+        }
+
+        public synchronized void schedule(T t, long deadline)
+        {
+            if( t.scheduled )
+                unlink(t);
+
+            // Round up so a timeout never fires before its deadline
+            long tick = (deadline - startMillis + tickMillis - 1) / tickMillis;
+            int slot;
+
+            t.tick = Math.max(tick, currentTick+1);
+            t.scheduled = true;
+            slot = (int)(t.tick & mask);
+            t.next = wheel[slot];
+
+            if( t.next != null )
+                t.next.prev = t;
+
+            wheel[slot] = t;
+            pending++;
+        }
+
+        public synchronized boolean cancel(T t)
+        {
+            if( ! t.scheduled )
+                return false;
+
+            unlink(t);
+            return true;
+        }
+
+        public synchronized int size()
+        {
+            return pending;
+        }
+
+        // Advance the wheel to the given time and collect every timeout which is due
+        @SuppressWarnings("unchecked")
+        public synchronized int expire(long now, List<T> expired)
+        {
+            long target = (now - startMillis) / tickMillis;
+            int count = 0;
+
+            while( currentTick < target )
+            {
+                currentTick++;
+
+                Timeout t = wheel[(int)(currentTick & mask)];
+
+                while( t != null )
+                {
+                    Timeout next = t.next;
+
+                    if( t.tick <= currentTick )
+                    {
+                        unlink(t);
+                        expired.add((T)t);
+                        count++;
+                    }
+
+                    t = next;
+                }
+            }
+
+            return count;
+        }
+
+        private void unlink(Timeout t)
+        {
+            int slot = (int)(t.tick & mask);
+
+            if( t.prev != null )
+                t.prev.next = t.next;
+            else
+                wheel[slot] = t.next;
+
+            if( t.next != null )
+                t.next.prev = t.prev;
+
+            t.prev = null;
+            t.next = null;
+            t.scheduled = false;
+            pending--;
+        }
+    }
+
+    /*
+     * Export the ban table as a kernel firewall ruleset
+     *
+     * The ruleset file is regenerated from the ban table (at most once per
+     * second) whenever a ban is added or removed, and each change is also
+     * passed to the optional hook command as it happens:
+     *
+     *    <hook> add <address> <seconds>    (0 seconds for a permanent ban)
+     *    <hook> del <address>
+     *    <hook> load <file>                (at startup and after missed changes)
+     *
+     * Bans carry their remaining time so the kernel expires them by itself
+     * if the relay is not running to remove them.  The output is checked
+     * offline by test/FirewallSyncTest.java.
+     */
+    static class FirewallSync implements Runnable
+    {
+        final static int QUEUE_SIZE = 4096;
+
+        // Largest timeout ipset accepts, in seconds
+        final static long IPSET_MAX_TIMEOUT = 2147483;
+
+        private java.util.concurrent.ArrayBlockingQueue<long[]> changes = new java.util.concurrent.ArrayBlockingQueue<long[]>(QUEUE_SIZE);
+        private volatile boolean overflowed = true;
+        private long writtenVersion = -1;
+        private long lastWrite = 0;
+
+        private long id = 0;
+        private String name = new String();
+
+        // A change of { hi, lo, expires }, with expires = 0 for a removal
+        public void banned(long hi, long lo, long expires)
+        {
+            if( ! changes.offer(new long[] { hi, lo, expires }) )
+                overflowed = true;
+        }
+
+        public void unbanned(long hi, long lo)
+        {
+            if( ! changes.offer(new long[] { hi, lo, 0 }) )
+                overflowed = true;
+        }
+
+        public void run()
+        {
+            long[] change;
+
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                for(;;)
+                {
+                    change = changes.poll(BAN_CHECK_INTERVAL, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+                    if( firewallFile.length() > 0 && bannedClients.version() != writtenVersion && System.currentTimeMillis() - lastWrite >= BAN_CHECK_INTERVAL )
+                        writeFile();
+
+                    if( firewallHook.length() == 0 )
+                    {
+                        changes.clear();
+                        continue;
+                    }
+
+                    // Changes which could not be queued are picked up by loading the whole set again
+                    if( overflowed && (firewallFile.length() == 0 || bannedClients.version() == writtenVersion) )
+                    {
+                        overflowed = false;
+                        changes.clear();
+                        change = null;
+
+                        if( firewallFile.length() > 0 )
+                            runHook("load", firewallFile, null);
+                        else
+                            reloadHook();
+                    }
+
+                    while( change != null )
+                    {
+                        String[] args = hookArgs(change, System.currentTimeMillis());
+
+                        runHook(args[0], args[1], (args.length > 2)?args[2]:null);
+                        change = changes.poll();
+                    }
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+
+        // Without a ruleset file every ban is passed to the hook one at a time
+        private void reloadHook() throws InterruptedException
+        {
+            long[] bans = bannedClients.entries();
+            long now = System.currentTimeMillis();
+
+            for( int i = 0; i < bans.length; i += 3 )
+                runHook("add", BanTable.addressString(bans[i], bans[i+1]), Long.toString(remaining(bans[i+2], now)));
+        }
+
+        // Hook arguments for a change of { hi, lo, expires }
+        static String[] hookArgs(long[] change, long now)
+        {
+            if( change[2] == 0 )
+                return new String[] { "del", BanTable.addressString(change[0], change[1]) };
+            else
+                return new String[] { "add", BanTable.addressString(change[0], change[1]), Long.toString(remaining(change[2], now)) };
+        }
+
+        private void writeFile()
+        {
+            File file = new File(firewallFile);
+            File temp = new File(firewallFile + ".tmp");
+            Writer out = null;
+            long version = bannedClients.version();
+
+            lastWrite = System.currentTimeMillis();
+
+            try
+            {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "US-ASCII"));
+                writeRuleset(out, bannedClients.entries(), lastWrite);
+                out.close();
+                out = null;
+
+                java.nio.file.Files.move(temp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                writtenVersion = version;
+
+                if( debugLevel >= 2 )
+                    logger.debug(2, "Wrote " + firewallFormat + " ruleset to " + firewallFile + ".");
+            }
+            catch( IOException ioe )
+            {
+                logger.writeln( "[FIREWALL] [ERROR] Failed to write " + firewallFile + "." );
+                logger.writeln( "[FIREWALL] [ERROR] " + ioe.toString() );
+            }
+            finally
+            {
+                try
+                {
+                    if( out != null ) out.close();
+                }
+                catch( IOException ioe )
+                {
+                    // Ignore
+                }
+            }
+        }
+
+        private void runHook(String action, String arg, String arg2) throws InterruptedException
+        {
+            List<String> cmd = new ArrayList<String>(Arrays.asList(firewallHook.split("\\s+")));
+            Process p = null;
+
+            cmd.add(action);
+            cmd.add(arg);
+
+            if( arg2 != null )
+                cmd.add(arg2);
+
+            try
+            {
+                ProcessBuilder pb = new ProcessBuilder(cmd);
+                pb.redirectErrorStream(true);
+                pb.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(System.getProperty("os.name").startsWith("Windows")?"NUL":"/dev/null")));
+                p = pb.start();
+
+                if( ! p.waitFor(firewallHookTimeout, java.util.concurrent.TimeUnit.MILLISECONDS) )
+                {
+                    logger.writeln( "[FIREWALL] [ERROR] Hook command timed out: " + firewallHook + " " + action + " " + arg );
+                    p.destroy();
+                }
+                else if( p.exitValue() != 0 )
+                {
+                    logger.writeln( "[FIREWALL] [ERROR] Hook command exited with status " + p.exitValue() + ": " + firewallHook + " " + action + " " + arg );
+                }
+            }
+            catch( IOException ioe )
+            {
+                logger.writeln( "[FIREWALL] [ERROR] Unable to run hook command " + firewallHook + "." );
+                logger.writeln( "[FIREWALL] [ERROR] " + ioe.toString() );
+            }
+            finally
+            {
+                if( p != null && Thread.currentThread().isInterrupted() )
+                    p.destroy();
+            }
+        }
+
+        // Remaining ban time in whole seconds, or 0 for a permanent ban
+        private static long remaining(long expires, long now)
+        {
+            if( expires == Long.MAX_VALUE )
+                return 0;
+
+            return Math.max(1, (expires - now + 999) / 1000);
+        }
+
+        /*
+         * Write the ruleset for the given (high, low, expires) triples.  The
+         * output depends only on the arguments and the configuration, and
+         * addresses are sorted, so the same bans always give the same file.
+         */
+        public static void writeRuleset(Writer out, long[] bans, long now) throws IOException
+        {
+            List<String> v4 = new ArrayList<String>();
+            List<String> v6 = new ArrayList<String>();
+            Integer[] order = new Integer[bans.length/3];
+            String ports;
+
+            for( int i = 0; i < order.length; i++ )
+                order[i] = i*3;
+
+            final long[] b = bans;
+
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer x, Integer y)
+                {
+                    int c = Long.compare(b[x] ^ Long.MIN_VALUE, b[y] ^ Long.MIN_VALUE);
+                    return (c != 0)?c:Long.compare(b[x+1] ^ Long.MIN_VALUE, b[y+1] ^ Long.MIN_VALUE);
+                }
+            });
+
+            for( int i = 0; i < order.length; i++ )
+            {
+                int off = order[i];
+
+                if( bans[off+2] <= now )
+                    continue;
+
+                String addr = BanTable.addressString(bans[off], bans[off+1]);
+                long secs = remaining(bans[off+2], now);
+
+                if( firewallFormat.equals("ipset") )
+                    addr = addr + ((secs == 0)?" timeout 0":(" timeout " + Math.min(secs, IPSET_MAX_TIMEOUT)));
+                else if( secs > 0 )
+                    addr = addr + " timeout " + secs + "s";
+
+                if( bans[off] == 0 && (bans[off+1] & 0xFFFFFFFF00000000L) == 0x0000FFFF00000000L )
+                    v4.add(addr);
+                else
+                    v6.add(addr);
+            }
+
+            ports = Integer.toString(clientListenPort);
+
+            if( tlsEnabled == 1 )
+                ports = ports + ", " + tlsListenPort;
+
+            out.write("# " + IDENTITY_STRING + " banned clients (" + (v4.size() + v6.size()) + " addresses)\n");
+
+            if( firewallFormat.equals("ipset") )
+            {
+                // Load with: ipset restore -f <file>
+                // Use with:  iptables -I INPUT -p tcp -m multiport --dports <ports> -m set --match-set <table>_v4 src -j DROP
+                out.write("create " + firewallTable + "_v4 hash:ip family inet timeout 0 -exist\n");
+                out.write("create " + firewallTable + "_v6 hash:ip family inet6 timeout 0 -exist\n");
+                out.write("flush " + firewallTable + "_v4\n");
+                out.write("flush " + firewallTable + "_v6\n");
+
+                for( int i = 0; i < v4.size(); i++ )
+                    out.write("add " + firewallTable + "_v4 " + v4.get(i) + "\n");
+
+                for( int i = 0; i < v6.size(); i++ )
+                    out.write("add " + firewallTable + "_v6 " + v6.get(i) + "\n");
+            }
+            else
+            {
+                // Load with: nft -f <file>.  The table is replaced as a whole.
+                out.write("add table inet " + firewallTable + "\n");
+                out.write("delete table inet " + firewallTable + "\n");
+                out.write("table inet " + firewallTable + " {\n");
+                writeNftSet(out, "banned_v4", "ipv4_addr", v4);
+                writeNftSet(out, "banned_v6", "ipv6_addr", v6);
+                out.write("\tchain input {\n");
+                out.write("\t\ttype filter hook input priority -10; policy accept;\n");
+                out.write("\t\ttcp dport { " + ports + " } ip saddr @banned_v4 drop\n");
+                out.write("\t\ttcp dport { " + ports + " } ip6 saddr @banned_v6 drop\n");
+                out.write("\t}\n");
+                out.write("}\n");
+            }
+        }
+
+        private static void writeNftSet(Writer out, String name, String type, List<String> elements) throws IOException
+        {
+            out.write("\tset " + name + " {\n");
+            out.write("\t\ttype " + type + "\n");
+            out.write("\t\tflags timeout\n");
+
+            if( elements.size() > 0 )
+            {
+                out.write("\t\telements = {\n");
+
+                for( int i = 0; i < elements.size(); i++ )
+                    out.write("\t\t\t" + elements.get(i) + ((i < elements.size()-1)?",\n":"\n"));
+
+                out.write("\t\t}\n");
+            }
+
+            out.write("\t}\n");
+        }
+    }
+
+    /*
+     * Reload the access list when its file changes
+     */
+    private static class AccessListReload implements Runnable
+    {
+        private File file = new File(accessListFile);
+        private long lastModified = file.lastModified();
+        private long length = file.length();
+        private AccessList list;
+
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                for(;;)
+                {
+                    Thread.sleep(accessListReloadInterval);
+
+                    if( file.lastModified() == lastModified && file.length() == length )
+                        continue;
+
+                    lastModified = file.lastModified();
+                    length = file.length();
+
+                    // Keep using the current list if the new one cannot be read
+                    if( (list = AccessList.load(file)) == null )
+                    {
+                        logger.writeln( "[ACCESS] [WARNING] Unable to read access list " + accessListFile + ", keeping the current rules." );
+                        continue;
+                    }
+
+                    // Lookups in progress finish against the old list
+                    accessList = list;
+                    list = null;
+
+                    logger.writeln( "[ACCESS] Reloaded " + accessList.size() + " access list rules from " + accessListFile + "." );
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+    }
+
+    /*
+     * CIDR allow/deny rules for client addresses
+     *
+     * Rules are compiled into a path-compressed binary trie over 128-bit keys
+     * (IPv4 rules live under the IPv4-mapped prefix), so a lookup visits at
+     * most one node per prefix bit no matter how many rules there are.  Nodes
+     * are held in parallel arrays to keep large lists compact in the heap.
+     * The most specific matching rule wins, and an address which matches no
+     * rule is allowed.
+     */
+    private static class AccessList
+    {
+        private static final long IPV4_MAPPED = 0x0000FFFF00000000L;
+        private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+        private static final Pattern IPV6_GROUP = Pattern.compile("[0-9A-Fa-f]{1,4}");
+
+        // Trie nodes
+        private long[] nodeHi = new long[64];
+        private long[] nodeLo = new long[64];
+        private int[] nodeLen = new int[64];
+        private int[] nodeRule = new int[64];
+        private int[] nodeChild = new int[128];
+        private int nodes = 0;
+        private int root = -1;
+
+        // Rules, in file order
+        private long[] ruleHi = new long[32];
+        private long[] ruleLo = new long[32];
+        private int[] ruleLen = new int[32];
+        private boolean[] ruleDeny = new boolean[32];
+        private int[] ruleLine = new int[32];
+        private int rules = 0;
+        private int denyRules = 0;
+        private AtomicLongArray hits;
+
+        public static AccessList load(File f)
+        {
+            AccessList list = new AccessList();
+            BufferedReader input = null;
+            String line;
+            int lineNum = 0;
+
+            try
+            {
+                input = new BufferedReader(new FileReader(f));
+
+                while( (line = input.readLine()) != null )
+                {
+                    lineNum++;
+
+                    if( (line = line.trim()).length() == 0 || line.startsWith("#") )
+                        continue;
+
+                    if( ! list.parseRule(line, lineNum) )
+                        logger.writeln( "[ACCESS] [WARNING] Ignoring invalid rule on line " + lineNum + " of " + f.getPath() + ": " + line );
+                }
+            }
+            catch( IOException ioe )
+            {
+                return null;
+            }
+            finally
+            {
+                try
+                {
+                    if( input != null ) input.close();
+                }
+                catch( IOException ioe )
+                {
+                    // Ignore
+                }
+            }
+
+            list.hits = new AtomicLongArray(Math.max(list.rules, 1));
+            return list;
+        }
+
+        public int size()
+        {
+            return rules;
+        }
+
+        public boolean isAllowed(InetAddress a)
+        {
+            int rule = match(BanTable.addressHigh(a), BanTable.addressLow(a));
+
+            if( rule < 0 )
+                return true;
+
+            hits.incrementAndGet(rule);
+            return ! ruleDeny[rule];
+        }
+
+        public int match(long hi, long lo)
+        {
+            int best = -1;
+            int node = root;
+
+            while( node >= 0 )
+            {
+                int len = nodeLen[node];
+
+                if( ! prefixMatches(hi, lo, nodeHi[node], nodeLo[node], len) )
+                    break;
+
+                if( nodeRule[node] >= 0 )
+                    best = nodeRule[node];
+
+                if( len == 128 )
+                    break;
+
+                node = nodeChild[node*2 + bit(hi, lo, len)];
+            }
+
+            return best;
+        }
+
+        public void logStats()
+        {
+            Integer[] order = new Integer[rules];
+            long denied = 0;
+            int i;
+
+            for( i = 0; i < rules; i++ )
+            {
+                order[i] = Integer.valueOf(i);
+
+                if( ruleDeny[i] )
+                    denied += hits.get(i);
+            }
+
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    return Long.compare(hits.get(b.intValue()), hits.get(a.intValue()));
+                }
+            });
+
+            logger.writeln( "[STATS] Access list rules: " + rules + " (" + (rules-denyRules) + " allow, " + denyRules + " deny)" );
+            logger.writeln( "[STATS] Connections denied by the access list: " + denied );
+
+            // Only the busiest rules are listed
+            for( i = 0; i < rules && i < 20; i++ )
+            {
+                int r = order[i].intValue();
+
+                if( hits.get(r) == 0 )
+                    break;
+
+                logger.writeln( "[STATS] Access list rule hits: " + ((ruleDeny[r])?"deny ":"allow ") + ruleString(r) + " (line " + ruleLine[r] + ") = " + hits.get(r) );
+            }
+        }
+
+        public String ruleString(int r)
+        {
+            // IPv4 rules are shown with their IPv4 prefix length
+            if( ruleHi[r] == 0 && (ruleLo[r] & 0xFFFFFFFF00000000L) == IPV4_MAPPED && ruleLen[r] >= 96 )
+                return BanTable.addressString(ruleHi[r], ruleLo[r]) + "/" + (ruleLen[r]-96);
+            else
+                return BanTable.addressString(ruleHi[r], ruleLo[r]) + "/" + ruleLen[r];
+        }
+
+        private boolean parseRule(String line, int lineNum)
+        {
+            String[] tokens = line.split("\\s+");
+            String addr;
+            boolean deny;
+            boolean v6;
+            int len;
+            int slash;
+
+            if( tokens.length != 2 )
+                return false;
+
+            if( tokens[0].equalsIgnoreCase("deny") )
+                deny = true;
+            else if( tokens[0].equalsIgnoreCase("allow") )
+                deny = false;
+            else
+                return false;
+
+            slash = tokens[1].indexOf('/');
+            addr = (slash < 0)?tokens[1]:tokens[1].substring(0, slash);
+            v6 = (addr.indexOf(':') >= 0);
+
+            // Only literal addresses are accepted so that loading never does a DNS lookup
+            byte[] b = (v6)?parseIPv6(addr):parseIPv4(addr);
+
+            if( b == null )
+                return false;
+
+            try
+            {
+                InetAddress a = InetAddress.getByAddress(b);
+
+                len = (slash < 0)?((v6)?128:32):Integer.parseInt(tokens[1].substring(slash+1));
+
+                if( len < 0 || len > ((v6)?128:32) )
+                    return false;
+
+                // IPv4 prefixes are stored under the IPv4-mapped prefix
+                if( ! v6 )
+                    len += 96;
+
+                addRule(BanTable.addressHigh(a), BanTable.addressLow(a), len, deny, lineNum);
+                return true;
+            }
+            catch( Exception e )
+            {
+                return false;
+            }
+        }
+
+        // Four octets of a dotted-quad address, or null if it is not one
+        private static byte[] parseIPv4(String s)
+        {
+            if( ! IPV4_LITERAL.matcher(s).matches() )
+                return null;
+
+            String[] parts = s.split("\\.");
+            byte[] b = new byte[4];
+
+            for( int i = 0; i < 4; i++ )
+            {
+                int v = Integer.parseInt(parts[i]);
+
+                if( v > 255 )
+                    return null;
+
+                b[i] = (byte)v;
+            }
+
+            return b;
+        }
+
+        // Sixteen bytes of an IPv6 address, with :: and a trailing dotted
+        // quad allowed, or null if it is not one
+        private static byte[] parseIPv6(String s)
+        {
+            byte[] b = new byte[16];
+            int gap = s.indexOf("::");
+            String head = (gap < 0)?s:s.substring(0, gap);
+            String tail = (gap < 0)?"":s.substring(gap+2);
+
+            if( gap >= 0 && tail.indexOf("::") >= 0 )
+                return null;
+
+            String[] h = (head.length() > 0)?head.split(":", -1):new String[0];
+            String[] t = (tail.length() > 0)?tail.split(":", -1):new String[0];
+            String[] last = (t.length > 0)?t:h;
+            byte[] v4 = null;
+            int groups = h.length + t.length;
+
+            // An embedded IPv4 address takes the place of the last two groups
+            if( last.length > 0 && last[last.length-1].indexOf('.') >= 0 )
+            {
+                if( (v4 = parseIPv4(last[last.length-1])) == null )
+                    return null;
+
+                groups++;
+            }
+
+            if( (gap < 0 && groups != 8) || (gap >= 0 && groups > 7) || (v4 != null && gap >= 0 && t.length == 0) )
+                return null;
+
+            int n = 0;
+
+            for( int i = 0; i < h.length; i++ )
+                if( ! putGroup(b, n++, h[i], v4 != null && t.length == 0 && i == h.length-1) )
+                    return null;
+
+            n = 8 - (t.length + ((v4 != null)?1:0));
+
+            for( int i = 0; i < t.length; i++ )
+                if( ! putGroup(b, n++, t[i], v4 != null && i == t.length-1) )
+                    return null;
+
+            if( v4 != null )
+                System.arraycopy(v4, 0, b, 12, 4);
+
+            return b;
+        }
+
+        private static boolean putGroup(byte[] b, int n, String g, boolean v4)
+        {
+            if( v4 )
+                return true;
+
+            if( ! IPV6_GROUP.matcher(g).matches() )
+                return false;
+
+            int v = Integer.parseInt(g, 16);
+
+            b[2*n] = (byte)(v >> 8);
+            b[2*n+1] = (byte)v;
+
+            return true;
+        }
+
+        private void addRule(long hi, long lo, int len, boolean deny, int lineNum)
+        {
+            // Clear the host bits
+            if( len <= 64 )
+            {
+                hi = (len == 0)?0:(hi & (-1L << (64-len)));
+                lo = 0;
+            }
+            else
+            {
+                lo = (len == 128)?lo:(lo & (-1L << (128-len)));
+            }
+
+            if( rules == ruleHi.length )
+            {
+                ruleHi = Arrays.copyOf(ruleHi, rules*2);
+                ruleLo = Arrays.copyOf(ruleLo, rules*2);
+                ruleLen = Arrays.copyOf(ruleLen, rules*2);
+                ruleDeny = Arrays.copyOf(ruleDeny, rules*2);
+                ruleLine = Arrays.copyOf(ruleLine, rules*2);
+            }
+
+            ruleHi[rules] = hi;
+            ruleLo[rules] = lo;
+            ruleLen[rules] = len;
+            ruleDeny[rules] = deny;
+            ruleLine[rules] = lineNum;
+
+            if( deny )
+                denyRules++;
+
+            insert(hi, lo, len, rules++);
+        }
+
+        private void insert(long hi, long lo, int len, int rule)
+        {
+            int node = root;
+            int parentSlot = -1;
+
+            for(;;)
+            {
+                if( node < 0 )
+                {
+                    link(parentSlot, newNode(hi, lo, len, rule));
+                    return;
+                }
+
+                int nlen = nodeLen[node];
+                int common = Math.min(commonPrefix(hi, lo, nodeHi[node], nodeLo[node]), Math.min(len, nlen));
+
+                if( common < nlen )
+                {
+                    // The new prefix diverges from (or ends inside) this node, so split it
+                    int split;
+
+                    if( common == len )
+                    {
+                        split = newNode(hi, lo, len, rule);
+                    }
+                    else
+                    {
+                        split = newNode(hi, lo, common, -1);
+                        nodeChild[split*2 + bit(hi, lo, common)] = newNode(hi, lo, len, rule);
+                    }
+
+                    nodeChild[split*2 + bit(nodeHi[node], nodeLo[node], common)] = node;
+                    link(parentSlot, split);
+                    return;
+                }
+
+                if( len == nlen )
+                {
+                    // Duplicate prefix, the later rule replaces the earlier one
+                    if( nodeRule[node] >= 0 && ruleDeny[nodeRule[node]] )
+                        denyRules--;
+
+                    if( nodeRule[node] >= 0 )
+                        logger.writeln( "[ACCESS] [WARNING] Rule on line " + ruleLine[rule] + " replaces the rule on line " + ruleLine[nodeRule[node]] + "." );
+
+                    nodeRule[node] = rule;
+                    return;
+                }
+
+                parentSlot = node*2 + bit(hi, lo, nlen);
+                node = nodeChild[parentSlot];
+            }
+        }
+
+        private void link(int parentSlot, int node)
+        {
+            if( parentSlot < 0 )
+                root = node;
+            else
+                nodeChild[parentSlot] = node;
+        }
+
+        private int newNode(long hi, long lo, int len, int rule)
+        {
+            if( nodes == nodeHi.length )
+            {
+                nodeHi = Arrays.copyOf(nodeHi, nodes*2);
+                nodeLo = Arrays.copyOf(nodeLo, nodes*2);
+                nodeLen = Arrays.copyOf(nodeLen, nodes*2);
+                nodeRule = Arrays.copyOf(nodeRule, nodes*2);
+                nodeChild = Arrays.copyOf(nodeChild, nodes*4);
+            }
+
+            nodeHi[nodes] = hi;
+            nodeLo[nodes] = lo;
+            nodeLen[nodes] = len;
+            nodeRule[nodes] = rule;
+            nodeChild[nodes*2] = -1;
+            nodeChild[nodes*2+1] = -1;
+
+            return nodes++;
+        }
+
+        private static int bit(long hi, long lo, int pos)
+        {
+            if( pos < 64 )
+                return (int)((hi >>> (63-pos)) & 1);
+            else
+                return (int)((lo >>> (127-pos)) & 1);
+        }
+
+        private static int commonPrefix(long hi1, long lo1, long hi2, long lo2)
+        {
+            if( hi1 != hi2 )
+                return Long.numberOfLeadingZeros(hi1 ^ hi2);
+            else
+                return 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+        }
+
+        private static boolean prefixMatches(long hi, long lo, long phi, long plo, int len)
+        {
+            if( len == 0 )
+                return true;
+
+            if( len <= 64 )
+                return ((hi ^ phi) >>> (64-len)) == 0;
+
+            return hi == phi && ((lo ^ plo) >>> (128-len)) == 0;
+        }
+    }
+
+    /*
+     * Fields of the version 2 control protocol
+     *
+     * Each field is a tag (short), a type (byte), a length (short) and the
+     * value, so new fields can be added without breaking older tools; a
+     * reader skips any tag it does not know.  Counters are sent as totals in
+     * a status response and as the change since the last update in a stats
+     * subscription.  Gauges are always sent as they are.
+     */
+    private static class ControlStats
+    {
+        final static byte TYPE_INT64 = (byte) 0x01;
+        final static byte TYPE_STRING = (byte) 0x02;
+        final static byte TYPE_INT32_ARRAY = (byte) 0x03;
+
+        final static short TAG_ELAPSED = 0;
+        final static short TAG_UPTIME = 1;
+        final static short TAG_HEAP_USED = 2;
+        final static short TAG_HEAP_MAX = 3;
+        final static short TAG_PACKETS_RECEIVED = 10;
+        final static short TAG_PACKETS_RELAYED = 11;
+        final static short TAG_MESSAGES_QUEUED = 12;
+        final static short TAG_MESSAGES_DROPPED = 13;
+        final static short TAG_CONNECTIONS_ACCEPTED = 14;
+        final static short TAG_CONNECTIONS_REJECTED = 15;
+        final static short TAG_IP_CAP_REJECTIONS = 16;
+        final static short TAG_SERVER_CAP_REJECTIONS = 17;
+        final static short TAG_DEAD_PEER_REMOVALS = 18;
+        final static short TAG_LOG_LINES_DROPPED = 19;
+        final static short TAG_PIPELINE_STALLS = 20;
+        final static short TAG_GC_COLLECTIONS = 21;
+        final static short TAG_GC_TIME = 22;            // Milliseconds
+        final static short TAG_PROCESS_CPU_TIME = 23;   // Milliseconds
+        final static short TAG_CLIENTS_CONNECTED = 30;
+        final static short TAG_CLIENTS_BANNED = 31;
+        final static short TAG_SEND_QUEUE_DEPTH = 32;
+        final static short TAG_LOG_QUEUE_DEPTH = 33;
+        final static short TAG_THREADS_LIVE = 34;
+        final static short TAG_THREADS_PEAK = 35;
+        final static short TAG_PROCESS_CPU_LOAD = 36;   // Per mille of all CPUs, -1 if not available
+        final static short TAG_LATENCY = 40;    // 40-48: p50, p99 and p999 for each latency histogram
+        final static short TAG_VERSION = 100;
+        final static short TAG_CLIENT = 101;    // Followed by TAG_CLIENT_SRTT and TAG_CLIENT_RTTVAR
+        final static short TAG_CLIENT_SRTT = 102;
+        final static short TAG_CLIENT_RTTVAR = 103;
+        final static short TAG_HISTORY_SECOND = 110;    // Time of the newest per-second sample (seconds since the epoch)
+        final static short TAG_HISTORY_MINUTE = 111;    // Start of the newest per-minute sample (seconds since the epoch)
+        final static short TAG_HISTORY_SECONDS = 120;   // 120-125: per-second series, oldest first
+        final static short TAG_HISTORY_MINUTES = 130;   // 130-135: per-minute series, oldest first
+        final static short TAG_SOURCES_TOTAL = 112;     // Datagrams counted by the heavy hitter sketch
+        final static short TAG_SOURCE = 140;            // Followed by TAG_SOURCE_DATAGRAMS, TAG_SOURCE_ERROR and TAG_SOURCE_BYTES
+        final static short TAG_SOURCE_DATAGRAMS = 141;
+        final static short TAG_SOURCE_ERROR = 142;
+        final static short TAG_SOURCE_BYTES = 143;
+        final static short TAG_GC = 150;                // Followed by TAG_GC_COUNT, TAG_GC_TIME_MS and TAG_GC_LAST_PAUSE
+        final static short TAG_GC_COUNT = 151;
+        final static short TAG_GC_TIME_MS = 152;
+        final static short TAG_GC_LAST_PAUSE = 153;     // Milliseconds, -1 if not known
+        final static short TAG_BUFFER_POOL = 160;       // Followed by TAG_POOL_BUFFERS, TAG_POOL_USED and TAG_POOL_CAPACITY
+        final static short TAG_POOL_BUFFERS = 161;
+        final static short TAG_POOL_USED = 162;
+        final static short TAG_POOL_CAPACITY = 163;
+        final static short TAG_THREAD = 170;            // Followed by TAG_THREAD_CPU and TAG_THREAD_CPU_RECENT
+        final static short TAG_THREAD_CPU = 171;        // Microseconds
+        final static short TAG_THREAD_CPU_RECENT = 172; // Per mille of one CPU over the last second
+
+        // Numeric fields in the order sample() returns them, and whether each is a counter
+        final static short[] TAGS = {
+            TAG_UPTIME, TAG_HEAP_USED, TAG_HEAP_MAX,
+            TAG_PACKETS_RECEIVED, TAG_PACKETS_RELAYED, TAG_MESSAGES_QUEUED, TAG_MESSAGES_DROPPED,
+            TAG_CONNECTIONS_ACCEPTED, TAG_CONNECTIONS_REJECTED, TAG_IP_CAP_REJECTIONS, TAG_SERVER_CAP_REJECTIONS,
+            TAG_DEAD_PEER_REMOVALS, TAG_LOG_LINES_DROPPED, TAG_PIPELINE_STALLS,
+            TAG_GC_COLLECTIONS, TAG_GC_TIME, TAG_PROCESS_CPU_TIME,
+            TAG_CLIENTS_CONNECTED, TAG_CLIENTS_BANNED, TAG_SEND_QUEUE_DEPTH, TAG_LOG_QUEUE_DEPTH,
+            TAG_THREADS_LIVE, TAG_THREADS_PEAK, TAG_PROCESS_CPU_LOAD,
+            TAG_LATENCY, TAG_LATENCY+1, TAG_LATENCY+2, TAG_LATENCY+3, TAG_LATENCY+4, TAG_LATENCY+5, TAG_LATENCY+6, TAG_LATENCY+7, TAG_LATENCY+8
+        };
+
+        // Names for the shared counters file, in the same order
+        final static String[] NAMES = {
+            "uptime_seconds", "heap_used_bytes", "heap_max_bytes",
+            "packets_received", "packets_relayed", "messages_queued", "messages_dropped",
+            "connections_accepted", "connections_rejected", "ip_cap_rejections", "server_cap_rejections",
+            "dead_peer_removals", "log_lines_dropped", "pipeline_stalls",
+            "gc_collections", "gc_time_ms", "process_cpu_ms",
+            "clients_connected", "clients_banned", "send_queue_depth", "log_queue_depth",
+            "threads_live", "threads_peak", "process_cpu_load_permille",
+            "latency_receive_p50_us", "latency_receive_p99_us", "latency_receive_p999_us",
+            "latency_deliver_p50_us", "latency_deliver_p99_us", "latency_deliver_p999_us",
+            "latency_total_p50_us", "latency_total_p99_us", "latency_total_p999_us"
+        };
+
+        final static boolean[] COUNTER = {
+            false, false, false,
+            true, true, true, true,
+            true, true, true, true,
+            true, true, true,
+            true, true, true,
+            false, false, false, false,
+            false, false, false,
+            false, false, false, false, false, false, false, false, false
+        };
+
+        public static long[] sample()
+        {
+            Runtime rt = Runtime.getRuntime();
+            long[] v = new long[TAGS.length];
+            int queued = 0;
+            int i = 0;
+
+            for( int x = 0; x < maxClients; x++ )
+                if( connections[x].isAlive() )
+                    queued += connections[x].getQueueDepth();
+
+            v[i++] = (System.currentTimeMillis() - START_TIME)/1000;
+            v[i++] = rt.totalMemory() - rt.freeMemory();
+            v[i++] = rt.maxMemory();
+            v[i++] = totalPackets.sum();
+            v[i++] = relayedPackets.sum();
+            v[i++] = queuedMessages.sum();
+            v[i++] = droppedMessages.sum();
+            v[i++] = acceptedConnections.sum();
+            v[i++] = rejectedConnections.sum();
+            v[i++] = ipCapRejections;
+            v[i++] = serverCapRejections;
+            v[i++] = deadPeerRemovals;
+            v[i++] = logger.dropped();
+            v[i++] = pipelineStalls;
+            v[i++] = jvmHealth.getGcCount();
+            v[i++] = jvmHealth.getGcTime();
+            v[i++] = jvmHealth.getProcessCpuTime();
+            v[i++] = numClients.sum();
+            v[i++] = (autoBanEnabled == 1)?bannedClients.size():0;
+            v[i++] = queued;
+            v[i++] = logger.queued();
+            v[i++] = jvmHealth.getLiveThreads();
+            v[i++] = jvmHealth.getPeakThreads();
+            v[i++] = jvmHealth.getProcessCpuLoad();
+
+            for( LatencyHistogram h : latencyHistograms )
+            {
+                long[] s = h.snapshot();
+
+                v[i++] = LatencyHistogram.percentile(s, 0.50);
+                v[i++] = LatencyHistogram.percentile(s, 0.99);
+                v[i++] = LatencyHistogram.percentile(s, 0.999);
+            }
+
+            return v;
+        }
+
+        public static void putLong(ByteBuffer b, short tag, long value)
+        {
+            b.putShort(tag);
+            b.put(TYPE_INT64);
+            b.putShort((short)8);
+            b.putLong(value);
+        }
+
+        public static void putString(ByteBuffer b, short tag, String value) throws UnsupportedEncodingException
+        {
+            byte[] s = value.getBytes("UTF-8");
+
+            b.putShort(tag);
+            b.put(TYPE_STRING);
+            b.putShort((short)s.length);
+            b.put(s);
+        }
+
+        // The last count values of a ring, oldest first, given the index of the newest
+        public static void putInts(ByteBuffer b, short tag, int[] ring, int newest, int count)
+        {
+            b.putShort(tag);
+            b.put(TYPE_INT32_ARRAY);
+            b.putShort((short)(count*4));
+
+            for( int i = count-1; i >= 0; i-- )
+                b.putInt(ring[(newest - i + ring.length) % ring.length]);
+        }
+    }
+
+    /*
+     * A tool which asked for stats updates through the control port.  The
+     * subscription lapses unless it is renewed within CTL_SUBSCRIPTION_LEASE
+     * (or three intervals, if that is longer).  The latency percentiles in
+     * each update cover only the samples since the previous one.
+     */
+    private static class StatsSubscription
+    {
+        InetAddress addr;
+        int port;
+        long interval;
+        long next;
+        long expires;
+        long lastTime;
+        long[] last;
+        long[][] lastLatency;
+    }
+
+    /*
+     * Counters and gauges published in a memory-mapped file
+     *
+     * Monitoring scripts and consolerelayctl can read the file directly, in
+     * the spirit of hsperfdata, instead of sending requests to the control
+     * port.  The counters themselves stay striped in the relay; this thread
+     * copies them into the mapping every sharedCountersInterval with ordered
+     * writes, so nothing is added to the path of a message.  The file is
+     * locked for as long as the relay runs, and a relay which cannot take the
+     * lock does not publish rather than overwrite another relay's counters.
+     *
+     * Layout (little-endian, every long 8-byte aligned):
+     *
+     *   Header (64 bytes)
+     *     int   magic (0x43565243, "CVRC")
+     *     int   layout version
+     *     int   header size
+     *     int   number of entries
+     *     int   entry size
+     *     int   state (1 = running, 0 = stopped)
+     *     long  process ID
+     *     long  start time (ms since the epoch)
+     *     long  time of the last update (ms since the epoch)
+     *     long  sequence number, odd while an update is in progress
+     *     long  update interval (ms)
+     *
+     *   Entries (entry size bytes each)
+     *     long  value
+     *     short tag (the version 2 control protocol tag)
+     *     byte  kind (1 = counter, 2 = gauge)
+     *     byte  name length
+     *     bytes name (UTF-8)
+     *
+     * A reader takes the sequence number, reads the values and takes the
+     * sequence number again; if it was odd or has changed the read is
+     * repeated.
+     */
+    private static class SharedCounters implements Runnable
+    {
+        final static int MAGIC = 0x43565243;
+        final static int LAYOUT_VERSION = 1;
+        final static int HEADER_SIZE = 64;
+        final static int ENTRY_SIZE = 64;
+        final static int STATE = 20;
+        final static int UPDATED = 40;
+        final static int SEQUENCE = 48;
+
+        final static java.lang.invoke.VarHandle LONGS = java.lang.invoke.MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        final static java.lang.invoke.VarHandle INTS = java.lang.invoke.MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+        private final RandomAccessFile raf;
+        private final java.nio.channels.FileLock lock;
+        private final java.nio.MappedByteBuffer map;
+        private long sequence = 0;
+
+        private long id = 0;
+        private String name = new String();
+
+        public SharedCounters(File f) throws IOException
+        {
+            int entries = ControlStats.TAGS.length;
+            java.nio.channels.FileLock l = null;
+
+            raf = new RandomAccessFile(f, "rw");
+
+            try
+            {
+                // Another relay publishing to the same file keeps its lock until it exits
+                try
+                {
+                    l = raf.getChannel().tryLock();
+                }
+                catch( java.nio.channels.OverlappingFileLockException ofle )
+                {
+                    l = null;
+                }
+
+                if( l == null )
+                    throw new IOException("The file is in use by another relay");
+
+                raf.setLength(0);
+                raf.setLength(HEADER_SIZE + (long)entries*ENTRY_SIZE);
+                map = raf.getChannel().map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)entries*ENTRY_SIZE);
+            }
+            catch( IOException ioe )
+            {
+                // Closing the file also releases the lock
+                raf.close();
+                throw ioe;
+            }
+
+            lock = l;
+
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            for( int i = 0; i < entries; i++ )
+            {
+                byte[] n = ControlStats.NAMES[i].getBytes("UTF-8");
+                int e = HEADER_SIZE + i*ENTRY_SIZE;
+
+                map.putShort(e + 8, ControlStats.TAGS[i]);
+                map.put(e + 10, (byte)(ControlStats.COUNTER[i]?1:2));
+                map.put(e + 11, (byte)n.length);
+
+                for( int x = 0; x < n.length && x < ENTRY_SIZE - 12; x++ )
+                    map.put(e + 12 + x, n[x]);
+            }
+
+            map.putInt(4, LAYOUT_VERSION);
+            map.putInt(8, HEADER_SIZE);
+            map.putInt(12, entries);
+            map.putInt(16, ENTRY_SIZE);
+            map.putInt(STATE, 1);
+            map.putLong(24, ProcessHandle.current().pid());
+            map.putLong(32, START_TIME);
+            map.putLong(56, sharedCountersInterval);
+
+            // Readers ignore the file until the magic number is there
+            INTS.setRelease(map, 0, MAGIC);
+        }
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                for(;;)
+                {
+                    publish(ControlStats.sample());
+                    Thread.sleep(sharedCountersInterval);
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+
+        private synchronized void publish(long[] v)
+        {
+            // Odd while the values are being changed
+            LONGS.setOpaque(map, SEQUENCE, ++sequence);
+            java.lang.invoke.VarHandle.storeStoreFence();
+
+            for( int i = 0; i < v.length; i++ )
+                LONGS.setOpaque(map, HEADER_SIZE + i*ENTRY_SIZE, v[i]);
+
+            LONGS.setOpaque(map, UPDATED, System.currentTimeMillis());
+            LONGS.setRelease(map, SEQUENCE, ++sequence);
+        }
+
+        public synchronized void close()
+        {
+            publish(ControlStats.sample());
+            INTS.setRelease(map, STATE, 0);
+            map.force();
+
+            try
+            {
+                lock.release();
+                raf.close();
+            }
+            catch( IOException ioe )
+            {
+                // Ignore, the relay is exiting
+            }
+        }
+    }
+
+    /*
+     * Rolling history of the main counters
+     *
+     * The counters are sampled once a second into a ring covering the last
+     * ten minutes, and each minute is totalled into a ring covering the last
+     * day.  The rings are plain int arrays allocated up front, so the memory
+     * used never changes.  Counters are stored as the change over the sample;
+     * the number of connected clients is a gauge and the per-minute value is
+     * the highest seen during the minute.
+     */
+    private static class StatsHistory implements Runnable
+    {
+        final static int SECONDS = 600;
+        final static int MINUTES = 1440;
+        final static int SERIES = 6;    // Received, relayed, queued, dropped, rejected, clients
+        final static int GAUGE = 5;
+
+        private final int[][] seconds = new int[SERIES][SECONDS];
+        private final int[][] minutes = new int[SERIES][MINUTES];
+        private final long[] last = new long[SERIES];
+        private final long[] minute = new long[SERIES];
+        private final long[] v = new long[SERIES];
+        private long second = 0;
+        private long secondCount = 0;
+        private long minuteCount = 0;
+
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                for(;;)
+                {
+                    // Sample just after each second starts
+                    Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+                    sample(System.currentTimeMillis()/1000);
+                    jvmHealth.sample();
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+
+        private synchronized void sample(long now)
+        {
+            v[0] = totalPackets.sum();
+            v[1] = relayedPackets.sum();
+            v[2] = queuedMessages.sum();
+            v[3] = droppedMessages.sum();
+            v[4] = rejectedConnections.sum();
+            v[5] = numClients.sum();
+
+            if( second == 0 )
+            {
+                System.arraycopy(v, 0, last, 0, SERIES);
+                second = now;
+                return;
+            }
+
+            // Nothing older than a day would be kept anyway
+            if( now - second > MINUTES*60 )
+                second = now - MINUTES*60;
+
+            // Seconds which were skipped (a late wakeup or a clock change) count as idle
+            while( second < now )
+            {
+                second++;
+
+                if( second % 60 == 0 && secondCount > 0 )
+                {
+                    int m = (int)(((second/60) - 1) % MINUTES);
+
+                    for( int s = 0; s < SERIES; s++ )
+                    {
+                        minutes[s][m] = (int)Math.min(minute[s], Integer.MAX_VALUE);
+                        minute[s] = 0;
+                    }
+
+                    minuteCount++;
+                }
+
+                int i = (int)(second % SECONDS);
+
+                for( int s = 0; s < SERIES; s++ )
+                {
+                    long d;
+
+                    if( s == GAUGE )
+                        d = (second < now)?last[s]:v[s];
+                    else
+                        d = (second < now)?0:(v[s] - last[s]);
+
+                    seconds[s][i] = (int)Math.min(d, Integer.MAX_VALUE);
+                    minute[s] = (s == GAUGE)?Math.max(minute[s], d):(minute[s] + d);
+                }
+
+                secondCount++;
+            }
+
+            System.arraycopy(v, 0, last, 0, SERIES);
+        }
+
+        // Add both rings to a version 2 control response
+        public synchronized void write(ByteBuffer b)
+        {
+            int count = (int)Math.min(secondCount, SECONDS);
+
+            ControlStats.putLong(b, ControlStats.TAG_HISTORY_SECOND, second);
+
+            for( int s = 0; s < SERIES; s++ )
+                ControlStats.putInts(b, (short)(ControlStats.TAG_HISTORY_SECONDS + s), seconds[s], (int)(second % SECONDS), count);
+
+            count = (int)Math.min(minuteCount, MINUTES);
+
+            ControlStats.putLong(b, ControlStats.TAG_HISTORY_MINUTE, ((second/60) - 1)*60);
+
+            for( int s = 0; s < SERIES; s++ )
+                ControlStats.putInts(b, (short)(ControlStats.TAG_HISTORY_MINUTES + s), minutes[s], (int)(((second/60) - 1) % MINUTES), count);
+        }
+    }
+
+    /*
+     * Flight recorder
+     *
+     * A fixed-size ring of structured debug events which is always on.  Each
+     * event is a timestamp, a thread ID, an event code and up to four numbers,
+     * so recording one is a few array stores and nothing is formatted until
+     * the ring is dumped to a file.  Dumps are made on request through the
+     * control port or when a listener thread reports an error.
+     */
+    private static class FlightRecorder
+    {
+        final static int CLIENT_CONNECTED = 0;
+        final static int CLIENT_FAILED = 1;
+        final static int CLIENT_BANNED = 2;
+        final static int CLIENT_CLOSED = 3;
+        final static int PACKET_RECEIVED = 4;
+        final static int PACKET_UNWANTED = 5;
+        final static int PACKET_RELAYED = 6;
+        final static int SEND_QUEUE_FULL = 7;
+        final static int HEARTBEAT_SENT = 8;
+        final static int HEARTBEAT_ACK = 9;
+        final static int HEARTBEAT_TIMEOUT = 10;
+        final static int LOG_DROPPED = 11;
+        final static int ERROR = 12;
+
+        // %A is an address (two values), %C is an address and port (three values)
+        final static String[] FORMATS = {
+            "Client %C connected",
+            "Failed connection attempt from %A (%d so far)",
+            "Banned %A for %d ms",
+            "Client %C closed",
+            "Packet %d received (%d bytes)",
+            "Packet %d not wanted by any client",
+            "Packet %d queued for %d clients",
+            "Packet dropped for %C (send queue is full)",
+            "Heartbeat sent to %C (retry=%d)",
+            "Heartbeat acknowledged by %C (rtt=%d us)",
+            "Heartbeat not acknowledged by %C",
+            "Logger dropped %d lines",
+            "Error reported by this thread"
+        };
+
+        // Slot layout: time, thread, event, four values
+        private static final int STRIDE = 7;
+
+        private final int mask;
+        private final long[] slots;
+        private final AtomicLongArray seqs;
+        private final AtomicLong next = new AtomicLong();
+        private final long baseMillis = System.currentTimeMillis();
+        private final long baseNanos = System.nanoTime();
+        private long lastErrorDump = 0;
+
+        public FlightRecorder(int size)
+        {
+            int n = (size > 0)?Integer.highestOneBit(size):0;
+
+            if( n < size ) n <<= 1;
+
+            mask = n - 1;
+            slots = new long[n*STRIDE];
+            seqs = new AtomicLongArray(n);
+
+            for( int i = 0; i < n; i++ )
+                seqs.set(i, -1);
+        }
+
+        public boolean isEnabled()
+        {
+            return mask >= 0;
+        }
+
+        public void record(int event, long a, long b, long c, long d)
+        {
+            if( mask < 0 )
+                return;
+
+            long n = next.getAndIncrement();
+            int i = (int)(n & mask);
+            int p = i*STRIDE;
+            long s = seqs.get(i);
+
+            // Claim the slot by marking it with -2-n, so readers skip it until
+            // its sequence number is published again.  If a writer which has
+            // wrapped round the whole ring holds it, or has already filled it
+            // with a newer event, this event is dropped.
+            if( s < -1 || s >= n || ! seqs.compareAndSet(i, s, -2 - n) )
+                return;
+
+            // The marker must be visible before any of the new values
+            java.lang.invoke.VarHandle.storeStoreFence();
+
+            slots[p] = System.nanoTime();
+            slots[p+1] = Thread.currentThread().getId();
+            slots[p+2] = event;
+            slots[p+3] = a;
+            slots[p+4] = b;
+            slots[p+5] = c;
+            slots[p+6] = d;
+
+            seqs.lazySet(i, n);
+        }
+
+        public void record(int event, long a, long b)
+        {
+            record(event, a, b, 0, 0);
+        }
+
+        public void record(int event, long a)
+        {
+            record(event, a, 0, 0, 0);
+        }
+
+        // Record an error and dump the ring, at most once per FLIGHT_RECORDER_DUMP_INTERVAL
+        public void error(Throwable t)
+        {
+            long now = System.currentTimeMillis();
+
+            record(ERROR, 0);
+
+            if( mask < 0 || flightRecorderErrorDump == 0 )
+                return;
+
+            synchronized( this )
+            {
+                if( lastErrorDump > 0 && now - lastErrorDump < FLIGHT_RECORDER_DUMP_INTERVAL )
+                    return;
+
+                lastErrorDump = now;
+            }
+
+            File f = dump(t.toString());
+
+            if( f != null )
+                logger.writeln( "[ERROR] Flight recorder events were saved to " + f.getPath() + "." );
+        }
+
+        // Write the events to a new file, oldest first.  Returns the file or null.
+        public synchronized File dump(String reason)
+        {
+            SimpleDateFormat fileFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+            SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            Map<Long,String> threadNames = new HashMap<Long,String>();
+            long[] slot = new long[STRIDE];
+            long end = next.get();
+            long start = Math.max(end - (mask + 1), 0);
+            long now = System.currentTimeMillis();
+            PrintWriter w = null;
+            File f;
+
+            if( mask < 0 )
+                return null;
+
+            f = new File(flightRecorderFile + "." + fileFormat.format(now));
+
+            for( int n = 1; f.exists(); n++ )
+                f = new File(flightRecorderFile + "." + fileFormat.format(now) + "-" + n);
+
+            for( Thread t : Thread.getAllStackTraces().keySet() )
+                threadNames.put(t.getId(), t.getName());
+
+            try
+            {
+                w = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+
+                w.println( "# CheckValve Console Relay flight recorder dump" );
+                w.println( "# Time: " + timeFormat.format(now) );
+                w.println( "# Reason: " + reason );
+                w.println( "# Events: " + (end - start) + " of " + end + " recorded" );
+                w.println();
+
+                for( long n = start; n < end; n++ )
+                {
+                    if( ! read(n, slot) )
+                        continue;
+
+                    long nanos = slot[0] - baseNanos;
+                    String thread = threadNames.get(slot[1]);
+
+                    w.print( timeFormat.format(baseMillis + nanos/1000000) );
+                    w.print( String.format("%03d", (nanos/1000) % 1000) );
+                    w.print( " [" + ((thread != null)?thread:"thread-" + slot[1]) + "] " );
+                    w.println( format((int)slot[2], slot) );
+                }
+
+                w.close();
+
+                if( w.checkError() )
+                    throw new IOException("Write error");
+            }
+            catch( IOException ioe )
+            {
+                logger.writeln( "[ERROR] Failed to write flight recorder events to " + f.getPath() + "." );
+                logger.writeln( "[ERROR] " + ioe.toString() );
+                return null;
+            }
+            finally
+            {
+                if( w != null )
+                    w.close();
+            }
+
+            return f;
+        }
+
+        // Copy one event, returning false if it was overwritten while being read
+        private boolean read(long n, long[] slot)
+        {
+            int i = (int)(n & mask);
+
+            if( seqs.get(i) != n )
+                return false;
+
+            System.arraycopy(slots, i*STRIDE, slot, 0, STRIDE);
+            java.lang.invoke.VarHandle.acquireFence();
+
+            return seqs.get(i) == n;
+        }
+
+        private static String format(int event, long[] slot)
+        {
+            if( event < 0 || event >= FORMATS.length )
+                return "Unknown event " + event;
+
+            String fmt = FORMATS[event];
+            StringBuilder sb = new StringBuilder();
+            int v = 3;
+
+            for( int i = 0; i < fmt.length(); i++ )
+            {
+                char ch = fmt.charAt(i);
+
+                if( ch != '%' || i+1 == fmt.length() )
+                {
+                    sb.append(ch);
+                    continue;
+                }
+
+                switch( fmt.charAt(++i) )
+                {
+                    case 'A':
+                        sb.append(BanTable.addressString(slot[v], slot[v+1]));
+                        v += 2;
+                        break;
+                    case 'C':
+                        sb.append(BanTable.addressString(slot[v], slot[v+1])).append(':').append(slot[v+2]);
+                        v += 3;
+                        break;
+                    default:
+                        sb.append(slot[v++]);
+                        break;
+                }
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /*
+     * Progress of one pipeline stage or I/O thread
+     *
+     * A stage is marked busy when it takes on work and idle when it is done,
+     * so the watchdog only has to compare one timestamp with the clock.
+     */
+    private static class Stage
+    {
+        private final String name;
+        private volatile Thread owner;
+        private volatile long busySince = 0;
+        private long reported = 0;
+
+        public Stage(String n)
+        {
+            name = n;
+        }
+
+        public void setOwner(Thread t)
+        {
+            owner = t;
+        }
+
+        public void busy()
+        {
+            busySince = System.nanoTime();
+        }
+
+        public void idle()
+        {
+            busySince = 0;
+        }
+
+        // Nanoseconds this stage has been busy if it has stalled and not been reported yet, otherwise 0
+        public long stalled(long now)
+        {
+            long since = busySince;
+
+            if( since == 0 || since == reported || now - since < stallTimeout*1000000 )
+                return 0;
+
+            reported = since;
+            return now - since;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public Thread getOwner()
+        {
+            return owner;
+        }
+    }
+
+    /*
+     * Watch the pipeline for stages which have stopped making progress
+     *
+     * A stage which stays busy for longer than stallTimeout is reported once
+     * per stall: a warning is logged, the stall counter goes up and the stack
+     * of every thread is written to a file.  A client's writer thread which
+     * is stuck can be evicted, which closes the socket out from under it.
+     */
+    private static class Watchdog implements Runnable
+    {
+        private List<Stage> stalled = new ArrayList<Stage>();
+        private List<Connection> stuck = new ArrayList<Connection>();
+        private long lastDump = 0;
+
+        private long id = 0;
+        private String name = new String();
+
+        public void run()
+        {
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                for(;;)
+                {
+                    Thread.sleep(STALL_CHECK_INTERVAL);
+
+                    long now = System.nanoTime();
+
+                    stalled.clear();
+                    stuck.clear();
+                    check(receiveStage, null, now);
+                    check(fanOutStage, null, now);
+                    check(logStage, null, now);
+
+                    for( int i = 0; i < maxClients; i++ )
+                        if( connections[i].isAlive() )
+                            check(connections[i].getWriteStage(), connections[i], now);
+
+                    if( ! stalled.isEmpty() && (lastDump == 0 || System.currentTimeMillis() - lastDump >= STALL_DUMP_INTERVAL) )
+                    {
+                        File f = dumpThreads(stalled);
+                        lastDump = System.currentTimeMillis();
+
+                        if( f != null )
+                            logger.writeln( "[WARNING] Saved a thread dump to " + f.getPath() + "." );
+                        else
+                            logger.writeln( "[ERROR] Unable to save a thread dump to " + stallDumpFile + "." );
+                    }
+
+                    // Evict only after the dump so it shows where the writers were stuck
+                    for( Connection c : stuck )
+                    {
+                        logger.writeln( "Removing client " + c.getClientString() + " : Write stalled." );
+                        c.closeSocket();
+                    }
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+
+        private void check(Stage s, Connection c, long now)
+        {
+            long busy = s.stalled(now);
+
+            if( busy == 0 )
+                return;
+
+            pipelineStalls++;
+            stalled.add(s);
+
+            logger.writeln( "[WARNING] " + s.getName() + " has made no progress for " + (busy/1000000) + " ms." );
+
+            if( c != null && stallEvict == 1 )
+                stuck.add(c);
+        }
+
+        private File dumpThreads(List<Stage> stages)
+        {
+            SimpleDateFormat fileFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+            SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            long now = System.currentTimeMillis();
+            PrintWriter w = null;
+            File f = new File(stallDumpFile + "." + fileFormat.format(now));
+
+            for( int n = 1; f.exists(); n++ )
+                f = new File(stallDumpFile + "." + fileFormat.format(now) + "-" + n);
+
+            try
+            {
+                java.lang.management.ThreadInfo[] threads = mx.dumpAllThreads(mx.isObjectMonitorUsageSupported(), mx.isSynchronizerUsageSupported());
+                long[] deadlocked = mx.findDeadlockedThreads();
+
+                w = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+
+                w.println( "# CheckValve Console Relay thread dump" );
+                w.println( "# Time: " + timeFormat.format(now) );
+
+                for( Stage s : stages )
+                    w.println( "# Stalled: " + s.getName() + ((s.getOwner() != null)?(" [" + s.getOwner().getName() + "]"):"") );
+
+                if( deadlocked != null )
+                    w.println( "# Deadlocked threads: " + deadlocked.length );
+
+                for( java.lang.management.ThreadInfo t : threads )
+                {
+                    w.println();
+                    w.print( "\"" + t.getThreadName() + "\" id=" + t.getThreadId() + " " + t.getThreadState() );
+
+                    if( t.getLockName() != null )
+                        w.print( " on " + t.getLockName() );
+
+                    if( t.getLockOwnerName() != null )
+                        w.print( " owned by \"" + t.getLockOwnerName() + "\" id=" + t.getLockOwnerId() );
+
+                    if( t.isInNative() )
+                        w.print( " (in native)" );
+
+                    w.println();
+
+                    StackTraceElement[] stack = t.getStackTrace();
+                    java.lang.management.MonitorInfo[] monitors = t.getLockedMonitors();
+
+                    for( int i = 0; i < stack.length; i++ )
+                    {
+                        w.println( "    at " + stack[i] );
+
+                        for( java.lang.management.MonitorInfo m : monitors )
+                            if( m.getLockedStackDepth() == i )
+                                w.println( "    - locked " + m );
+                    }
+
+                    for( java.lang.management.LockInfo l : t.getLockedSynchronizers() )
+                        w.println( "    - holds " + l );
+                }
+
+                w.close();
+
+                if( w.checkError() )
+                    throw new IOException("Write error");
+
+                return f;
+            }
+            catch( IOException ioe )
+            {
+                if( w != null )
+                    w.close();
+
+                return null;
+            }
+        }
+    }
+
+    /*
+     * JDK Flight Recorder events
+     *
+     * Unlike the flight recorder above these only cost anything while a JFR
+     * recording is running, so they can be left on in production and lined up
+     * with GC, safepoint and socket events in JMC.  The thresholds keep the
+     * per-datagram and per-write events down to the slow ones; they can be
+     * changed in the recording settings like those of any JDK event.
+     */
+    @Name("checkvalve.DatagramReceived")
+    @Label("Datagram Received")
+    @Description("A log datagram from a game server, from the socket read until it was handed to the fan-out thread")
+    @Category({"CheckValve", "Console Relay"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    private static class DatagramReceivedEvent extends Event
+    {
+        @Label("Source")
+        String source;
+
+        @Label("Size")
+        @jdk.jfr.DataAmount
+        int size;
+
+        @Label("Wanted")
+        boolean wanted;
+    }
+
+    @Name("checkvalve.DatagramRelayed")
+    @Label("Datagram Relayed")
+    @Description("A log message being queued for every client which wants it")
+    @Category({"CheckValve", "Console Relay"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    private static class DatagramRelayedEvent extends Event
+    {
+        @Label("Source")
+        String source;
+
+        @Label("Size")
+        @jdk.jfr.DataAmount
+        int size;
+
+        @Label("Queued")
+        int queued;
+
+        @Label("Dropped")
+        int dropped;
+    }
+
+    @Name("checkvalve.ClientWrite")
+    @Label("Client Write")
+    @Description("A message or heartbeat written to a client socket")
+    @Category({"CheckValve", "Console Relay"})
+    @Threshold("10 ms")
+    @StackTrace(false)
+    private static class ClientWriteEvent extends Event
+    {
+        @Label("Client")
+        String client;
+
+        @Label("Size")
+        @jdk.jfr.DataAmount
+        int size;
+
+        @Label("Queue Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+
+        @Label("Heartbeat")
+        boolean heartbeat;
+    }
+
+    @Name("checkvalve.Handshake")
+    @Label("Client Handshake")
+    @Description("A client connection from accept until it was given a slot or rejected")
+    @Category({"CheckValve", "Console Relay"})
+    @Threshold("100 ms")
+    @StackTrace(false)
+    private static class HandshakeEvent extends Event
+    {
+        @Label("Client")
+        String client;
+
+        @Label("TLS")
+        boolean tls;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("checkvalve.Ban")
+    @Label("Client Ban")
+    @Description("An address being banned or its ban expiring")
+    @Category({"CheckValve", "Console Relay"})
+    @StackTrace(false)
+    private static class BanEvent extends Event
+    {
+        @Label("Address")
+        String address;
+
+        @Label("Action")
+        String action;
+
+        // Event already has a field called duration
+        @Label("Ban Length")
+        @Timespan(Timespan.MILLISECONDS)
+        long banLength;
+    }
+
+    /*
+     * Compress rotated log files and remove the oldest ones
+     *
+     * The log writer rotates the file itself and hands the old one over
+     * here, so the slow work happens on a low-priority thread.  Rotated files
+     * are named <logFile>.<yyyyMMdd-HHmmss>, plus .gz once compressed.
+     */
+    private static class LogRotate implements Runnable
+    {
+        private static java.util.concurrent.LinkedBlockingQueue<File> rotated = new java.util.concurrent.LinkedBlockingQueue<File>();
+        private static Pattern rotatedName = Pattern.compile("\\.\\d{8}-\\d{6}(-\\d+)?(\\.gz)?");
+
+        private long id = 0;
+        private String name = new String();
+
+        // Called by the log writer after a rotation
+        public static void rotated(File f)
+        {
+            rotated.add(f);
+        }
+
+        public void run()
+        {
+            File f;
+
+            id = Thread.currentThread().getId();
+            name = Thread.currentThread().getName();
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+
+            if( debugLevel >= 3 )
+                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+
+            try
+            {
+                // Finish any compression which was cut short by the last shutdown
+                if( logRotateCompress == 1 )
+                {
+                    for( File old : rotatedFiles() )
+                        if( ! old.getName().endsWith(".gz") )
+                            rotated.add(old);
+                }
+
+                prune();
+
+                for(;;)
+                {
+                    f = rotated.take();
+
+                    if( logRotateCompress == 1 )
+                        compress(f);
+
+                    prune();
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                if( debugLevel >= 3 )
+                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+
+                return;
+            }
+        }
+
+        private void compress(File f)
+        {
+            File gz = new File(f.getPath() + ".gz");
+            File temp = new File(f.getPath() + ".gz.tmp");
+            byte[] b = new byte[65536];
+            InputStream input = null;
+            OutputStream output = null;
+            int n;
+
+            try
+            {
+                input = new FileInputStream(f);
+                output = new java.util.zip.GZIPOutputStream(new FileOutputStream(temp), 65536);
+
+                while( (n = input.read(b)) > 0 )
+                    output.write(b, 0, n);
+
+                output.close();
+                output = null;
+
+                if( ! temp.renameTo(gz) )
+                    throw new IOException("Unable to rename " + temp + " to " + gz);
+
+                f.delete();
+
+                if( debugLevel >= 2 )
+                    logger.debug(2, "Compressed rotated log file " + f + ".");
+            }
+            catch( IOException ioe )
+            {
+                logger.writeln( "[ERROR] Failed to compress rotated log file " + f + "." );
+                logger.writeln( "[ERROR] " + ioe.toString() );
+                temp.delete();
+            }
+            finally
+            {
+                try
+                {
+                    if( input != null ) input.close();
+                    if( output != null ) output.close();
+                }
+                catch( IOException ioe )
+                {
+                    // Ignore
+                }
+            }
+        }
+
+        // Keep the newest rotated files within the count and size limits (0 = no limit)
+        private void prune()
+        {
+            List<File> files = rotatedFiles();
+            long total = 0;
+
+            for( int i = 0; i < files.size(); i++ )
+            {
+                File f = files.get(i);
+                total += f.length();
+
+                if( (logRotateKeepFiles > 0 && i >= logRotateKeepFiles) || (logRotateKeepBytes > 0 && total > logRotateKeepBytes) )
+                {
+                    if( f.delete() )
+                        logger.writeln( "Removed old log file " + f + "." );
+                }
+            }
+        }
+
+        // Rotated log files, newest first
+        private static List<File> rotatedFiles()
+        {
+            File base = new File(logFile).getAbsoluteFile();
+            File[] all = base.getParentFile().listFiles();
+            List<File> files = new ArrayList<File>();
+            String prefix = base.getName();
+
+            if( all == null )
+                return files;
+
+            for( File f : all )
+            {
+                String n = f.getName();
+
+                if( n.startsWith(prefix) && rotatedName.matcher(n.substring(prefix.length())).matches() )
+                    files.add(f);
+            }
+
+            // The timestamp sorts the same as the file name
+            Collections.sort(files, new Comparator<File>()
+            {
+                public int compare(File a, File b)
+                {
+                    return b.getName().compareTo(a.getName());
+                }
+            });
+
+            return files;
+        }
+    }
+
+    /*
+     * Logger
+     */
+    private static class Logger
+    {
+        final static String TIMESTAMP_FORMAT = "[EEE MMM dd HH:mm:ss yyyy]: ";
+
+        private static java.nio.channels.FileChannel channel;
+        private static File path;
+        private static TimestampCache timestamps = new TimestampCache(TIMESTAMP_FORMAT);
+        private static byte[] eol;
+        private static byte[][] debugTags = new byte[4][];
+        private static volatile boolean open;
+
+        // Lines waiting to be written, in a bounded ring shared by all threads.
+        // A caller claims a slot by moving the tail, fills in the time and
+        // level, then publishes the message; only the writer thread moves the
+        // head.  Nothing on the caller's side blocks or takes a lock.
+        private static AtomicReferenceArray<String> lines;
+        private static long[] times;
+        private static int[] levels;
+        private static int mask;
+        private static final AtomicLong tail = new AtomicLong();
+        private static volatile long head = 0;
+        private static final AtomicLong dropped = new AtomicLong();
+
+        private static Thread writer;
+        private static volatile boolean stopping;
+
+        public Logger()
+        {
+            open = false;
+        }
+
+        public static int open(String file)
+        {
+            try
+            {
+                // Get the platform-specific line separator
+                eol = System.getProperty( "line.separator" ).getBytes();
+
+                for( int i = 1; i < debugTags.length; i++ )
+                    debugTags[i] = ("[DEBUG(" + i + ")] ").getBytes();
+
+                // Get a channel to the log file
+                path = new File(file);
+                channel = openChannel(path);
+
+                if( lines == null )
+                {
+                    int size = Integer.highestOneBit(Math.max(logQueueSize, 16) - 1) << 1;
+
+                    lines = new AtomicReferenceArray<String>(size);
+                    times = new long[size];
+                    levels = new int[size];
+                    mask = size-1;
+                }
+
+                // Start the writer thread
+                stopping = false;
+                writer = new Thread(new LogWriter());
+                writer.setName("LogWriter");
+                writer.setDaemon(true);
+                writer.start();
+
+                // Set the open flag
+                open = true;
+
+                writeln( "Logger started." );
+
+                return 0;
+            }
+            catch( IOException ioe )
+            {
+                open = false;
+                return -1;
+            }
+        }
+
+        public static int close()
+        {
+            // Make sure the log file is open
+            if( ! open )
+                return -1;
+
+            writeln( "Shutting down logger." );
+
+            // Let the writer thread write out everything that is queued
+            open = false;
+            stopping = true;
+            LockSupport.unpark(writer);
 
-                        logger.writeln( "[ERROR] Unable to create TCP listening socket." );
-                        System.err.println( "[ERROR] Unable to create TCP listening socket." );
-                        logger.writeln( "[ERROR] " + se.toString() );
-                        System.err.println( "[ERROR] " + se.toString() );
+            try
+            {
+                writer.join(5000);
+                channel.close();
+                return 0;
+            }
+            catch( InterruptedException ie )
+            {
+                return -1;
+            }
+            catch( IOException ioe )
+            {
+                return -1;
+            }
+        }
 
-                        if( debugLevel >= 2 )
-                        {
-                            StackTraceElement[] ste = se.getStackTrace();
+        public static long dropped()
+        {
+            return dropped.get();
+        }
 
-                            for(int x = 0; x < ste.length; x++)
-                                logger.debug(2, ste[x].toString() );
-                        }
+        // Lines waiting to be written
+        public static long queued()
+        {
+            return Math.max(tail.get() - head, 0);
+        }
 
-                        if( ! shuttingDown )
-                        {
-                            if( debugLevel >= 2 )
-                                logger.debug(2, "Client listener is calling for the program to shut down.");
+        public static Thread getWriterThread()
+        {
+            return writer;
+        }
 
-                            System.exit(1);
+        private static java.nio.channels.FileChannel openChannel(File f) throws IOException
+        {
+            return java.nio.channels.FileChannel.open(f.toPath(), java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+        }
+
+        public static void debug(int level, String msg)
+        {
+            enqueue(level, msg);
+        }
+
+        public static void writeln(String msg)
+        {
+            enqueue(0, msg);
+        }
+
+        private static void enqueue(int level, String msg)
+        {
+            long t;
+            int i;
+
+            // Make sure the log file is open
+            if( ! open )
+                return;
+
+            do
+            {
+                t = tail.get();
+
+                // Drop the line rather than wait if the writer has fallen behind
+                if( t - head > mask )
+                {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+            while( ! tail.compareAndSet(t, t+1) );
+
+            i = (int)(t & mask);
+            times[i] = System.currentTimeMillis();
+            levels[i] = level;
+            lines.set(i, msg);
+        }
+
+        /*
+         * Format queued lines and write them to the log file in batches.  A
+         * batch is written once logFlushSize bytes are buffered, once the
+         * oldest buffered line is logFlushInterval ms old, or at once when
+         * the interval is 0 and the queue is empty.
+         *
+         * Rotation also happens here, between two batches, so lines queued
+         * while the file is being swapped are simply written to the new one.
+         */
+        private static class LogWriter implements Runnable
+        {
+            private ByteBuffer buf = ByteBuffer.allocateDirect(logFlushSize);
+            private long oldest = 0;
+            private long reportedDrops = 0;
+            private long fileBytes = 0;
+            private long nextRotation = Long.MAX_VALUE;
+            private SimpleDateFormat rotatedFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+            private java.nio.channels.WritableByteChannel stderr = java.nio.channels.Channels.newChannel(System.err);
+
+            public LogWriter()
+            {
+                try
+                {
+                    fileBytes = channel.size();
+                }
+                catch( IOException ioe )
+                {
+                    fileBytes = 0;
+                }
+
+                if( logRotateEnabled == 1 && logRotateInterval > 0 )
+                    nextRotation = System.currentTimeMillis() + logRotateInterval;
+            }
+
+            public void run()
+            {
+                long h;
+                int i;
+                String msg;
+
+                for(;;)
+                {
+                    h = head;
+
+                    if( h == tail.get() )
+                    {
+                        if( dropped.get() != reportedDrops )
+                        {
+                            append(System.currentTimeMillis(), 0, "[WARNING] The log queue was full, " + (dropped.get() - reportedDrops) + " log lines were dropped.");
+                            flightRecorder.record(FlightRecorder.LOG_DROPPED, dropped.get() - reportedDrops);
+                            reportedDrops = dropped.get();
                         }
 
-                        return;
+                        if( buf.position() > 0 && (stopping || logFlushInterval == 0 || System.currentTimeMillis() - oldest >= logFlushInterval) )
+                            flush();
+
+                        if( stopping )
+                            return;
+
+                        if( System.currentTimeMillis() >= nextRotation )
+                            rotate();
+
+                        LockSupport.parkNanos(10000000L);
+                        continue;
+                    }
+
+                    i = (int)(h & mask);
+
+                    // The slot has been claimed but not filled in yet
+                    if( (msg = lines.get(i)) == null )
+                    {
+                        Thread.yield();
+                        continue;
+                    }
+
+                    append(times[i], levels[i], msg);
+
+                    lines.lazySet(i, null);
+                    head = h+1;
+
+                    if( buf.position() >= logFlushSize - 256 )
+                        flush();
+                }
+            }
+
+            private void append(long time, int level, String msg)
+            {
+                int prefix = timestamps.prefix(time).length;
+                byte[] tag = (level > 0 && level < debugTags.length)?debugTags[level]:null;
+                byte[] b = (tag == null && level > 0)?("[DEBUG(" + level + ")] " + msg).getBytes():msg.getBytes();
+                int len = prefix + ((tag != null)?tag.length:0) + b.length + eol.length;
+
+                if( buf.position() == 0 )
+                    oldest = System.currentTimeMillis();
+
+                if( len > buf.remaining() )
+                    flush();
+
+                // Only a line longer than the whole buffer skips it
+                if( len > buf.remaining() )
+                {
+                    write(ByteBuffer.wrap(timestamps.prefix(time)));
+                    if( tag != null ) write(ByteBuffer.wrap(tag));
+                    write(ByteBuffer.wrap(b));
+                    write(ByteBuffer.wrap(eol));
+                    checkSize();
+                    return;
+                }
+
+                timestamps.appendTo(buf, time);
+                if( tag != null ) buf.put(tag);
+                buf.put(b);
+                buf.put(eol);
+            }
+
+            private void flush()
+            {
+                buf.flip();
+                write(buf);
+                buf.clear();
+                checkSize();
+            }
+
+            private void checkSize()
+            {
+                if( logRotateEnabled == 1 && logRotateSize > 0 && fileBytes >= logRotateSize )
+                    rotate();
+            }
+
+            private void write(ByteBuffer b)
+            {
+                logStage.setOwner(Thread.currentThread());
+                logStage.busy();
+
+                try
+                {
+                    // Fall back to stderr while the log file cannot be opened
+                    if( channel.isOpen() || reopen() )
+                    {
+                        while( b.hasRemaining() )
+                            fileBytes += channel.write(b);
                     }
                     else
                     {
-                        logger.writeln( "[ERROR] Client listener thread caught an exception:" );
-                        logger.writeln( "[ERROR] " + se.toString() );
+                        while( b.hasRemaining() )
+                            stderr.write(b);
+                    }
+                }
+                catch( IOException ioe )
+                {
+                    // Nowhere to report it; the lines are lost
+                    b.position(b.limit());
+                }
 
-                        if( debugLevel >= 2 )
-                        {
-                            StackTraceElement[] ste = se.getStackTrace();
+                logStage.idle();
+            }
+
+            private boolean reopen()
+            {
+                try
+                {
+                    channel = openChannel(path);
+                    fileBytes = channel.size();
+                    return true;
+                }
+                catch( IOException ioe )
+                {
+                    return false;
+                }
+            }
+
+            private void rotate()
+            {
+                long now = System.currentTimeMillis();
+                String stamp = rotatedFormat.format(now);
+                File target = new File(path.getPath() + "." + stamp);
+
+                if( logRotateInterval > 0 )
+                    nextRotation = now + logRotateInterval;
+
+                if( buf.position() > 0 )
+                {
+                    buf.flip();
+                    write(buf);
+                    buf.clear();
+                }
+
+                for( int n = 1; target.exists(); n++ )
+                    target = new File(path.getPath() + "." + stamp + "-" + n);
+
+                try
+                {
+                    channel.close();
+                }
+                catch( IOException ioe )
+                {
+                    // Reopened below
+                }
+
+                if( ! path.renameTo(target) )
+                    target = null;
+
+                // Keep logging to the old file if the rename failed.  If the
+                // file cannot be opened at all the lines go to stderr until
+                // write() manages to reopen it.
+                if( ! reopen() )
+                {
+                    System.err.println( "[ERROR] Unable to reopen the log file " + path.getPath() + " after rotating it." );
+                    enqueue(0, "[ERROR] Unable to reopen the log file " + path.getPath() + " after rotating it.");
+                }
+
+                if( target != null )
+                {
+                    enqueue(0, "Rotated the log file to " + target.getName() + ".");
+                    LogRotate.rotated(target);
+                }
+                else
+                {
+                    enqueue(0, "[ERROR] Unable to rotate the log file to " + path.getName() + "." + stamp + ".");
+                }
+            }
+        }
+    }
+
+    /*
+     * Encoded timestamp prefix for log lines, rebuilt at most once per second
+     *
+     * The prefix for the current second is kept as an immutable pair, so any
+     * number of threads can share the cache.  Two threads which both see a
+     * new second may both rebuild it, which does no harm.  Not private so
+     * that bench/TimestampCacheBench.java can time it.
+     */
+    static class TimestampCache
+    {
+        private static class Prefix
+        {
+            final long second;
+            final byte[] bytes;
+
+            Prefix(long second, byte[] bytes)
+            {
+                this.second = second;
+                this.bytes = bytes;
+            }
+        }
+
+        private final String pattern;
+        private volatile Prefix current = new Prefix(Long.MIN_VALUE, new byte[0]);
+
+        public TimestampCache(String pattern)
+        {
+            this.pattern = pattern;
+        }
+
+        // The returned array is shared and must not be modified
+        public byte[] prefix(long time)
+        {
+            Prefix p = current;
+            long second = Math.floorDiv(time, 1000L);
+
+            if( p.second != second )
+            {
+                // SimpleDateFormat is not thread-safe, so each rebuild uses its own
+                p = new Prefix(second, new SimpleDateFormat(pattern).format(second*1000).getBytes());
+                current = p;
+            }
+
+            return p.bytes;
+        }
+
+        // Put the prefix straight into a write buffer
+        public void appendTo(ByteBuffer buf, long time)
+        {
+            buf.put(prefix(time));
+        }
+    }
+
+    /*
+     * Rate limit for repetitive log lines
+     *
+     * Lines are keyed by what happened and the /24 (IPv4) or /64 (IPv6) they
+     * came from.  The first logSuppressBurst lines for a key in each
+     * logSuppressInterval are written; the rest are only counted, and one
+     * summary line is written for them when the interval ends.
+     */
+    private static class LogLimiter
+    {
+        final static int MAX_KEYS = 4096;
+        final static String OVERFLOW_KEY = "*";
+
+        // Values are the window start time, lines written and lines suppressed
+        private LinkedHashMap<String,long[]> windows = new LinkedHashMap<String,long[]>();
+        private long nextFlush = 0;
+
+        // Returns true if the line should be written
+        public synchronized boolean allow(String event, InetAddress a, long now)
+        {
+            if( logSuppressInterval == 0 )
+                return true;
+
+            String key = event + " from " + subnet(a);
+            long[] w = windows.get(key);
+
+            if( w != null && now - w[0] >= logSuppressInterval )
+            {
+                summarize(key, w, now);
+                windows.remove(key);
+                w = null;
+            }
+
+            if( w == null )
+            {
+                // Too many sources at once; count them all together
+                if( windows.size() >= MAX_KEYS )
+                {
+                    key = OVERFLOW_KEY;
+
+                    if( (w = windows.get(key)) == null )
+                        windows.put(key, w = new long[] {now, logSuppressBurst, 0});
+                }
+                else
+                {
+                    windows.put(key, w = new long[] {now, 0, 0});
+                }
+            }
+
+            if( w[1] < logSuppressBurst )
+            {
+                w[1]++;
+                return true;
+            }
+
+            w[2]++;
+            return false;
+        }
+
+        // Write the summaries for the windows which have ended.  Called often;
+        // the windows are only looked at once a second.
+        public synchronized void flush(long now)
+        {
+            if( now < nextFlush || windows.isEmpty() )
+                return;
+
+            nextFlush = now + 1000;
+
+            Iterator<Map.Entry<String,long[]>> it = windows.entrySet().iterator();
+
+            while( it.hasNext() )
+            {
+                Map.Entry<String,long[]> e = it.next();
+
+                // Entries are in the order their windows started
+                if( now - e.getValue()[0] < logSuppressInterval )
+                    break;
+
+                summarize(e.getKey(), e.getValue(), now);
+                it.remove();
+            }
+        }
+
+        private void summarize(String key, long[] w, long now)
+        {
+            if( w[2] == 0 )
+                return;
+
+            if( key.equals(OVERFLOW_KEY) )
+                logger.writeln( "[SUPPRESSED] Suppressed " + String.format("%,d", w[2]) + " lines from other sources in the last " + ((now - w[0])/1000) + "s." );
+            else
+                logger.writeln( "[SUPPRESSED] Suppressed " + String.format("%,d", w[2]) + " similar lines (" + key + ") in the last " + ((now - w[0])/1000) + "s." );
+        }
+
+        private static String subnet(InetAddress a)
+        {
+            byte[] b = a.getAddress();
+
+            if( b.length == 4 )
+                return (b[0] & 0xFF) + "." + (b[1] & 0xFF) + "." + (b[2] & 0xFF) + ".0/24";
+
+            StringBuilder sb = new StringBuilder();
+
+            for( int i = 0; i < 8; i += 2 )
+                sb.append(Integer.toHexString(((b[i] & 0xFF) << 8) | (b[i+1] & 0xFF))).append(':');
+
+            return sb.append(":/64").toString();
+        }
+    }
+
+    /*
+     * Latency histogram
+     *
+     * Log-linear buckets in the style of HdrHistogram: each power of two is
+     * split into SUB_BUCKETS equal parts, so a value is recorded to within
+     * about 3% with a few hundred buckets covering microseconds to days.
+     * Recording is one array increment and never allocates.
+     */
+    private static class LatencyHistogram
+    {
+        final static int SUB_BITS = 5;
+        final static int SUB_BUCKETS = 1 << SUB_BITS;
+        final static int MAX_SHIFT = 40;
+
+        private final String name;
+        private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        public LatencyHistogram(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        // Record a latency given in nanoseconds; it is kept in microseconds
+        public void record(long nanos)
+        {
+            long v = Math.max(nanos/1000, 0);
+
+            counts.incrementAndGet(index(v));
+            sum.add(v);
+        }
+
+        // Sum of all recorded values in microseconds
+        public long sum()
+        {
+            return sum.sum();
+        }
 
-                            for(int x = 0; x < ste.length; x++)
-                                logger.debug(2, ste[x].toString() );
-                        }
+        private static int index(long v)
+        {
+            int shift = Math.min(Math.max(63 - Long.numberOfLeadingZeros(v) - SUB_BITS, 0), MAX_SHIFT);
 
-                        if( clientListenerSocket.isClosed() )
-                        {
-                            listening = false;
-                            logger.writeln( "[ERROR] The client listener socket closed unexpectedly." );
-                            logger.writeln( "[ERROR] Attempting to restart the client listener." );
-                        }
-                        else
-                        {
-                            logger.writeln( "This exception appears to be non-fatal." );
-                        }
-                    }
-                }
-                catch( Exception e )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] caught an exception.");
+            return Math.min(shift*SUB_BUCKETS + (int)(v >>> shift), (MAX_SHIFT + 2) * SUB_BUCKETS - 1);
+        }
 
-                    if( shuttingDown )
-                    {
-                        if( debugLevel >= 3 )
-                            logger.debug(3, name + " [ID=" + id + "] ignored the exception (shutdown flag is set).");
+        // Highest value which falls in a bucket
+        static long highest(int index)
+        {
+            if( index < 2*SUB_BUCKETS )
+                return index;
 
-                        return;
-                    }
+            int shift = index/SUB_BUCKETS - 1;
 
-                    logger.writeln( "[ERROR] Client listener thread caught an exception:" );
-                    logger.writeln( "[ERROR] " + e.toString() );
+            return ((long)(index - shift*SUB_BUCKETS + 1) << shift) - 1;
+        }
 
-                    if( debugLevel >= 2 )
-                    {
-                        StackTraceElement[] ste = e.getStackTrace();
+        public long[] snapshot()
+        {
+            long[] s = new long[counts.length()];
 
-                        for(int x = 0; x < ste.length; x++)
-                            logger.debug(2, ste[x].toString() );
-                    }
+            for( int i = 0; i < s.length; i++ )
+                s[i] = counts.get(i);
 
-                    if( clientListenerSocket.isClosed() )
-                    {
-                        listening = false;
-                        logger.writeln( "[ERROR] The client listener socket closed unexpectedly." );
-                        logger.writeln( "[ERROR] Attempting to restart the client listener." );
-                    }
-                    else
-                    {
-                        logger.writeln( "This exception appears to be non-fatal." );
-                    }
-                }
-            }
+            return s;
         }
 
-        private void runClientListener() throws Exception
+        // Samples recorded between two snapshots
+        public static long[] difference(long[] s, long[] earlier)
         {
-            if( ! listening )
-            {
-                // Create the TCP listen socket
-                addr = InetAddress.getByName(clientListenAddress);
-                clientListenerSocket = new ServerSocket(clientListenPort, 1, addr);
+            long[] d = new long[s.length];
 
-                // Set the listening flag
-                listening = true;
+            for( int i = 0; i < s.length; i++ )
+                d[i] = s[i] - earlier[i];
 
-                logger.writeln( "Client listener started; listening for clients on " + clientListenAddress + ":" + clientListenPort + " (TCP)." );
-            }
+            return d;
+        }
 
-            byte[] dataBytes = new byte[2048];
-            ByteBuffer dataBuffer = ByteBuffer.wrap(dataBytes);
-            dataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        public static long count(long[] s)
+        {
+            long n = 0;
 
-            for(;;)
-            {
-                dataBuffer.clear();
+            for( int i = 0; i < s.length; i++ )
+                n += s[i];
 
-                // Create a new open socket for the next connection
-                Socket clientSocket = clientListenerSocket.accept();
+            return n;
+        }
 
-                // Set the I/O timeout for the client socket
-                clientSocket.setSoTimeout(connectTimeout);
+        // Value in microseconds below which the fraction q of the samples fall
+        public static long percentile(long[] s, double q)
+        {
+            long n = count(s);
+            long seen = 0;
 
-                // Get the client's IP address
-                clientIp = clientSocket.getInetAddress().getHostAddress();
+            if( n == 0 )
+                return 0;
 
-                // Close this connection immediately if the client IP is banned
-                if( bannedClients.containsKey(clientIp) )
-                {
-                    clientSocket.close();
+            long target = Math.max((long)Math.ceil(n * q), 1);
 
-                    if( debugLevel >= 3 )
-                        logger.debug(3, "Ignored request from banned IP address " + clientIp + ".");
+            for( int i = 0; i < s.length; i++ )
+            {
+                if( (seen += s[i]) >= target )
+                    return highest(i);
+            }
 
-                    continue;
-                }
+            return highest(s.length - 1);
+        }
 
-                // Get the current time
-                connectTimeMillis = System.currentTimeMillis();
+        public String summary()
+        {
+            long[] s = snapshot();
 
-                // Get the client's port number
-                clientPort = clientSocket.getPort();
-                clientString = clientIp + ":" + clientPort;
+            return name + ": p50=" + percentile(s, 0.50) + "us, p99=" + percentile(s, 0.99) + "us, p999=" + percentile(s, 0.999) + "us (" + count(s) + " samples)";
+        }
+    }
 
-                // Send our identity string to the client
-                sendMessageToClient(clientSocket, PTYPE_IDENTITY_STRING, IDENTITY_STRING);
+    /*
+     * Metrics in the Prometheus text format, served over HTTP on localhost
+     *
+     * Everything is read from counters which are safe to read without a lock
+     * (LongAdders, atomic arrays and volatile fields) so a scrape never holds
+     * up the threads which relay messages.
+     */
+    private static class MetricsServer implements com.sun.net.httpserver.HttpHandler
+    {
+        // Bucket bounds for the latency histograms, in microseconds
+        final static long[] BUCKETS = { 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000 };
 
-                if( debugLevel >= 3 )
-                    logger.debug(3, "Identity string has been sent to " + clientString + ".");
+        private com.sun.net.httpserver.HttpServer server;
+
+        public void start() throws IOException
+        {
+            server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), metricsListenPort), 0);
+            server.createContext("/metrics", this);
+            server.start();
+        }
 
-                // Get the input buffer of the socket
-                in = clientSocket.getInputStream(); 
+        public void stop()
+        {
+            if( server != null )
+                server.stop(0);
+        }
 
-                try
-                {
-                    in.read(dataBytes, 0, 7);
-                }
-                catch( SocketTimeoutException ste )
+        public void handle(com.sun.net.httpserver.HttpExchange x) throws IOException
+        {
+            try
+            {
+                if( ! x.getRequestMethod().equals("GET") )
                 {
-                    logger.writeln( "Rejecting client " + clientString + " : No connection request." );
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    continue;
+                    x.sendResponseHeaders(405, -1);
+                    return;
                 }
-                catch( Exception e )
-                {
-                    logger.writeln( "Rejecting client " + clientString + " : Error reading request header (" + e.toString() + ")." );
-
-                    if( debugLevel >= 2 )
-                    {
-                        StackTraceElement[] ste = e.getStackTrace();
 
-                        for(int x = 0; x < ste.length; x++)
-                            logger.debug(2, ste[x].toString() );
-                    }
+                byte[] b = render().getBytes("UTF-8");
 
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    continue;
-                }
+                x.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                x.sendResponseHeaders(200, b.length);
+                x.getResponseBody().write(b);
+            }
+            finally
+            {
+                x.close();
+            }
+        }
 
-                if( debugLevel >= 2 )
-                    logger.debug(2, "Validating connection request from " + clientString + ".");
+        private String render()
+        {
+            StringBuilder sb = new StringBuilder(8192);
+            int queued = 0;
+            int maxQueued = 0;
 
-                if( (reqHeader = dataBuffer.getInt()) != PACKET_HEADER )
+            for( int i = 0; i < maxClients; i++ )
+            {
+                if( connections[i].isAlive() )
                 {
-                    if( debugLevel >= 3 )
-                    {
-                        String exp = "0x" + Integer.toHexString(PACKET_HEADER).toUpperCase();
-                        String rcv = "0x" + String.format("%8s", Integer.toHexString(reqHeader)).replace(' ','0').toUpperCase();
-                        logger.debug(3, "Request contains an invalid header (expected " + exp + ", received " + rcv + ").");
-                    }
-
-                    logger.writeln( "Rejecting client " + clientString + " : Invalid packet (bad header)." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
+                    int n = connections[i].getQueueDepth();
+                    queued += n;
+                    maxQueued = Math.max(maxQueued, n);
                 }
+            }
 
-                if( (reqType = dataBuffer.get()) != PTYPE_CONNECTION_REQUEST )
-                {
-                    if( debugLevel >= 3 )
-                    {
-                        String exp = "0x" + String.format("%2s", Byte.toString(PTYPE_CONNECTION_REQUEST)).replace(' ','0').toUpperCase();
-                        String rcv = "0x" + String.format("%2s", Byte.toString(reqType)).replace(' ','0').toUpperCase();
-                        logger.debug(3, "Request contains an invalid packet type (expected " + exp + ", received " + rcv + ").");
-                    }
+            metric(sb, "checkvalve_packets_received_total", "counter", "Log messages received from game servers.", totalPackets.sum());
+            metric(sb, "checkvalve_packets_relayed_total", "counter", "Log messages wanted by at least one client.", relayedPackets.sum());
+            metric(sb, "checkvalve_messages_queued_total", "counter", "Messages queued for clients (fan-out).", queuedMessages.sum());
+            metric(sb, "checkvalve_messages_dropped_total", "counter", "Messages dropped because a client's send queue was full.", droppedMessages.sum());
+            metric(sb, "checkvalve_connections_accepted_total", "counter", "Client connections accepted.", acceptedConnections.sum());
+            metric(sb, "checkvalve_connections_rejected_total", "counter", "Client connections rejected.", rejectedConnections.sum());
+            metric(sb, "checkvalve_connections_capped_total{cap=\"ip\"}", "counter", "Client connections refused by a connection cap.", ipCapRejections);
+            sb.append("checkvalve_connections_capped_total{cap=\"server\"} ").append(serverCapRejections).append('\n');
+            metric(sb, "checkvalve_dead_peer_removals_total", "counter", "Clients removed for not acknowledging heartbeats.", deadPeerRemovals);
+            metric(sb, "checkvalve_pipeline_stalls_total", "counter", "Pipeline stages found making no progress by the watchdog.", pipelineStalls);
+            metric(sb, "checkvalve_log_lines_dropped_total", "counter", "Log lines dropped because the log queue was full.", logger.dropped());
+            metric(sb, "checkvalve_clients_connected", "gauge", "Clients currently connected.", numClients.sum());
+            metric(sb, "checkvalve_clients_banned", "gauge", "Client IP addresses currently banned.", bannedClients.size());
+            metric(sb, "checkvalve_send_queue_depth", "gauge", "Messages waiting in all client send queues.", queued);
+            metric(sb, "checkvalve_send_queue_depth_max", "gauge", "Messages waiting in the fullest client send queue.", maxQueued);
+            metric(sb, "checkvalve_log_queue_depth", "gauge", "Log lines waiting to be written.", logger.queued());
+
+            List<HeavyHitters.Source> sources = heavyHitters.top(heavyHitterReport, false);
+
+            sb.append("# HELP checkvalve_source_datagrams Datagrams from the heaviest sources (may be over by checkvalve_source_datagrams_error).\n# TYPE checkvalve_source_datagrams gauge\n");
+            for( HeavyHitters.Source s : sources )
+                sb.append("checkvalve_source_datagrams{source=\"").append(label(s.address)).append("\"} ").append(s.datagrams).append('\n');
+
+            sb.append("# HELP checkvalve_source_datagrams_error Possible overcount of checkvalve_source_datagrams.\n# TYPE checkvalve_source_datagrams_error gauge\n");
+            for( HeavyHitters.Source s : sources )
+                sb.append("checkvalve_source_datagrams_error{source=\"").append(label(s.address)).append("\"} ").append(s.error).append('\n');
+
+            sb.append("# HELP checkvalve_source_bytes Bytes from the heaviest sources since they were last given a counter.\n# TYPE checkvalve_source_bytes gauge\n");
+            for( HeavyHitters.Source s : sources )
+                sb.append("checkvalve_source_bytes{source=\"").append(label(s.address)).append("\"} ").append(s.bytes).append('\n');
+
+            sb.append("# HELP checkvalve_latency_seconds Latency of each stage from receiving a log message to writing it to a client.\n");
+            sb.append("# TYPE checkvalve_latency_seconds histogram\n");
+
+            for( LatencyHistogram h : latencyHistograms )
+                histogram(sb, "checkvalve_latency_seconds", h);
+
+            // JVM
+            Runtime rt = Runtime.getRuntime();
+            metric(sb, "checkvalve_jvm_memory_used_bytes", "gauge", "Heap memory in use.", rt.totalMemory() - rt.freeMemory());
+            metric(sb, "checkvalve_jvm_memory_max_bytes", "gauge", "Maximum heap memory.", rt.maxMemory());
+
+            sb.append("# HELP checkvalve_jvm_gc_collections_total Garbage collections.\n# TYPE checkvalve_jvm_gc_collections_total counter\n");
+            for( JvmHealth.Item g : jvmHealth.getGcs() )
+                sb.append("checkvalve_jvm_gc_collections_total{gc=\"").append(label(g.name)).append("\"} ").append(g.a).append('\n');
+
+            sb.append("# HELP checkvalve_jvm_gc_seconds_total Time spent in garbage collection.\n# TYPE checkvalve_jvm_gc_seconds_total counter\n");
+            for( JvmHealth.Item g : jvmHealth.getGcs() )
+                sb.append("checkvalve_jvm_gc_seconds_total{gc=\"").append(label(g.name)).append("\"} ").append(g.b/1000.0).append('\n');
+
+            sb.append("# HELP checkvalve_jvm_gc_last_pause_seconds Duration of the last collection.\n# TYPE checkvalve_jvm_gc_last_pause_seconds gauge\n");
+            for( JvmHealth.Item g : jvmHealth.getGcs() )
+                if( g.c >= 0 )
+                    sb.append("checkvalve_jvm_gc_last_pause_seconds{gc=\"").append(label(g.name)).append("\"} ").append(g.c/1000.0).append('\n');
+
+            metric(sb, "checkvalve_jvm_threads_live", "gauge", "Live threads.", jvmHealth.getLiveThreads());
+            metric(sb, "checkvalve_jvm_threads_peak", "gauge", "Highest number of live threads since the relay started.", jvmHealth.getPeakThreads());
+
+            sb.append("# HELP checkvalve_thread_cpu_seconds_total CPU time used by each relay thread (client writers added together).\n# TYPE checkvalve_thread_cpu_seconds_total counter\n");
+            for( JvmHealth.Item t : jvmHealth.getThreads() )
+                sb.append("checkvalve_thread_cpu_seconds_total{thread=\"").append(label(t.name)).append("\"} ").append(t.a/1000000.0).append('\n');
+
+            if( jvmHealth.getProcessCpuLoad() >= 0 )
+            {
+                sb.append("# HELP checkvalve_process_cpu_load Share of all CPUs used by the relay over the last second.\n# TYPE checkvalve_process_cpu_load gauge\n");
+                sb.append("checkvalve_process_cpu_load ").append(jvmHealth.getProcessCpuLoad()/1000.0).append('\n');
+                sb.append("# HELP checkvalve_process_cpu_seconds_total CPU time used by the relay.\n# TYPE checkvalve_process_cpu_seconds_total counter\n");
+                sb.append("checkvalve_process_cpu_seconds_total ").append(jvmHealth.getProcessCpuTime()/1000.0).append('\n');
+            }
 
-                    logger.writeln( "Rejecting client " + clientString + " : Invalid packet (bad packet type)." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
-                }
+            sb.append("# HELP checkvalve_jvm_buffer_pool_used_bytes Memory used by NIO buffer pools.\n# TYPE checkvalve_jvm_buffer_pool_used_bytes gauge\n");
+            for( JvmHealth.Item p : jvmHealth.getPools() )
+                sb.append("checkvalve_jvm_buffer_pool_used_bytes{pool=\"").append(label(p.name)).append("\"} ").append(p.b).append('\n');
 
-                contentLength = dataBuffer.getShort();
+            sb.append("# HELP checkvalve_jvm_buffer_pool_buffers NIO buffers in each pool.\n# TYPE checkvalve_jvm_buffer_pool_buffers gauge\n");
+            for( JvmHealth.Item p : jvmHealth.getPools() )
+                sb.append("checkvalve_jvm_buffer_pool_buffers{pool=\"").append(label(p.name)).append("\"} ").append(p.a).append('\n');
 
-                if( contentLength < 1 || contentLength > 4096 )
-                {
-                    if( debugLevel >= 3 )
-                    {
-                        String rcv = "0x" + String.format("%4s", Integer.toHexString((int)contentLength)).replace(' ','0').toUpperCase();
-                        logger.debug(3, "Request contains an invalid content length (" + rcv + ").");
-                    }
+            return sb.toString();
+        }
 
-                    logger.writeln( "Rejecting client " + clientString + " : Invalid content length." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Invalid content length");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
-                }
+        private static void metric(StringBuilder sb, String name, String type, String help, long value)
+        {
+            String base = (name.indexOf('{') > 0)?name.substring(0, name.indexOf('{')):name;
 
-                //
-                // Read the rest of the packet data
-                //
+            sb.append("# HELP ").append(base).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(base).append(' ').append(type).append('\n');
+            sb.append(name).append(' ').append(value).append('\n');
+        }
 
-                try
-                {
-                    in.read(dataBytes, dataBuffer.position(), contentLength);
-                }
-                catch( SocketTimeoutException ste )
-                {
-                    logger.writeln( "Rejecting client " + clientString + " : Socket timeout while waiting for request data." );
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    continue;
-                }
-                catch( Exception e )
-                {
-                    logger.writeln( "Rejecting client " + clientString + " : Error reading request data (" + e.toString() + ")." );
+        private static void histogram(StringBuilder sb, String name, LatencyHistogram h)
+        {
+            long[] s = h.snapshot();
+            String stage = "stage=\"" + h.getName() + "\"";
+            long cumulative = 0;
+            int i = 0;
 
-                    if( debugLevel >= 2 )
-                    {
-                        StackTraceElement[] ste = e.getStackTrace();
+            for( long bound : BUCKETS )
+            {
+                // Buckets whose values are all within the bound
+                while( i < s.length && LatencyHistogram.highest(i) <= bound )
+                    cumulative += s[i++];
 
-                        for(int x = 0; x < ste.length; x++)
-                            logger.debug(2, ste[x].toString() );
-                    }
+                sb.append(name).append("_bucket{").append(stage).append(",le=\"").append(java.math.BigDecimal.valueOf(bound, 6).stripTrailingZeros().toPlainString()).append("\"} ").append(cumulative).append('\n');
+            }
 
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    continue;
-                }
+            while( i < s.length )
+                cumulative += s[i++];
 
-                data = new String(dataBytes, dataBuffer.position(), contentLength, "UTF-8");
+            sb.append(name).append("_bucket{").append(stage).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(name).append("_sum{").append(stage).append("} ").append(h.sum()/1000000.0).append('\n');
+            sb.append(name).append("_count{").append(stage).append("} ").append(cumulative).append('\n');
+        }
 
-                // Make sure the packet has data
-                if( (data == null) || (data.length() < 2) )
+        private static String label(String s)
+        {
+            return s.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+    }
+
+    /*
+     * Traffic from each game server
+     *
+     * An open-addressing table keyed by address and port in primitive arrays.
+     * Each column has a single writer: the MessageListener adds servers and
+     * counts what they send, and SendConsoleMessage counts what is relayed.
+     * Readers see slightly stale figures but nothing ever takes a lock.
+     */
+    private static class ServerTraffic
+    {
+        final static int CAPACITY = 1024;
+        final static int SLOTS = CAPACITY * 2;
+
+        private final long[] hi = new long[SLOTS];
+        private final long[] lo = new long[SLOTS];
+        private final AtomicIntegerArray ports = new AtomicIntegerArray(SLOTS);
+        private final long[] datagrams = new long[SLOTS];
+        private final long[] bytes = new long[SLOTS];
+        private final long[] relayed = new long[SLOTS];
+        private final long[] lastSeen = new long[SLOTS];
+        private int size = 0;
+        private volatile long untracked = 0;
+
+        // Count a datagram from a server.  Called only by the MessageListener.
+        // Returns the server's slot, or -1 if the table is full.
+        public int received(InetAddress a, int port, int length, long now)
+        {
+            long h = BanTable.addressHigh(a);
+            long l = BanTable.addressLow(a);
+            int i = find(h, l, port);
+
+            if( ports.get(i) == 0 )
+            {
+                if( size >= CAPACITY )
                 {
-                    logger.writeln( "Rejecting client " + clientString + " : Empty packet." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Empty packet");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
+                    untracked++;
+                    return -1;
                 }
 
-                // Make sure the packet data conforms to the protocol
-                if( ! data.startsWith( "P ") )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, "Incorrect start of packet data (expected 'P ', found '" + data.substring(0,2) + "').");
+                hi[i] = h;
+                lo[i] = l;
+                size++;
 
-                    logger.writeln( "Rejecting client " + clientString + " : Invalid packet (bad connection request)." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
-                }
+                // Ports are stored plus one so that 0 marks an empty slot
+                ports.lazySet(i, port + 1);
+            }
 
-                // Split the remaining packet data into strings delimited by 0x00
-                fields = data.split( "\u0000" );
+            datagrams[i]++;
+            bytes[i] += length;
+            lastSeen[i] = now;
 
-                //
-                // FIELDS:
-                //    [0]: Password (ignored if no password is required)
-                //    [1]: IP of the game server from which this client wants console messages
-                //    [2]: Port of the game server from which this client wants console messages
-                //
+            return i;
+        }
 
-                // Make sure the packet has 3 fields
-                if( fields.length != 3 )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, "Incorrect number of fields in packet data (expected 3, found " + fields.length + ").");
+        // Count a message which was queued for at least one client.  Called only by SendConsoleMessage.
+        public void relayed(int slot)
+        {
+            if( slot >= 0 )
+                relayed[slot]++;
+        }
 
-                    logger.writeln( "Rejecting client " + clientString + " : Invalid packet (unable to parse)." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Invalid packet");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
-                }
+        private int find(long h, long l, int port)
+        {
+            long x = (h * 0x9E3779B97F4A7C15L) ^ (l * 0xC2B2AE3D27D4EB4FL) ^ port;
+            int i = (int)(x ^ (x >>> 29)) & (SLOTS - 1);
+            int p;
+
+            while( (p = ports.get(i)) != 0 && (p != port + 1 || hi[i] != h || lo[i] != l) )
+                i = (i + 1) & (SLOTS - 1);
+
+            return i;
+        }
+
+        public long untracked()
+        {
+            return untracked;
+        }
 
-                // Validate the password in this packet if one is required
-                if( password.length() > 0 )
-                {
-                    clientPass = fields[0].substring(2, fields[0].length());
+        // Slots in use, busiest (most bytes) first
+        public List<Integer> sorted()
+        {
+            List<Integer> slots = new ArrayList<Integer>();
 
-                    if( ! clientPass.equals(password) )
-                    {
-                        logger.writeln( "Rejecting client " + clientString + " : Bad password." );
-                        sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Bad password");
-                        updateBanList(clientIp);
-                        in.close();
-                        clientSocket.close();
-                        rejectedConnections++;
-                        continue;
-                    }
-                }
+            for( int i = 0; i < SLOTS; i++ )
+                if( ports.get(i) != 0 )
+                    slots.add(i);
 
-                // Validate requested IP address
-                if( ! isValidIPv4Address(fields[1]) && ! isValidIPv6Address(fields[1]) )
+            Collections.sort(slots, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
                 {
-                    logger.writeln( "Rejecting client " + clientString + " : Bad IP address in request." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Bad IP address");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
+                    return Long.compare(bytes[b], bytes[a]);
                 }
+            });
 
-                // Validate requested port
-                if( ! isValidPortNumber(fields[2]) )
-                {
-                    logger.writeln( "Rejecting client " + clientString + " : Bad port number in request." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Bad port number");
-                    updateBanList(clientIp);
-                    in.close();
-                    clientSocket.close();
-                    rejectedConnections++;
-                    continue;
-                }
+            return slots;
+        }
 
-                //
-                // Connection request is valid
-                //
+        public String serverString(int slot)
+        {
+            return BanTable.addressString(hi[slot], lo[slot]) + ":" + (ports.get(slot) - 1);
+        }
 
-                // Remove the bad connection counter for this IP if one exists
-                if( badConnectionAttempts.containsKey(clientIp) )
-                {
-                    badConnectionAttempts.remove(clientIp);
-                    
-                    if( debugLevel >= 2 )
-                        logger.debug(2, "Removed bad connection counter for " + clientIp + ".");
-                }
+        public long getDatagrams(int slot)
+        {
+            return datagrams[slot];
+        }
 
-                // Assign this client to the next available slot or reject the connection if no slots are available
-                if( (nextSlot = getNextSlot()) != -1 )
-                {
-                    logger.writeln( "New client connection from " + clientString + "." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_SUCCESS, "OK");
+        public long getBytes(int slot)
+        {
+            return bytes[slot];
+        }
 
-                    // Use the Connection class to handle everything
-                    connections[nextSlot] = new Connection( clientSocket, fields[1], fields[2] );
+        public long getRelayed(int slot)
+        {
+            return relayed[slot];
+        }
 
-                    if( debugLevel >= 2 )
-                        logger.debug(2, "Created a new Connection object for " + clientString + " in slot " + nextSlot + ".");
+        public long getLastSeen(int slot)
+        {
+            return lastSeen[slot];
+        }
+    }
 
-                    logger.writeln( "Assigned client " + clientString + " to slot " + nextSlot );
-                    logger.writeln( "Client " + clientString + " wants messages from " + fields[1] + ":" + fields[2] );
-                }
-                else
-                {
-                    logger.writeln( "Refusing connection from " + clientString + " : Too many connections." );
-                    sendMessageToClient(clientSocket, PTYPE_CONNECTION_FAILURE, "E Too many connections");
-                    clientSocket.close();
-                    rejectedConnections++;
-                }
-            }
+    /*
+     * Heaviest datagram sources, tracked with the Space-Saving algorithm
+     *
+     * A fixed number of counters is shared by every address and port which
+     * sends to the message port, wanted or not.  A source without a counter
+     * takes over the one with the lowest count and inherits that count as its
+     * possible overestimate, so any source sending more than 1/size of all
+     * datagrams is sure to hold a counter however many sources there are.
+     * The counters sit in a min-heap by count with an open-addressing index
+     * beside it, so each datagram costs O(log size) and no allocation.  Only
+     * the MessageListener writes; readers take a plain copy of the arrays
+     * under the lock and do their sorting and formatting after releasing it,
+     * so the MessageListener waits for no more than a few array copies.
+     */
+    private static class HeavyHitters
+    {
+        private final int size;
+        private final int mask;
+        private final long[] hi;
+        private final long[] lo;
+        private final int[] port;
+        private final long[] count;
+        private final long[] error;
+        private final long[] bytes;
+        private final int[] heap;   // Counters, lowest count at the root
+        private final int[] pos;    // Position of each counter in the heap
+        private final int[] index;  // Counter plus one, or 0 for an empty slot
+        private int used = 0;
+        private long total = 0;
+
+        // A source as reported, copied out of the sketch
+        static class Source
+        {
+            String address;
+            long datagrams;
+            long error;
+            long bytes;
         }
 
-        private void updateBanList(String ip)
+        public HeavyHitters(int n)
         {
-            if( autoBanEnabled == 0 )
+            int slots = 1;
+
+            while( slots < n*2 )
+                slots <<= 1;
+
+            size = n;
+            mask = slots - 1;
+            hi = new long[n];
+            lo = new long[n];
+            port = new int[n];
+            count = new long[n];
+            error = new long[n];
+            bytes = new long[n];
+            heap = new int[n];
+            pos = new int[n];
+            index = new int[(n > 0)?slots:0];
+        }
+
+        public synchronized void offer(InetAddress a, int p, int length)
+        {
+            if( size == 0 )
                 return;
 
-            if( badConnectionAttempts.containsKey(ip) )
+            long h = BanTable.addressHigh(a);
+            long l = BanTable.addressLow(a);
+            int i = find(h, l, p);
+            int c;
+
+            total++;
+
+            if( index[i] != 0 )
             {
-                int num = badConnectionAttempts.get(ip).intValue();
-                long now = System.currentTimeMillis();
-                long last = badAttemptTimes.get(ip).longValue();
-                long diff = now - last;
+                c = index[i] - 1;
+            }
+            else if( used < size )
+            {
+                c = used++;
+                heap[c] = c;
+                pos[c] = c;
+                set(c, h, l, p, i, 0);
+            }
+            else
+            {
+                // Take over the counter with the lowest count
+                c = heap[0];
+                remove(find(hi[c], lo[c], port[c]));
+                set(c, h, l, p, find(h, l, p), count[c]);
+            }
 
-                if( debugLevel >= 2 )
-                    logger.debug(2, ip + " has previously had " + num + " bad connection attempt(s).");
+            count[c]++;
+            bytes[c] += length;
 
-                if( debugLevel >= 2 )
-                    logger.debug(2, "Last bad connection attempt from " + ip + " was " + diff + " milliseconds ago.");
+            if( count[c] == 1 )
+                siftUp(pos[c]);
+            else
+                siftDown(pos[c]);
+        }
 
-                if( autoBanTimeLimit == 0 || diff < autoBanTimeLimit )
-                {
-                    if( (num+1) == autoBanThreshold )
-                    {
-                        bannedClients.put(ip, Long.valueOf(now));
+        // The n sources with the most datagrams (or bytes), highest first
+        public List<Source> top(int n, boolean byBytes)
+        {
+            List<Source> list = new ArrayList<Source>();
+            long[] h, l, d, e, b;
+            int[] p;
 
-                        if( debugLevel >= 2 )
-                            logger.debug(2, "Created a new ban entry for " + ip + ".");
+            synchronized( this )
+            {
+                h = Arrays.copyOf(hi, used);
+                l = Arrays.copyOf(lo, used);
+                p = Arrays.copyOf(port, used);
+                d = Arrays.copyOf(count, used);
+                e = Arrays.copyOf(error, used);
+                b = Arrays.copyOf(bytes, used);
+            }
 
-                        badConnectionAttempts.remove(ip);
-                        badAttemptTimes.remove(ip);
-                    
-                        if( debugLevel >= 2 )
-                            logger.debug(2, "Removed bad connection counter for " + ip + ".");
+            Integer[] order = new Integer[h.length];
 
-                        logger.writeln( "[AUTO-BAN] Banning IP " + clientIp + " after " + (num+1) + " failed connection attempts." );
-                        logger.writeln( "[AUTO-BAN] Future connection attempts from " + ip + " will be ignored." );
-                    }
-                    else
-                    {
-                        num++;
-                        badConnectionAttempts.put(ip, num);
+            for( int c = 0; c < order.length; c++ )
+                order[c] = c;
 
-                        if( debugLevel >= 2 )
-                            logger.debug(2, "Updated bad connection counter for " + ip + " to " + num + ".");
-                    }
+            final long[] key = (byBytes)?b:d;
 
-                    return;
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    return Long.compare(key[b], key[a]);
                 }
-            }
+            });
 
-            badConnectionAttempts.put(ip, 1);
-            badAttemptTimes.put(ip, Long.valueOf(System.currentTimeMillis()));
+            for( int i = 0; i < order.length && i < n; i++ )
+            {
+                Source s = new Source();
+                s.address = BanTable.addressString(h[order[i]], l[order[i]]) + ":" + p[order[i]];
+                s.datagrams = d[order[i]];
+                s.error = e[order[i]];
+                s.bytes = b[order[i]];
+                list.add(s);
+            }
 
-            if( debugLevel >= 2 )
-                logger.debug(2, "Started a bad connection counter for " + ip + ".");
+            return list;
+        }
 
-            return;
+        public synchronized long total()
+        {
+            return total;
         }
 
-        private int getNextSlot()
+        private void set(int c, long h, long l, int p, int slot, long min)
         {
-            if( debugLevel >= 3 )
-                logger.debug(3, "Looking for an available connection slot.");
+            hi[c] = h;
+            lo[c] = l;
+            port[c] = p;
+            count[c] = min;
+            error[c] = min;
+            bytes[c] = 0;
+            index[slot] = c + 1;
+        }
 
-            for( int i = 0; i < maxClients; i++ )
-            {
-                if( ! connections[i].isAlive() )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, "Slot " + i + " is available.");
+        private int home(long h, long l, int p)
+        {
+            long x = (h * 0x9E3779B97F4A7C15L) ^ (l * 0xC2B2AE3D27D4EB4FL) ^ p;
+            return (int)(x ^ (x >>> 29)) & mask;
+        }
 
-                    return i;
-                }
-            }
+        // The slot holding this source, or the empty slot where it would go
+        private int find(long h, long l, int p)
+        {
+            int i = home(h, l, p);
+            int c;
 
-            if( debugLevel >= 3 )
-                logger.debug(3, "Failed to find an available connection slot.");
+            while( (c = index[i]) != 0 && (port[c-1] != p || hi[c-1] != h || lo[c-1] != l) )
+                i = (i + 1) & mask;
 
-            return -1;
+            return i;
         }
 
-        private boolean isValidIPv6Address(String address)
+        // Empty a slot, shifting back any entry which would no longer be found
+        private void remove(int i)
         {
-            try
-            {
-                java.net.Inet6Address.getByName(address);
-                return true;
-            }
-            catch( Exception e )
+            int j = i;
+
+            for(;;)
             {
-                if( debugLevel >= 3 )
-                    logger.debug(3, address + " is not a valid IPv6 address.");
+                j = (j + 1) & mask;
 
-                return false;
+                if( index[j] == 0 )
+                    break;
+
+                int c = index[j] - 1;
+                int k = home(hi[c], lo[c], port[c]);
+
+                if( (j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j)) )
+                {
+                    index[i] = index[j];
+                    i = j;
+                }
             }
+
+            index[i] = 0;
         }
 
-        private boolean isValidIPv4Address(String address)
+        private void siftUp(int i)
         {
-            try
+            while( i > 0 && count[heap[(i-1)/2]] > count[heap[i]] )
             {
-                java.net.Inet4Address.getByName(address);
-                return true;
+                swap(i, (i-1)/2);
+                i = (i-1)/2;
             }
-            catch( Exception e )
+        }
+
+        private void siftDown(int i)
+        {
+            for(;;)
             {
-                if( debugLevel >= 3 )
-                    logger.debug(3, address + " is not a valid IPv4 address.");
+                int l = 2*i + 1;
+                int m = i;
 
-                return false;
+                if( l < used && count[heap[l]] < count[heap[m]] )
+                    m = l;
+
+                if( l+1 < used && count[heap[l+1]] < count[heap[m]] )
+                    m = l+1;
+
+                if( m == i )
+                    return;
+
+                swap(i, m);
+                i = m;
             }
         }
 
-        private boolean isValidPortNumber(String s)
+        private void swap(int a, int b)
         {
-            try
-            {
-                int i = Integer.parseInt(s);
+            int t = heap[a];
+            heap[a] = heap[b];
+            heap[b] = t;
+            pos[heap[a]] = a;
+            pos[heap[b]] = b;
+        }
+    }
 
-                if( i > 0 && i < 65536 )
-                    return true;
-                else
-                    return false;
-            }
-            catch( Exception e )
-            {
-                if( debugLevel >= 3 )
-                    logger.debug(3, s + " is not a valid port number.");
+    /*
+     * JVM health from the platform MXBeans
+     *
+     * Sampled once a second by the StatsHistory thread so that readers (the
+     * stats log, the control port and the metrics endpoint) only copy the
+     * last sample.  CPU figures for the relay's own threads are kept by name;
+     * the clients' writer threads are added up under one name.
+     */
+    private static class JvmHealth
+    {
+        // Snapshot of one garbage collector, buffer pool or thread
+        static class Item
+        {
+            String name;
+            long a;
+            long b;
+            long c;
 
-                return false;
+            Item(String n, long x, long y, long z)
+            {
+                name = n;
+                a = x;
+                b = y;
+                c = z;
             }
         }
 
-        private void sendMessageToClient(Socket sock, byte ptype, String message)
+        private final List<Thread> watched = new ArrayList<Thread>();
+        private final Map<String,Long> lastCpu = new HashMap<String,Long>();
+        private Map<Long,Long> writerCpu = new HashMap<Long,Long>();   // Live writers at the last sample
+        private long closedWriters = 0;                                 // Writers which have gone (ns)
+        private long lastSample = 0;
+
+        // Written by sample(), read by anyone
+        private volatile List<Item> gcs = new ArrayList<Item>();         // collections, time (ms), last pause (ms)
+        private volatile List<Item> pools = new ArrayList<Item>();       // buffers, used, capacity (bytes)
+        private volatile List<Item> threads = new ArrayList<Item>();     // CPU time (us), CPU over the last sample (per mille)
+        private volatile long gcCount = 0;
+        private volatile long gcTime = 0;
+        private volatile long liveThreads = 0;
+        private volatile long peakThreads = 0;
+        private volatile long daemonThreads = 0;
+        private volatile long processCpuLoad = -1;   // Per mille of all CPUs, -1 if not available
+        private volatile long processCpuTime = -1;   // Milliseconds
+
+        public synchronized void watch(Thread t)
         {
-            try
+            if( t != null )
+                watched.add(t);
+        }
+
+        public synchronized void sample()
+        {
+            ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+            java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            List<Item> g = new ArrayList<Item>();
+            List<Item> p = new ArrayList<Item>();
+            List<Item> t = new ArrayList<Item>();
+            long now = System.nanoTime();
+            long elapsed = now - lastSample;
+            long count = 0;
+            long time = 0;
+
+            for( java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() )
             {
-                byte[] messageData = new byte[4096];
-                byte[] messageBytes = message.getBytes("UTF-8");
+                long pause = -1;
 
-                ByteBuffer buffer = ByteBuffer.wrap(messageData);
+                // The duration of the last collection is only offered by HotSpot's own interface
+                if( gc instanceof com.sun.management.GarbageCollectorMXBean )
+                {
+                    com.sun.management.GcInfo info = ((com.sun.management.GarbageCollectorMXBean)gc).getLastGcInfo();
 
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                buffer.putInt(PACKET_HEADER);
-                buffer.put(ptype);
-                buffer.putShort((short)(messageBytes.length + 1));
-                buffer.put(messageBytes);
-                buffer.put(BYTE_ZERO);
-                buffer.flip();
+                    if( info != null )
+                        pause = info.getDuration();
+                }
 
-                OutputStream out = sock.getOutputStream();
-                out.write(buffer.array(), 0, buffer.limit());
-                out.flush();
+                g.add(new Item(gc.getName(), gc.getCollectionCount(), gc.getCollectionTime(), pause));
+                count += Math.max(gc.getCollectionCount(), 0);
+                time += Math.max(gc.getCollectionTime(), 0);
             }
-            catch( Exception e )
+
+            for( java.lang.management.BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(java.lang.management.BufferPoolMXBean.class) )
+                p.add(new Item(b.getName(), b.getCount(), b.getMemoryUsed(), b.getTotalCapacity()));
+
+            if( tmx.isThreadCpuTimeSupported() && tmx.isThreadCpuTimeEnabled() )
             {
-                logger.writeln( "[ERROR] Caught an exception while sending message to " + clientString + " (message=" + message + ")." );
-                logger.writeln( "[ERROR] " + e.toString() );
+                Map<Long,Long> live = new HashMap<Long,Long>();
+                long writers = 0;
 
-                if( debugLevel >= 2 )
+                for( Thread w : watched )
                 {
-                    StackTraceElement[] ste = e.getStackTrace();
+                    long cpu = tmx.getThreadCpuTime(w.getId());
 
-                    for(int x = 0; x < ste.length; x++)
-                        logger.debug(2, ste[x].toString() );
+                    if( cpu >= 0 )
+                        t.add(threadItem(w.getName(), cpu, elapsed));
                 }
 
-                return;
+                for( int i = 0; i < maxClients; i++ )
+                {
+                    if( connections[i].isAlive() )
+                    {
+                        long id = connections[i].getId();
+                        long cpu = tmx.getThreadCpuTime(id);
+
+                        // The thread may end between the two calls
+                        if( cpu < 0 )
+                            cpu = (writerCpu.containsKey(id))?writerCpu.get(id):0;
+
+                        live.put(id, cpu);
+                        writers += cpu;
+                    }
+                }
+
+                // A writer's CPU moves to the closed total only once it has
+                // left the live set, so it is never counted twice and the
+                // total never goes down
+                for( Long id : writerCpu.keySet() )
+                {
+                    if( ! live.containsKey(id) && ! closedWriterCpu.containsKey(id) )
+                        closedWriters += writerCpu.get(id);
+                }
+
+                for( Iterator<Map.Entry<Long,Long>> it = closedWriterCpu.entrySet().iterator(); it.hasNext(); )
+                {
+                    Map.Entry<Long,Long> x = it.next();
+
+                    if( ! live.containsKey(x.getKey()) )
+                    {
+                        closedWriters += Math.max(x.getValue(), (writerCpu.containsKey(x.getKey()))?writerCpu.get(x.getKey()):0);
+                        it.remove();
+                    }
+                }
+
+                writerCpu = live;
+                t.add(threadItem("ClientWriters", closedWriters + writers, elapsed));
+            }
+
+            if( os instanceof com.sun.management.OperatingSystemMXBean )
+            {
+                double load = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuLoad();
+
+                processCpuLoad = (load >= 0)?Math.round(load*1000):-1;
+                processCpuTime = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime()/1000000;
             }
+
+            gcs = g;
+            pools = p;
+            threads = t;
+            gcCount = count;
+            gcTime = time;
+            liveThreads = tmx.getThreadCount();
+            peakThreads = tmx.getPeakThreadCount();
+            daemonThreads = tmx.getDaemonThreadCount();
+            lastSample = now;
+        }
+
+        // The CPU used since the last sample is only meaningful once there has been one
+        private Item threadItem(String name, long cpu, long elapsed)
+        {
+            Long last = lastCpu.put(name, cpu);
+            long share = (last != null && lastSample > 0 && cpu >= last)?((cpu - last)*1000/Math.max(elapsed, 1)):0;
+
+            return new Item(name, cpu/1000, share, 0);
         }
+
+        public List<Item> getGcs() { return gcs; }
+        public List<Item> getPools() { return pools; }
+        public List<Item> getThreads() { return threads; }
+        public long getGcCount() { return gcCount; }
+        public long getGcTime() { return gcTime; }
+        public long getLiveThreads() { return liveThreads; }
+        public long getPeakThreads() { return peakThreads; }
+        public long getDaemonThreads() { return daemonThreads; }
+        public long getProcessCpuLoad() { return processCpuLoad; }
+        public long getProcessCpuTime() { return processCpuTime; }
     }
 
     /*
-     * UDP listener for incoming messages from the game server(s)
+     * A message queued for a client, with the times it was received and
+     * made ready to send (System.nanoTime) for the latency histograms
      */
-    private static class MessageListener implements Runnable
+    private static class Frame
     {
-        private InetAddress addr;
-        private DatagramPacket packet;
-        private int idx = 0;
-        private int port = 0;
-        private int serverTimestamp = 0;
-        private String from = new String();
-        private String data = new String();
-        private String message = new String();
-        private String messageTimestamp = new String();
-        private String playerName = new String();
-        private String playerTeam = new String();
-        private String playerSays = new String();
-        private String [] tokens = new String[2];
-        private byte isSayTeam = BYTE_ZERO;
-        private byte[] buffer = new byte[4096];
-        private boolean listening = false;
+        final byte[] data;
+        final long received;
+        final long ready;
 
-        private int messageSize = 0;
-        private ByteBuffer messageBody = ByteBuffer.allocate(4096);
+        public Frame(byte[] data, long received, long ready)
+        {
+            this.data = data;
+            this.received = received;
+            this.ready = ready;
+        }
+    }
 
-        private long id = 0;
-        private String name = new String();
+    /*
+     * Number of connected clients from each IP address and for each game server
+     *
+     * The counts are taken when a client is given a slot and dropped when its
+     * Connection ends, so checking a cap is a single map lookup.
+     */
+    private static class ConnectionLimits
+    {
+        final static int OK = 0;
+        final static int IP_CAP = 1;
+        final static int SERVER_CAP = 2;
+
+        private HashMap<String,int[]> perIp = new HashMap<String,int[]>();
+        private HashMap<String,int[]> perServer = new HashMap<String,int[]>();
 
-        public void run()
+        public synchronized int acquire(String ip, String server)
         {
-            id = Thread.currentThread().getId();
-            name = Thread.currentThread().getName();
+            int[] ipCount = perIp.get(ip);
+            int[] serverCount = perServer.get(server);
 
-            if( debugLevel >= 3 )
-                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+            if( maxClientsPerIp > 0 && ipCount != null && ipCount[0] >= maxClientsPerIp )
+                return IP_CAP;
 
-            messageBody.order(ByteOrder.LITTLE_ENDIAN);
-            messageData.order(ByteOrder.LITTLE_ENDIAN);
+            if( maxClientsPerServer > 0 && serverCount != null && serverCount[0] >= maxClientsPerServer )
+                return SERVER_CAP;
 
-            for(;;)
-            {
-                try
-                {
-                    runMessageListener();
-                }
-                catch( InterruptedException ie )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+            if( ipCount == null )
+                perIp.put(ip, ipCount = new int[1]);
 
-                    return;
-                }
-                catch( SocketException se )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] caught a SocketException.");
+            if( serverCount == null )
+                perServer.put(server, serverCount = new int[1]);
 
-                    if( shuttingDown )
-                    {
-                        if( debugLevel >= 3 )
-                            logger.debug(3, name + " [ID=" + id + "] ignored the SocketException (shutdown flag is set).");
+            ipCount[0]++;
+            serverCount[0]++;
 
-                        return;
-                    }
+            return OK;
+        }
 
-                    //
-                    // If the listening flag is not set then the socket could not be opened
-                    //
-                    if( ! listening )
-                    {
-                        System.err.println();
+        public synchronized void release(String ip, String server)
+        {
+            release(perIp, ip);
+            release(perServer, server);
+        }
 
-                        logger.writeln( "[ERROR] Unable to create UDP listening socket." );
-                        System.err.println( "[ERROR] Unable to create UDP listening socket." );
-                        logger.writeln( "[ERROR] " + se.toString() );
-                        System.err.println( "[ERROR] " + se.toString() );
+        private void release(HashMap<String,int[]> map, String key)
+        {
+            int[] count = map.get(key);
 
-                        if( debugLevel >= 2 )
-                        {
-                            StackTraceElement[] ste = se.getStackTrace();
+            if( count == null )
+                return;
 
-                            for(int x = 0; x < ste.length; x++)
-                                logger.debug(2, ste[x].toString() );
-                        }
+            // Drop the entry with the last connection so the maps stay small
+            if( --count[0] <= 0 )
+                map.remove(key);
+        }
+    }
 
-                        if( ! shuttingDown )
-                        {
-                            if( debugLevel >= 2 )
-                                logger.debug(2, "Message listener is calling for the program to shut down.");
+    /*
+     * Class for client connections
+     */
+    private static class Connection extends Thread
+    {
+        private Socket sock;
+        private SocketChannel channel;
+        private TlsStream tlsStream;
+        private OutputStream out;
+        private String clientString;
+        private String wantsIP;
+        private String wantsPort;
+        private String clientIp;
+        private String serverKey;
+        private long addrHigh;
+        private long addrLow;
+        private volatile long lastWrite;
+        private volatile boolean closed = false;
+
+        // Traffic counters; each has a single writer
+        private long connectTime;
+        private volatile long messagesSent = 0;
+        private volatile long bytesSent = 0;
+        private volatile long drops = 0;
+
+        // Heartbeat acknowledgement state; RTT figures are in microseconds
+        private volatile boolean ackCapable = false;
+        private volatile boolean ackOutstanding = false;
+        private volatile long ackDeadline = 0;
+        private volatile long lastProbe = 0;
+        private volatile long srtt = 0;
+        private volatile long rttvar = 0;
+        private volatile int ackMisses = 0;
+        private volatile long heartbeatSent = 0;
+        private int headerMatched = 0;
+        private byte[] inputBuffer;
+        private ByteBuffer inputByteBuffer;
+        private Heartbeat heartbeat;
+        private Stage writeStage;
+        private java.util.concurrent.ArrayBlockingQueue<Frame> sendQueue;
+        private AtomicInteger queueDepth = new AtomicInteger();
 
-                            System.exit(1);
-                        }
+        private static byte[] heartbeatBytes = new byte[5];
+        private static ByteBuffer heartbeatBuffer = ByteBuffer.wrap(heartbeatBytes);
+        private static Frame heartbeatFrame = new Frame(heartbeatBytes, 0, 0);
 
-                        return;
-                    }
-                    else
-                    {
-                        logger.writeln( "[ERROR] Message listener thread caught an exception:" );
-                        logger.writeln( "[ERROR] " + se.toString() );
+        // Empty constructor for initialization
+        public Connection()
+        {
+            heartbeatBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            heartbeatBuffer.putInt(PACKET_HEADER);
+            heartbeatBuffer.put(PTYPE_HEARTBEAT);
+            heartbeatBuffer.flip();
+        }
 
-                        if( debugLevel >= 2 )
-                        {
-                            StackTraceElement[] ste = se.getStackTrace();
+        // Full constructor for client connections.  The socket must not be
+        // used by anything else from here on, since it becomes non-blocking.
+        public Connection(Socket s, TlsStream t, OutputStream os, String i, String p, String ip, String server)
+        {
+            try
+            {
+                sock = s;
+                channel = s.getChannel();
+                tlsStream = t;
+                wantsIP = i;
+                wantsPort = p;
+                clientIp = ip;
+                serverKey = server;
+                lastWrite = System.currentTimeMillis();
+                connectTime = lastWrite;
+                inputBuffer = new byte[512];
+                inputByteBuffer = ByteBuffer.wrap(inputBuffer);
+                sendQueue = new java.util.concurrent.ArrayBlockingQueue<Frame>(CONNECTION_QUEUE_SIZE);
+                heartbeat = new Heartbeat(this);
+                clientString = sock.getInetAddress().getHostAddress() + ":" + sock.getPort();
+                writeStage = new Stage("Writer for client " + clientString);
+                writeStage.setOwner(this);
+                addrHigh = BanTable.addressHigh(sock.getInetAddress());
+                addrLow = BanTable.addressLow(sock.getInetAddress());
 
-                            for(int x = 0; x < ste.length; x++)
-                                logger.debug(2, ste[x].toString() );
-                        }
+                setKeepAlive();
 
-                        if( messageListenerSocket.isClosed() )
-                        {
-                            listening = false;
-                            logger.writeln( "[ERROR] The message listener socket closed unexpectedly." );
-                            logger.writeln( "[ERROR] Attempting to restart the message listener." );
-                        }
-                        else
-                        {
-                            logger.writeln( "This exception appears to be non-fatal." );
-                        }
-                    }
+                // From here on reads are driven by the ClientReader and writes wait on the channel
+                channel.configureBlocking(false);
+
+                if( tlsStream != null )
+                {
+                    tlsStream.useChannel(channel);
+                    out = os;
                 }
-                catch( Exception e )
+                else
                 {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] caught an exception.");
+                    out = new ChannelOutputStream(channel);
+                }
 
-                    if( shuttingDown )
-                    {
-                        if( debugLevel >= 3 )
-                            logger.debug(3, name + " [ID=" + id + "] ignored the exception (shutdown flag is set).");
+                start();
+                clientReader.register(this);
+            }
+            catch( Exception e )
+            {
+                logger.writeln( "[ERROR] Failed to create connection object for client." );
+                logger.writeln( "[ERROR] " + e.toString() );
+                connectionLimits.release(clientIp, serverKey);
+                this.interrupt();
+            }
+        }
 
-                        return;
-                    }
+        public void run()
+        {
+            Frame f;
+            long written;
+            long dequeued;
+            ClientWriteEvent event;
 
-                    logger.writeln( "[ERROR] Message listener thread caught an exception:" );
-                    logger.writeln( "[ERROR] " + e.toString() );
+            numClients.increment();
+            acceptedConnections.increment();
+            record(FlightRecorder.CLIENT_CONNECTED, 0);
 
-                    if( debugLevel >= 2 )
-                    {
-                        StackTraceElement[] ste = e.getStackTrace();
+            // The first heartbeat is spread over a whole interval
+            Heartbeat.schedule(heartbeat, lastWrite - heartbeatInterval() + (long)(Math.random() * heartbeatInterval()), heartbeatInterval());
 
-                        for(int x = 0; x < ste.length; x++)
-                            logger.debug(2, ste[x].toString() );
+            try
+            {
+                // Write whatever is queued for this client
+                for(;;)
+                {
+                    f = sendQueue.take();
+                    queueDepth.decrementAndGet();
+                    dequeued = System.nanoTime();
+
+                    // Stamp heartbeats before they go out, since the ack is read on another thread
+                    if( f == heartbeatFrame )
+                    {
+                        heartbeatSent = System.nanoTime();
+                        record(FlightRecorder.HEARTBEAT_SENT, ackMisses);
                     }
 
-                    if( clientListenerSocket.isClosed() )
+                    event = new ClientWriteEvent();
+                    event.begin();
+                    writeStage.busy();
+
+                    out.write(f.data, 0, f.data.length);
+                    out.flush();
+                    lastWrite = System.currentTimeMillis();
+
+                    writeStage.idle();
+
+                    event.end();
+
+                    if( event.shouldCommit() )
                     {
-                        listening = false;
-                        logger.writeln( "[ERROR] The client listener socket closed unexpectedly." );
-                        logger.writeln( "[ERROR] Attempting to restart the client listener." );
+                        event.client = clientString;
+                        event.size = f.data.length;
+                        event.queueWait = (f.ready != 0)?(dequeued - f.ready):0;
+                        event.heartbeat = (f == heartbeatFrame);
+                        event.commit();
                     }
-                    else
+
+                    bytesSent += f.data.length;
+
+                    if( f.ready != 0 )
                     {
-                        logger.writeln( "This exception appears to be non-fatal." );
+                        messagesSent++;
+                        written = System.nanoTime();
+                        deliverLatency.record(written - f.ready);
+                        totalLatency.record(written - f.received);
                     }
                 }
             }
-        }
-
-        private void runMessageListener() throws Exception
-        {
-            if( ! listening )
+            catch( InterruptedException ie )
             {
-                // Create the UDP listen socket
-                addr = InetAddress.getByName(messageListenAddress);
-                messageListenerSocket = new DatagramSocket(messageListenPort, addr);
-
-                // Set the listening flag
-                listening = true;
-
-                // Create the datagram packet to handle incoming data
-                packet = new DatagramPacket(buffer,buffer.length);
-
-                logger.writeln( "Message listener started; receiving log messages on " + messageListenAddress + ":" + messageListenPort + " (UDP)." );
+                // Killed
             }
-
-            for(;;)
+            catch( IOException ioe )
             {
-                // Get the next packet from the socket
-                messageListenerSocket.receive(packet);
+                if( ! shuttingDown && ! closed )
+                {
+                    logger.writeln( "Removing client " + clientString + " : Write failed." );
+                    closeSocket();
+                }
+            }
 
-                //Increment the total packets counter
-                totalPackets++;
+            heartbeatWheel.cancel(heartbeat);
+            connectionLimits.release(clientIp, serverKey);
 
-                if( numClients > 0 )
-                {
-                    // Get the data from the packet
-                    data = new String(buffer, 0, packet.getLength(), "UTF-8");
+            // Leave this writer's final CPU time for JvmHealth, which adds it
+            // to the total once the thread has gone
+            if( ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported() && ManagementFactory.getThreadMXBean().isThreadCpuTimeEnabled() )
+                closedWriterCpu.put(Thread.currentThread().getId(), Math.max(ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime(), 0));
+            record(FlightRecorder.CLIENT_CLOSED, 0);
+            numClients.decrement();
+        }
 
-                    // Get the remote address and remote port from the packet
-                    messageInfo[0] = packet.getAddress().getHostAddress();
-                    messageInfo[1] = Integer.valueOf(packet.getPort()).toString();
+        public Socket getSocket()
+        {
+            return sock;
+        }
 
-                    // Only continue processing if a client wants messages from this game server
-                    if( ! isWanted(messageInfo[0], messageInfo[1]) )
-                    {
-                        if( debugLevel >= 1 )
-                            logger.debug(1, "[id=" + totalPackets + "] No client wants this message.");
+        public String getClientString()
+        {
+            return clientString;
+        }
 
-                        continue;
-                    }
+        public Stage getWriteStage()
+        {
+            return writeStage;
+        }
 
-                    if( debugLevel >= 1 )
-                        logger.debug(1, "[id=" + totalPackets + "] At least one client wants this message.");
+        public SocketChannel getChannel()
+        {
+            return channel;
+        }
 
-                    while( newMessage ) Thread.sleep(1);
+        public OutputStream getSocketOutputStream()
+        {
+            return out;
+        }
 
-                    // Clear the byte buffer
-                    messageBody.clear();
-                    messageData.clear();
+        public String getWantsIP()
+        {
+            return wantsIP;
+        }
 
-                    // Extract the log message from the packet
-                    message = data.substring(data.indexOf("L "), data.length()-1);
+        public String getWantsPort()
+        {
+            return wantsPort;
+        }
 
-                    // Include the current timestamp in case the one in the message is mangled
-                    serverTimestamp = (int) (System.currentTimeMillis()/1000);
+        // Game server as "ip:port" with the address resolved
+        public String getServerKey()
+        {
+            return serverKey;
+        }
 
-                    messageBody.putInt(serverTimestamp);
-                    messageBody.put(messageInfo[0].getBytes("UTF-8")).put(BYTE_ZERO);
-                    messageBody.put(messageInfo[1].getBytes("UTF-8")).put(BYTE_ZERO);
-                    messageBody.put(message.getBytes("UTF-8")).put(BYTE_ZERO);
-                    messageBody.flip();
+        public long getConnectTime()
+        {
+            return connectTime;
+        }
 
-                    // Assemble the packet data
-                    messageData.putInt(PACKET_HEADER);
-                    messageData.put(PTYPE_MESSAGE_DATA);
-                    messageData.putShort((short)(messageBody.limit()+1));
-                    messageData.put(PROTOCOL_VERSION);
-                    messageData.put(messageBody);
-                    messageData.flip();
+        public long getMessagesSent()
+        {
+            return messagesSent;
+        }
 
-                    // Set the new message flag
-                    newMessage = true;
+        public long getBytesSent()
+        {
+            return bytesSent;
+        }
 
-                    if( debugLevel >= 3 )
-                        logger.debug(3, "Set the new message flag.");
-                }
-            }
+        public long getDrops()
+        {
+            return drops;
         }
 
-        private boolean isWanted(String i, String p)
+        // Record a flight recorder event about this client
+        public void record(int event, long value)
         {
-            for( int x = 0; x < maxClients; x++ )
+            flightRecorder.record(event, addrHigh, addrLow, sock.getPort(), value);
+        }
+
+        // Queue a message for this client's writer thread without waiting
+        public int send(Frame f)
+        {
+            if( ! sendQueue.offer(f) )
             {
-                if( connections[x].isAlive() )
-                    if( connections[x].getWantsIP().equals(i) )
-                        if( connections[x].getWantsPort().equals(p) )
-                            return true;
+                drops++;
+                return 1;
             }
 
-            return false;
-        } 
-    }
-
-    /*
-     * Send a message to all connected clients who want it
-     */
-    private static class SendConsoleMessage implements Runnable
-    {
-        private int i = 0;
-        private long id = 0;
-        private String name = new String();
+            queueDepth.incrementAndGet();
+            return 0;
+        }
 
-        public void run()
+        public boolean sendHeartbeat()
         {
-            id = Thread.currentThread().getId();
-            name = Thread.currentThread().getName();
-
-            if( debugLevel >= 3 )
-                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
-
-            try
-            {
-                for(;;)
-                {
-                    while( ! newMessage ) Thread.sleep(10);
+            if( ! sendQueue.offer(heartbeatFrame) )
+                return false;
 
-                    if( debugLevel >= 3 )
-                        logger.debug(3, "New message flag is set, processing new outgoing message.");
+            queueDepth.incrementAndGet();
+            return true;
+        }
 
-                    // Send the message to the clients
-                    for( i = 0; i < maxClients; i++ )
-                    {
-                        if( connections[i].isAlive() )
-                        {
-                            if( connections[i].getWantsIP().equals(messageInfo[0]) )
-                            {
-                                if( connections[i].getWantsPort().equals(messageInfo[1]) )
-                                {
-                                    connections[i].send(messageData.array(), 0, messageData.limit());
+        // Tracked separately so reading it does not take the queue's lock
+        public int getQueueDepth()
+        {
+            return Math.max(queueDepth.get(), 0);
+        }
 
-                                    if( debugLevel >= 2 )
-                                        logger.debug(2, "Sent this message to " + connections[i].getClientString() + ".");
-                                }
-                            }
-                        }
-                    }
+        public long getLastWrite()
+        {
+            return lastWrite;
+        }
 
-                    // Increment the relayed packets counter
-                    relayedPackets++;
+        public boolean isAckCapable()
+        {
+            return ackCapable;
+        }
 
-                    // Clear the new message flag
-                    newMessage = false;
+        public boolean isAckOutstanding()
+        {
+            return ackOutstanding;
+        }
 
-                    if( debugLevel >= 3 )
-                        logger.debug(3, "Cleared the new message flag.");
-                }
-            }
-            catch( InterruptedException ie )
-            {
-                if( debugLevel >= 3 )
-                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+        public long getAckDeadline()
+        {
+            return ackDeadline;
+        }
 
-                return;
-            }
+        public long getLastProbe()
+        {
+            return lastProbe;
         }
-    }
 
-    /*
-     * Check for disconnected clients
-     */
-    private static class CheckConnection implements Runnable
-    {
-        private int i = 0;
-        private String clientString;
+        public int getAckMisses()
+        {
+            return ackMisses;
+        }
 
-        private long id = 0;
-        private String name = new String();
+        // Smoothed round trip time in microseconds, or 0 before the first sample
+        public long getRtt()
+        {
+            return srtt;
+        }
 
-        public void run()
+        public long getRttVariance()
         {
-            id = Thread.currentThread().getId();
-            name = Thread.currentThread().getName();
+            return rttvar;
+        }
 
-            if( debugLevel >= 3 )
-                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+        // Called when a heartbeat has been queued for a client which acknowledges them
+        public void expectAck(long now, boolean retry)
+        {
+            long timeout = ackTimeout();
 
-            try
+            if( retry )
             {
-                for(;;)
-                {
-                    Thread.sleep(clientCheckInterval);
-
-                    // Send a packet to each client and then clean up clients which do not respond
-                    for( i = 0; i < maxClients; i++ )
-                    {
-                        if( connections[i].isAlive() )
-                        {
-                            if( connections[i].checkSocket() != 0 )
-                            {
-                                clientString = connections[i].getClientString();
-                                logger.writeln( "Removing client " + clientString + " : No response to socket check." );
-                                connections[i].closeSocket();
-                                connections[i].kill();
-                            }
-                        }
-                    }
-                }
+                ackMisses++;
+                timeout = Math.min(timeout*2, heartbeatAckMaxTimeout*2);
             }
-            catch( InterruptedException ie )
+            else
             {
-                if( debugLevel >= 3 )
-                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
-
-                return;
+                ackMisses = 0;
             }
+
+            lastProbe = now;
+            ackDeadline = now + timeout;
+            ackOutstanding = true;
         }
-    }
 
-    /*
-     * Periodically log some statsistics
-     */
-    private static class LogStats implements Runnable
-    {
-        long uptime = 0;
-        long upDays = 0;
-        long upHours = 0;
-        long upMinutes = 0;
-        long usedMem = 0;
-        long freeMem = 0;
-        long totalMem = 0;
-        long maxMem = Runtime.getRuntime().maxMemory()/1024;
+        public void clearAck()
+        {
+            ackOutstanding = false;
+            ackMisses = 0;
+        }
 
-        private String uptimeMessage = new String();
-        private String memoryMessage = new String();
+        // RFC 6298 style timeout: smoothed RTT plus four deviations, within fixed bounds
+        private long ackTimeout()
+        {
+            if( srtt == 0 )
+                return heartbeatAckMaxTimeout;
 
-        private long id = 0;
-        private String name = new String();
+            return Math.min(Math.max((srtt + 4*rttvar)/1000, HEARTBEAT_ACK_MIN_TIMEOUT), heartbeatAckMaxTimeout);
+        }
 
-        public void run()
+        // Read whatever the client has sent without waiting, keeping only heartbeat
+        // acknowledgements.  Called by the ClientReader when the socket is readable.
+        public void readInput() throws IOException
         {
-            id = Thread.currentThread().getId();
-            name = Thread.currentThread().getName();
-
-            if( debugLevel >= 3 )
-                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+            int n;
 
             for(;;)
             {
-                try
+                if( tlsStream != null )
                 {
-                    Thread.sleep(logStatsInterval);
+                    n = tlsStream.readAvailable(inputBuffer);
+                }
+                else
+                {
+                    inputByteBuffer.clear();
 
-                    totalMem = Runtime.getRuntime().totalMemory()/1024;
-                    freeMem = Runtime.getRuntime().freeMemory()/1024;
-                    usedMem = totalMem - freeMem;
+                    if( (n = channel.read(inputByteBuffer)) < 0 )
+                        throw new EOFException("Connection closed by client");
+                }
 
-                    uptime = ((System.currentTimeMillis() - START_TIME)/1000)/60;
-                    upDays = uptime/1440;
-                    upHours = (uptime - (upDays*1440))/60;
-                    upMinutes = (uptime - (upDays*1440) - (upHours*60));
-                    uptimeMessage = "";
+                if( n == 0 )
+                    return;
 
-                    if( upDays == 1 )
-                        uptimeMessage += upDays + " day ";
-                    else
-                        uptimeMessage += upDays + " days ";
+                for( int i = 0; i < n; i++ )
+                {
+                    if( headerMatched < 4 )
+                    {
+                        headerMatched = (inputBuffer[i] == (byte)0xFF)?(headerMatched+1):0;
+                    }
+                    else if( inputBuffer[i] == PTYPE_HEARTBEAT_ACK )
+                    {
+                        headerMatched = 0;
+                        ackReceived();
+                    }
+                    else if( inputBuffer[i] != (byte)0xFF )
+                    {
+                        headerMatched = 0;
+                    }
+                }
+            }
+        }
 
-                    if( upHours == 1 )
-                        uptimeMessage += upHours + " hour ";
-                    else
-                        uptimeMessage += upHours + " hours ";
+        private void ackReceived()
+        {
+            long r;
 
-                    if( upMinutes == 1 )
-                        uptimeMessage += upMinutes + " minute";
-                    else
-                        uptimeMessage += upMinutes + " minutes";
+            if( heartbeatAckEnabled == 0 )
+                return;
 
-                    memoryMessage  = "max=" + maxMem + "k, ";
-                    memoryMessage += "allocated=" + totalMem + "k, ";
-                    memoryMessage += "used=" + usedMem + "k, ";
-                    memoryMessage += "free=" + freeMem + "k";
+            if( ! ackCapable )
+            {
+                ackCapable = true;
 
-                    logger.writeln( "[STATS] Uptime: " + uptimeMessage );
-                    logger.writeln( "[STATS] Memory: " + memoryMessage );
-                    logger.writeln( "[STATS] Total packets received: " + totalPackets );
-                    logger.writeln( "[STATS] Total packets relayed: " + relayedPackets );
-                    logger.writeln( "[STATS] Accepted client connections: " + acceptedConnections );
-                    logger.writeln( "[STATS] Rejected client connections: " + rejectedConnections );
-                    logger.writeln( "[STATS] Clients currently connected: " + numClients );
+                if( debugLevel >= 2 )
+                    logger.debug(2, "Client " + clientString + " acknowledges heartbeats.");
+            }
 
-                    if( autoBanEnabled == 1 )
-                        logger.writeln( "[STATS] Clients currently banned: " + bannedClients.size() );
-                }
-                catch( InterruptedException ie )
-                {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+            if( ! ackOutstanding || heartbeatSent == 0 )
+                return;
 
-                    return;
+            // Only time heartbeats which were not resent, since the ack may be for either one
+            if( ackMisses == 0 )
+            {
+                r = Math.max((System.nanoTime() - heartbeatSent)/1000, 1);
+
+                if( srtt == 0 )
+                {
+                    srtt = r;
+                    rttvar = r/2;
                 }
-                catch( Exception e )
+                else
                 {
-                    if( debugLevel >= 3 )
-                        logger.debug(3, name + " [ID=" + id + "] caught an exception.");
-
-                    logger.writeln( "[ERROR] LogStats thread caught an exception:" );
-                    logger.writeln( "[ERROR] " + e.toString() );
-
-                    if( debugLevel >= 2 )
-                    {
-                        StackTraceElement[] ste = e.getStackTrace();
-
-                        for(int x = 0; x < ste.length; x++)
-                            logger.debug(2, ste[x].toString() );
-                    }
+                    rttvar = (3*rttvar + Math.abs(srtt - r))/4;
+                    srtt = (7*srtt + r)/8;
                 }
+
+                record(FlightRecorder.HEARTBEAT_ACK, r);
             }
+
+            heartbeatSent = 0;
+            ackMisses = 0;
+            ackOutstanding = false;
         }
-    }
 
-    /*
-     * Check for expired bans
-     */
-    private static class CheckBans implements Runnable
-    {
-        private Map.Entry set;
-        private Iterator i;
-        private String key;
-        private long exp;
-	private long now;
+        private void setKeepAlive()
+        {
+            try
+            {
+                sock.setKeepAlive(tcpKeepAlive == 1);
 
-        private long id = 0;
-        private String name = new String();
+                if( tcpKeepAlive == 0 )
+                    return;
 
-        public void run()
-        {
-            id = Thread.currentThread().getId();
-            name = Thread.currentThread().getName();
+                // Fine-grained settings are not available on every platform
+                if( tcpKeepAliveIdle > 0 )
+                    channel.setOption(jdk.net.ExtendedSocketOptions.TCP_KEEPIDLE, tcpKeepAliveIdle);
 
-            if( debugLevel >= 3 )
-                logger.debug(3, "Thread started (name=" + name + ", id=" + id + ").");
+                if( tcpKeepAliveInterval > 0 )
+                    channel.setOption(jdk.net.ExtendedSocketOptions.TCP_KEEPINTERVAL, tcpKeepAliveInterval);
 
-            try
+                if( tcpKeepAliveCount > 0 )
+                    channel.setOption(jdk.net.ExtendedSocketOptions.TCP_KEEPCOUNT, tcpKeepAliveCount);
+            }
+            catch( Exception e )
             {
-                for(;;)
-                {
-                    if( ! bannedClients.isEmpty() )
-                    {
-                        i = bannedClients.entrySet().iterator();
-                        now = System.currentTimeMillis();
-
-                        while( i.hasNext() )
-                        {
-                            set = (Map.Entry)i.next();
-                            key = (String)set.getKey();
-                            exp = bannedClients.get(key).longValue();
+                if( debugLevel >= 2 )
+                    logger.debug(2, "Unable to set TCP keepalive options for client " + clientString + " (" + e.toString() + ").");
+            }
+        }
 
-                            if( (now-exp) >= autoBanDuration )
-                            {
-                                logger.writeln( "[AUTO-BAN] Removing expired ban for " + key + "." );
-                                i.remove();
-                                bannedClients.remove(key);
-                            }
-                        }
-                    }
+        public void closeSocket()
+        {
+            closed = true;
 
-                    Thread.sleep(60000);
-                }
+            try
+            {
+                // Closing the channel also takes it off the ClientReader's selector
+                out.close();
+                sock.close();
             }
-            catch( InterruptedException ie )
+            catch( IOException ioe )
             {
-                if( debugLevel >= 3 )
-                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
-
-                return;
+                logger.writeln( "Client " + getClientString() + " has disconnected." );
             }
         }
+
+        public void kill()
+        {
+            this.interrupt();
+        }
     }
 
     /*
-     * Rotate log files
+     * Watch every client socket for input
+     *
+     * Clients only send heartbeat acknowledgements once connected, so this
+     * thread reads whatever arrives as soon as it arrives and tears down a
+     * connection the moment the client closes or resets it.
      */
-    private static class LogRotate implements Runnable
+    private static class ClientReader implements Runnable
     {
-        private static File baseFile = new File(logFile);
-	private static File[] logFiles = new File[logRotateKeepFiles];
+        private Selector selector;
+        private java.util.concurrent.ConcurrentLinkedQueue<Connection> pending = new java.util.concurrent.ConcurrentLinkedQueue<Connection>();
 
         private long id = 0;
         private String name = new String();
 
+        public ClientReader() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        // Channels can only be registered while the selector is not blocked, so this is left to the reader thread
+        public void register(Connection c)
+        {
+            pending.add(c);
+            selector.wakeup();
+        }
+
         public void run()
         {
+            Iterator<SelectionKey> keys;
+            SelectionKey key;
+            Connection c;
+
             id = Thread.currentThread().getId();
             name = Thread.currentThread().getName();
 
@@ -1804,305 +7976,522 @@ public class CheckValveConsoleRelay
 
             try
             {
-                int i = 0;
-
-                for( i = 0; i < logFiles.length; i++ )
-                    logFiles[i] = new File(logFile + "." + (i+1));
-
-                for(;;)
+                while( ! Thread.currentThread().isInterrupted() )
                 {
-                    Thread.sleep(logRotateInterval);
+                    selector.select();
 
-                    logger.close();
+                    while( (c = pending.poll()) != null )
+                    {
+                        try
+                        {
+                            c.getChannel().register(selector, SelectionKey.OP_READ, c);
+                        }
+                        catch( java.nio.channels.ClosedChannelException cce )
+                        {
+                            // Already gone
+                        }
+                    }
 
-                    for( i = logFiles.length-2; i >= 0; i-- )
-                        if( logFiles[i].exists() )
-                            logFiles[i].renameTo(logFiles[i+1]);
+                    keys = selector.selectedKeys().iterator();
 
-                    baseFile.renameTo(logFiles[0]);
+                    while( keys.hasNext() )
+                    {
+                        key = keys.next();
+                        keys.remove();
+                        c = (Connection)key.attachment();
 
-                    logger.open(logFile);
+                        try
+                        {
+                            c.readInput();
+                        }
+                        catch( EOFException eof )
+                        {
+                            disconnect(key, c, "Client closed the connection.");
+                        }
+                        catch( IOException ioe )
+                        {
+                            disconnect(key, c, "Connection lost (" + ioe.getMessage() + ").");
+                        }
+                    }
                 }
             }
-            catch( InterruptedException ie )
+            catch( IOException ioe )
             {
-                if( debugLevel >= 3 )
-                    logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+                logger.writeln( "[ERROR] Client reader thread caught an exception:" );
+                logger.writeln( "[ERROR] " + ioe.toString() );
+                flightRecorder.error(ioe);
+            }
 
+            if( debugLevel >= 3 )
+                logger.debug(3, name + " [ID=" + id + "] received an interrupt.");
+        }
+
+        private void disconnect(SelectionKey key, Connection c, String reason)
+        {
+            key.cancel();
+
+            if( shuttingDown || ! c.isAlive() )
                 return;
-            }
+
+            logger.writeln( "Removing client " + c.getClientString() + " : " + reason );
+            c.closeSocket();
+            c.kill();
         }
     }
 
     /*
-     * Logger
+     * Blocking writes to a non-blocking channel
+     *
+     * Waits on a private selector while the socket's send buffer is full, and
+     * gives up if the client has not taken anything for two check intervals.
      */
-    private static class Logger
+    private static class ChannelOutputStream extends OutputStream
     {
-        private static FileWriter out;
-        private static SimpleDateFormat sdf;
-        private static String eol;
-        private static boolean open;
+        private SocketChannel channel;
+        private volatile Selector selector;
+        private volatile boolean closed = false;
 
-        public Logger()
+        public ChannelOutputStream(SocketChannel ch)
         {
-            open = false;
+            channel = ch;
         }
 
-        public static int open(String file)
+        public void write(int b) throws IOException
         {
-            try
-            {
-                // Get the platform-specific line separator
-                eol = System.getProperty( "line.separator" );
-
-                // Get an output stream to the log file
-                out = new FileWriter(file, true);
-
-                // Set the format mask for timestamps on log messages
-                sdf = new SimpleDateFormat( "[EEE MMM dd HH:mm:ss yyyy]: " );
-
-                // Set the open flag
-                open = true;
-
-                writeln( "Logger started." );
-
-                return 0;
-            }
-            catch( IOException ioe )
-            {
-                open = false;
-                return -1;
-            }
+            write(new byte[] { (byte)b }, 0, 1);
         }
 
-        public static int close()
+        public void write(byte[] b, int off, int len) throws IOException
         {
-            try
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+
+            while( buf.hasRemaining() )
             {
-                // Make sure the log file is open
-                if( ! open )
-                    return -1;
+                if( channel.write(buf) > 0 )
+                    continue;
 
-                writeln( "Shutting down logger." );
+                synchronized( this )
+                {
+                    if( closed )
+                        throw new IOException("Stream closed");
 
-                // Flush pending writes and close the log file
-                out.flush();
-                out.close();
+                    if( selector == null )
+                    {
+                        selector = Selector.open();
+                        channel.register(selector, SelectionKey.OP_WRITE);
+                    }
+                }
 
-                return 0;
-            }
-            catch( IOException ioe )
-            {
-                return -1;
-            }
-        }
+                // close() from another thread wakes this up by closing the selector
+                try
+                {
+                    if( selector.select(2*heartbeatInterval()) == 0 && ! closed )
+                        throw new SocketTimeoutException("Timed out writing to client");
 
-        public static void debug(int level, String msg)
-        {
-            try
-            {
-                // Make sure the log file is open
-                if( ! open )
-                    return;
+                    if( closed )
+                        throw new IOException("Stream closed");
 
-                // Write a timestamped debug message to the log file
-                out.write(sdf.format(System.currentTimeMillis()) + "[DEBUG(" + level + ")] " + msg + eol);
-                out.flush();
-            }
-            catch( IOException ioe )
-            {
-                return;
+                    selector.selectedKeys().clear();
+                }
+                catch( java.nio.channels.ClosedSelectorException cse )
+                {
+                    throw new IOException("Stream closed");
+                }
             }
         }
 
-        public static void writeln(String msg)
+        // Safe to call while another thread is blocked in write()
+        public void close() throws IOException
         {
-            try
-            {
-                // Make sure the log file is open
-                if( ! open )
-                    return;
+            Selector s;
 
-                // Write a timestamped message to the log file
-                out.write(sdf.format(System.currentTimeMillis()) + msg + eol);
-                out.flush();
-            }
-            catch( IOException ioe )
+            synchronized( this )
             {
-                return;
+                closed = true;
+                s = selector;
             }
+
+            if( s != null )
+                s.close();
         }
     }
 
     /*
-     * Class for client connections
+     * TLS session for a client socket
+     *
+     * The record layer is handled by an SSLEngine rather than an SSLSocket so
+     * the same session can be driven from a non-blocking channel.  During the
+     * handshake and connection request it is exposed through blocking streams
+     * over the plain socket, then switched to the channel.
      */
-    private static class Connection extends Thread
+    private static class TlsStream
     {
         private Socket sock;
-        private OutputStream out;
+        private SocketChannel channel;
+        private SSLEngine engine;
+        private InputStream rawIn;
+        private OutputStream rawOut;
         private InputStream in;
-        private String clientString;
-        private String wantsIP;
-        private String wantsPort;
-        private int sendBufferSize;
-        private int recvBufferSize;
+        private OutputStream out;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private boolean resumed = false;
+        private long deadline = 0;
 
-        private static byte[] heartbeatBytes = new byte[5];
-        private static ByteBuffer heartbeatBuffer = ByteBuffer.wrap(heartbeatBytes);
+        // Held while a record is being written, which can block on a slow client
+        private final ReentrantLock wrapLock = new ReentrantLock();
 
-        // Empty constructor for initialization
-        public Connection()
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        public TlsStream(Socket s, SSLEngine e) throws IOException
         {
-            heartbeatBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            heartbeatBuffer.putInt(PACKET_HEADER);
-            heartbeatBuffer.put(PTYPE_HEARTBEAT);
-            heartbeatBuffer.flip();
+            sock = s;
+            engine = e;
+            engine.setUseClientMode(false);
+            rawIn = sock.getInputStream();
+            rawOut = sock.getOutputStream();
+
+            SSLSession session = engine.getSession();
+
+            // netIn and netOut are kept in write mode, appIn in read mode
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            appIn.flip();
+
+            in = new TlsInputStream();
+            out = new TlsOutputStream();
         }
 
-        // Full constructor for client connections
-        public Connection(Socket s, String i, String p)
+        public void handshake(long timeout) throws IOException
         {
+            long start = System.currentTimeMillis();
+            int soTimeout = sock.getSoTimeout();
+            SSLEngineResult.HandshakeStatus hs;
+
+            // Reads are bounded by the time left, so a client which trickles
+            // its handshake in cannot hold the listener past the deadline
+            deadline = start + timeout;
+
             try
             {
-                sock = s;
-                wantsIP = i;
-                wantsPort = p;
-                in = sock.getInputStream();
-                out = sock.getOutputStream();
-                recvBufferSize = sock.getReceiveBufferSize();
-                sendBufferSize = sock.getSendBufferSize();
-                clientString = sock.getInetAddress().getHostAddress() + ":" + sock.getPort();
-                start();
+                handshake();
             }
-            catch( Exception e )
+            finally
             {
-                logger.writeln( "[ERROR] Failed to create connection object for client." );
-                logger.writeln( "[ERROR] " + e.toString() );
-                this.interrupt();
+                deadline = 0;
+                sock.setSoTimeout(soTimeout);
             }
+
+            // A resumed session keeps the creation time of the session it was resumed from
+            resumed = (engine.getSession().getCreationTime() < start);
         }
 
-        public void run()
+        private void handshake() throws IOException
         {
-            numClients++;
-            acceptedConnections++;
+            SSLEngineResult.HandshakeStatus hs;
 
-            try
-            {
-                // Discard any remaining bytes sent from the client
-                this.flushInputBuffer();
+            engine.beginHandshake();
 
-                // Just keep sleeping...
-                for(;;) { Thread.sleep(Long.MAX_VALUE); }
-            }
-            catch( InterruptedException ie )
+            while( (hs = engine.getHandshakeStatus()) != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING )
             {
-                numClients--;
-                return;
+                if( System.currentTimeMillis() >= deadline )
+                    throw new SocketTimeoutException("TLS handshake timed out");
+
+                if( hs == SSLEngineResult.HandshakeStatus.NEED_WRAP )
+                {
+                    wrap(EMPTY);
+                }
+                else if( hs == SSLEngineResult.HandshakeStatus.NEED_TASK )
+                {
+                    runDelegatedTasks();
+                }
+                else
+                {
+                    if( unwrap().getStatus() == SSLEngineResult.Status.CLOSED )
+                        throw new EOFException("Client closed the connection during the TLS handshake");
+                }
             }
         }
 
-        public Socket getSocket()
+        public boolean isResumed()
         {
-            return sock;
+            return resumed;
         }
 
-        public String getClientString()
+        public String getProtocol()
         {
-            return clientString;
+            return engine.getSession().getProtocol();
         }
 
-        public InputStream getSocketInputStream()
+        public InputStream getInputStream()
         {
             return in;
         }
 
-        public OutputStream getSocketOutputStream()
+        // Switch to the socket's channel once it is made non-blocking.  The
+        // input stream must not be used after this; use readAvailable().
+        public void useChannel(SocketChannel ch)
         {
-            return out;
+            channel = ch;
+            rawOut = new ChannelOutputStream(ch);
         }
 
-        public String getWantsIP()
+        // Read decrypted data which can be had without waiting, 0 if there is none
+        public int readAvailable(byte[] b) throws IOException
         {
-            return wantsIP;
+            SSLEngineResult result;
+            int len;
+
+            while( ! appIn.hasRemaining() )
+            {
+                result = unwrap();
+
+                if( result.getStatus() == SSLEngineResult.Status.CLOSED )
+                    throw new EOFException("Connection closed by client");
+
+                if( engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK )
+                    runDelegatedTasks();
+
+                if( engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP )
+                    wrap(EMPTY);
+
+                if( result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW )
+                    return 0;
+            }
+
+            len = Math.min(b.length, appIn.remaining());
+            appIn.get(b, 0, len);
+            return len;
         }
 
-        public String getWantsPort()
+        public OutputStream getOutputStream()
         {
-            return wantsPort;
+            return out;
         }
 
-        public int send(byte[] b, int offset, int len)
+        // Never waits on a writer: if one is blocked on a full send buffer the
+        // close_notify is skipped, and closing the socket makes its write fail
+        public void close() throws IOException
         {
+            if( wrapLock.tryLock() )
+            {
+                try
+                {
+                    // Send close_notify on a best-effort basis
+                    engine.closeOutbound();
+
+                    if( channel != null )
+                        wrapNow();
+                    else
+                        wrap(EMPTY);
+                }
+                catch( IOException ioe )
+                {
+                    // Ignore, the socket is being closed anyway
+                }
+                finally
+                {
+                    wrapLock.unlock();
+                }
+            }
+
             try
             {
-                out.write(b, offset, len);
-                out.flush();
-                return 0;
+                sock.close();
             }
-            catch( IOException ioe )
+            finally
             {
-                return 1;
+                rawOut.close();
             }
         }
 
-        public void flushInputBuffer()
+        // Wrap and write what the channel takes without waiting, dropping the rest
+        private void wrapNow() throws IOException
+        {
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        }
+
+        private void runDelegatedTasks()
+        {
+            Runnable task;
+
+            while( (task = engine.getDelegatedTask()) != null )
+                task.run();
+        }
+
+        private void wrap(ByteBuffer src) throws IOException
         {
+            SSLEngineResult result;
+
+            wrapLock.lock();
+
             try
             {
-                in.skip((long)recvBufferSize);
-                return;
+                do
+                {
+                    netOut.clear();
+                    result = engine.wrap(src, netOut);
+
+                    if( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW )
+                        throw new SSLException("TLS packet buffer overflow");
+
+                    if( result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK )
+                        runDelegatedTasks();
+
+                    netOut.flip();
+                    rawOut.write(netOut.array(), 0, netOut.limit());
+                }
+                while( src.hasRemaining() && result.getStatus() == SSLEngineResult.Status.OK );
+
+                rawOut.flush();
+            }
+            finally
+            {
+                wrapLock.unlock();
+            }
+        }
+
+        private SSLEngineResult unwrap() throws IOException
+        {
+            SSLEngineResult result;
+            int n = 0;
+
+            for(;;)
+            {
+                netIn.flip();
+                appIn.compact();
+                result = engine.unwrap(netIn, appIn);
+                appIn.flip();
+                netIn.compact();
+
+                if( result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW )
+                    throw new SSLException("TLS application buffer overflow");
+
+                if( result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW )
+                    return result;
+
+                // Need more data from the socket to complete the record
+                if( ! netIn.hasRemaining() )
+                    throw new SSLException("TLS record too large");
+
+                if( channel != null )
+                {
+                    // Non-blocking: the caller tries again when more has arrived
+                    if( (n = channel.read(netIn)) < 0 )
+                        throw new EOFException("Connection closed by client");
+
+                    if( n == 0 )
+                        return result;
+                }
+                else
+                {
+                    if( deadline > 0 )
+                    {
+                        long left = deadline - System.currentTimeMillis();
+
+                        if( left <= 0 )
+                            throw new SocketTimeoutException("TLS handshake timed out");
+
+                        sock.setSoTimeout((int)Math.min(left, Integer.MAX_VALUE));
+                    }
+
+                    if( (n = rawIn.read(netIn.array(), netIn.position(), netIn.remaining())) < 0 )
+                        throw new EOFException("Connection closed by client");
+
+                    netIn.position(netIn.position() + n);
+                }
+            }
+        }
+
+        private class TlsInputStream extends InputStream
+        {
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) == 1)?(b[0] & 0xFF):-1;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if( len == 0 )
+                    return 0;
+
+                while( ! appIn.hasRemaining() )
+                {
+                    if( unwrap().getStatus() == SSLEngineResult.Status.CLOSED )
+                        return -1;
+
+                    // Post-handshake messages (such as a key update) may need a response
+                    if( engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK )
+                        runDelegatedTasks();
+
+                    if( engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP )
+                        wrap(EMPTY);
+                }
+
+                len = Math.min(len, appIn.remaining());
+                appIn.get(b, off, len);
+                return len;
+            }
+
+            public int available() throws IOException
+            {
+                return appIn.remaining();
             }
-            catch( SocketTimeoutException ste )
+
+            public long skip(long n) throws IOException
             {
-                return;
+                long skipped = 0;
+
+                // Only discard data which can be read without blocking
+                for(;;)
+                {
+                    skipped += appIn.remaining();
+                    appIn.position(appIn.limit());
+
+                    if( skipped >= n || rawIn.available() == 0 )
+                        break;
+
+                    if( unwrap().getStatus() == SSLEngineResult.Status.CLOSED )
+                        throw new EOFException("Connection closed by client");
+                }
+
+                return skipped;
             }
-            catch( Exception e )
+
+            public void close() throws IOException
             {
-                logger.writeln( "[ERROR] Failed to flush socket input buffer of client " + clientString + "." );
-                logger.writeln( "[ERROR] " + e.toString() );
-                return;
+                TlsStream.this.close();
             }
         }
 
-        public int checkSocket()
+        private class TlsOutputStream extends OutputStream
         {
-            // Send a packet with only the header and a PTYPE_HEARTBEAT
-            // byte to the client as a heartbeat
-
-            try
+            public void write(int b) throws IOException
             {
-                out.write(heartbeatBuffer.array());
-                out.flush();
-                flushInputBuffer();
-                return 0;
+                write(new byte[] { (byte)b }, 0, 1);
             }
-            catch( Exception e )
+
+            public void write(byte[] b, int off, int len) throws IOException
             {
-                return 1;
+                wrap(ByteBuffer.wrap(b, off, len));
             }
-        }
 
-        public void closeSocket()
-        {
-            try
+            public void flush() throws IOException
             {
-                in.close();
-                out.close();
-                sock.close();
+                rawOut.flush();
             }
-            catch( IOException ioe )
+
+            public void close() throws IOException
             {
-                logger.writeln( "Client " + getClientString() + " has disconnected." );
+                TlsStream.this.close();
             }
         }
-
-        public void kill()
-        {
-            this.interrupt();
-        }
     }
 
     /*
@@ -2110,10 +8499,29 @@ public class CheckValveConsoleRelay
      */
     private static class ControlListener implements Runnable
     {
+        final static int CTL_PACKET_HEADER = 0xFFFFFFFE;
+        final static byte CTL_PROTOCOL_VERSION = (byte) 0x01;
+        final static byte CTL_PROTOCOL_VERSION_2 = (byte) 0x02;
+        final static byte CTL_PTYPE_STATUS = (byte) 0x06;
+        final static byte CTL_PTYPE_SHUTDOWN = (byte) 0x07;
+        final static byte CTL_PTYPE_STATUS_RESPONSE = (byte) 0x08;
+        final static byte CTL_PTYPE_SHUTDOWN_RESPONSE = (byte) 0x09;
+        final static byte CTL_PTYPE_DUMP = (byte) 0x0A;
+        final static byte CTL_PTYPE_DUMP_RESPONSE = (byte) 0x0B;
+        final static byte CTL_PTYPE_TRAFFIC = (byte) 0x0C;
+        final static byte CTL_PTYPE_TRAFFIC_RESPONSE = (byte) 0x0D;
+        final static byte CTL_PTYPE_SUBSCRIBE = (byte) 0x0E;
+        final static byte CTL_PTYPE_STATS_UPDATE = (byte) 0x0F;
+        final static byte CTL_PTYPE_HISTORY = (byte) 0x10;
+        final static byte CTL_PTYPE_HISTORY_RESPONSE = (byte) 0x11;
+        final static byte CTL_PTYPE_SOURCES = (byte) 0x12;
+        final static byte CTL_PTYPE_SOURCES_RESPONSE = (byte) 0x13;
+
         private boolean listening = false;
         private String name = new String();
         private long id = 0;
         private DatagramSocket controlListenerSocket;
+        private List<StatsSubscription> subscriptions = new ArrayList<StatsSubscription>();
 
         public void run()
         {
@@ -2183,6 +8591,7 @@ public class CheckValveConsoleRelay
                     {
                         logger.writeln( "[ERROR] Control listener thread caught an exception:" );
                         logger.writeln( "[ERROR] " + se.toString() );
+                        flightRecorder.error(se);
 
                         if( debugLevel >= 2 )
                         {
@@ -2219,6 +8628,7 @@ public class CheckValveConsoleRelay
 
                     logger.writeln( "[ERROR] Control listener thread caught an exception:" );
                     logger.writeln( "[ERROR] " + e.toString() );
+                    flightRecorder.error(e);
 
                     if( debugLevel >= 2 )
                     {
@@ -2242,15 +8652,199 @@ public class CheckValveConsoleRelay
             }
         }
 
-        private void runControlListener() throws Exception
+        // Version 2 status response: every field is a TLV (see ControlStats)
+        private void sendStatus(InetAddress remoteAddr, int remotePort) throws IOException
+        {
+            ByteBuffer outBuffer = ByteBuffer.allocate(8192);
+            outBuffer.order(ByteOrder.BIG_ENDIAN);
+
+            outBuffer.putInt(CTL_PACKET_HEADER);
+            outBuffer.put(CTL_PROTOCOL_VERSION_2);
+            outBuffer.putLong(System.currentTimeMillis());
+            outBuffer.put(CTL_PTYPE_STATUS_RESPONSE);
+
+            ControlStats.putString(outBuffer, ControlStats.TAG_VERSION, PROGRAM_VERSION);
+
+            long[] v = ControlStats.sample();
+
+            for( int i = 0; i < v.length; i++ )
+                ControlStats.putLong(outBuffer, ControlStats.TAGS[i], v[i]);
+
+            for( JvmHealth.Item g : jvmHealth.getGcs() )
+            {
+                ControlStats.putString(outBuffer, ControlStats.TAG_GC, g.name);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_GC_COUNT, g.a);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_GC_TIME_MS, g.b);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_GC_LAST_PAUSE, g.c);
+            }
+
+            for( JvmHealth.Item p : jvmHealth.getPools() )
+            {
+                ControlStats.putString(outBuffer, ControlStats.TAG_BUFFER_POOL, p.name);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_POOL_BUFFERS, p.a);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_POOL_USED, p.b);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_POOL_CAPACITY, p.c);
+            }
+
+            for( JvmHealth.Item t : jvmHealth.getThreads() )
+            {
+                ControlStats.putString(outBuffer, ControlStats.TAG_THREAD, t.name);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_THREAD_CPU, t.a);
+                ControlStats.putLong(outBuffer, ControlStats.TAG_THREAD_CPU_RECENT, t.b);
+            }
+
+            for( int i = 0; i < maxClients; i++ )
+            {
+                Connection c = connections[i];
+
+                if( ! c.isAlive() || c.getRtt() == 0 || outBuffer.remaining() < 128 )
+                    continue;
+
+                ControlStats.putString(outBuffer, ControlStats.TAG_CLIENT, c.getClientString());
+                ControlStats.putLong(outBuffer, ControlStats.TAG_CLIENT_SRTT, c.getRtt());
+                ControlStats.putLong(outBuffer, ControlStats.TAG_CLIENT_RTTVAR, c.getRttVariance());
+            }
+
+            outBuffer.flip();
+            controlListenerSocket.send(new DatagramPacket(outBuffer.array(), outBuffer.limit(), remoteAddr, remotePort));
+        }
+
+        // Add, renew or (with an interval of 0) cancel a stats subscription
+        private void subscribe(InetAddress remoteAddr, int remotePort, int interval, long now)
+        {
+            StatsSubscription s = null;
+
+            for( StatsSubscription x : subscriptions )
+                if( x.port == remotePort && x.addr.equals(remoteAddr) )
+                    s = x;
+
+            if( interval <= 0 )
+            {
+                if( s != null )
+                {
+                    subscriptions.remove(s);
+                    logger.writeln( "Cancelled the stats subscription for " + remoteAddr.getHostAddress() + ":" + remotePort + "." );
+                }
+
+                return;
+            }
+
+            if( s == null )
+            {
+                if( subscriptions.size() >= MAX_STATS_SUBSCRIPTIONS )
+                {
+                    logger.writeln( "Rejecting control request : Too many stats subscriptions." );
+                    return;
+                }
+
+                s = new StatsSubscription();
+                s.addr = remoteAddr;
+                s.port = remotePort;
+                s.lastTime = now;
+                s.last = ControlStats.sample();
+                s.lastLatency = latencySnapshots();
+                s.next = now + Math.max(interval, CTL_PUBLISH_TICK);
+                subscriptions.add(s);
+
+                logger.writeln( "Received a stats subscription from " + remoteAddr.getHostAddress() + ":" + remotePort + " (every " + Math.max(interval, CTL_PUBLISH_TICK) + " ms)." );
+            }
+
+            s.interval = Math.min(Math.max(interval, CTL_PUBLISH_TICK), 60000);
+            s.expires = now + Math.max(CTL_SUBSCRIPTION_LEASE, 3*s.interval);
+        }
+
+        // Send an update to each subscriber which is due one
+        private void publishStats() throws IOException
+        {
+            long now = System.currentTimeMillis();
+            long[] v = null;
+            long[][] h = null;
+
+            for( int i = subscriptions.size() - 1; i >= 0; i-- )
+            {
+                StatsSubscription s = subscriptions.get(i);
+
+                if( now >= s.expires )
+                {
+                    subscriptions.remove(i);
+
+                    if( debugLevel >= 2 )
+                        logger.debug(2, "Stats subscription for " + s.addr.getHostAddress() + ":" + s.port + " has lapsed.");
+
+                    continue;
+                }
+
+                if( now < s.next )
+                    continue;
+
+                if( v == null )
+                {
+                    v = ControlStats.sample();
+                    h = latencySnapshots();
+                }
+
+                ByteBuffer outBuffer = ByteBuffer.allocate(1024);
+                outBuffer.order(ByteOrder.BIG_ENDIAN);
+
+                outBuffer.putInt(CTL_PACKET_HEADER);
+                outBuffer.put(CTL_PROTOCOL_VERSION_2);
+                outBuffer.putLong(System.currentTimeMillis());
+                outBuffer.put(CTL_PTYPE_STATS_UPDATE);
+
+                ControlStats.putLong(outBuffer, ControlStats.TAG_ELAPSED, now - s.lastTime);
+
+                // Latency percentiles for the interval rather than the lifetime
+                long[] lat = new long[3*h.length];
+
+                for( int x = 0; x < h.length; x++ )
+                {
+                    long[] d = LatencyHistogram.difference(h[x], s.lastLatency[x]);
+
+                    lat[3*x] = LatencyHistogram.percentile(d, 0.50);
+                    lat[3*x+1] = LatencyHistogram.percentile(d, 0.99);
+                    lat[3*x+2] = LatencyHistogram.percentile(d, 0.999);
+                }
+
+                for( int x = 0; x < v.length; x++ )
+                {
+                    int t = ControlStats.TAGS[x];
+
+                    if( t >= ControlStats.TAG_LATENCY && t < ControlStats.TAG_LATENCY + lat.length )
+                        ControlStats.putLong(outBuffer, ControlStats.TAGS[x], lat[t - ControlStats.TAG_LATENCY]);
+                    else
+                        ControlStats.putLong(outBuffer, ControlStats.TAGS[x], ControlStats.COUNTER[x]?(v[x] - s.last[x]):v[x]);
+                }
+
+                outBuffer.flip();
+                controlListenerSocket.send(new DatagramPacket(outBuffer.array(), outBuffer.limit(), s.addr, s.port));
+
+                s.last = v;
+                s.lastLatency = h;
+                s.lastTime = now;
+                s.next = Math.max(s.next + s.interval, now);
+            }
+        }
+
+        private static long[][] latencySnapshots()
+        {
+            long[][] h = new long[latencyHistograms.length][];
+
+            for( int i = 0; i < h.length; i++ )
+                h[i] = latencyHistograms[i].snapshot();
+
+            return h;
+        }
+
+        private static void putString(ByteBuffer b, String s) throws UnsupportedEncodingException
         {
-            final int CTL_PACKET_HEADER = 0xFFFFFFFE;
-            final byte CTL_PROTOCOL_VERSION = (byte) 0x01;
-            final byte CTL_PTYPE_STATUS = (byte) 0x06;
-            final byte CTL_PTYPE_SHUTDOWN = (byte) 0x07;
-            final byte CTL_PTYPE_STATUS_RESPONSE = (byte) 0x08;
-            final byte CTL_PTYPE_SHUTDOWN_RESPONSE = (byte) 0x09;
+            byte[] a = s.getBytes("US-ASCII");
+
+            b.put((byte)a.length);
+            b.put(a);
+        }
 
+        private void runControlListener() throws Exception
+        {
             InetAddress localhost = InetAddress.getByName("127.0.0.1");
 
             byte reqType;
@@ -2282,12 +8876,36 @@ public class CheckValveConsoleRelay
             {
                 dataBuffer.clear();
 
-                // Create a new open socket for the next connection
-                controlListenerSocket.receive(packet);
+                publishStats();
+
+                // Wake up regularly to send stats updates only while there are subscribers
+                int tick = subscriptions.isEmpty() ? 0 : CTL_PUBLISH_TICK;
+
+                if( controlListenerSocket.getSoTimeout() != tick )
+                    controlListenerSocket.setSoTimeout(tick);
+
+                try
+                {
+                    // Create a new open socket for the next connection
+                    controlListenerSocket.receive(packet);
+                }
+                catch( SocketTimeoutException ste )
+                {
+                    continue;
+                }
 
                 // Get the current time
                 connectTimeMillis = System.currentTimeMillis();
 
+                // Only what was received may be read from the buffer
+                dataBuffer.limit(packet.getLength());
+
+                if( dataBuffer.remaining() < 14 )
+                {
+                    logger.writeln( "Rejecting control request : Invalid packet header." );
+                    continue;
+                }
+
                 if( (reqHeader = dataBuffer.getInt()) != CTL_PACKET_HEADER )
                 {
                     if( debugLevel >= 3 )
@@ -2311,7 +8929,74 @@ public class CheckValveConsoleRelay
                     continue;
                 }
 
-                if( reqType == CTL_PTYPE_STATUS )
+                if( reqType == CTL_PTYPE_STATUS && reqProtocol == CTL_PROTOCOL_VERSION_2 )
+                {
+                    logger.writeln( "Received a status request." );
+                    sendStatus(packet.getAddress(), packet.getPort());
+                }
+                else if( reqType == CTL_PTYPE_SUBSCRIBE && reqProtocol == CTL_PROTOCOL_VERSION_2 )
+                {
+                    if( dataBuffer.remaining() < 4 )
+                    {
+                        logger.writeln( "Rejecting control request : Invalid value." );
+                        continue;
+                    }
+
+                    subscribe(packet.getAddress(), packet.getPort(), dataBuffer.getInt(), connectTimeMillis);
+                }
+                else if( reqType == CTL_PTYPE_HISTORY && reqProtocol == CTL_PROTOCOL_VERSION_2 )
+                {
+                    logger.writeln( "Received a history request." );
+
+                    ByteBuffer outBuffer = ByteBuffer.allocate(65000);
+                    outBuffer.order(ByteOrder.BIG_ENDIAN);
+
+                    outBuffer.putInt(CTL_PACKET_HEADER);
+                    outBuffer.put(CTL_PROTOCOL_VERSION_2);
+                    outBuffer.putLong(System.currentTimeMillis());
+                    outBuffer.put(CTL_PTYPE_HISTORY_RESPONSE);
+
+                    statsHistory.write(outBuffer);
+
+                    outBuffer.flip();
+                    controlListenerSocket.send(new DatagramPacket(outBuffer.array(), outBuffer.limit(), packet.getAddress(), packet.getPort()));
+                }
+                else if( reqType == CTL_PTYPE_SOURCES && reqProtocol == CTL_PROTOCOL_VERSION_2 )
+                {
+                    logger.writeln( "Received a sources request." );
+
+                    if( dataBuffer.remaining() < 3 )
+                    {
+                        logger.writeln( "Rejecting control request : Invalid value." );
+                        continue;
+                    }
+
+                    // The request says how many sources to return and whether to rank them by bytes
+                    int n = Math.max(0, Math.min(dataBuffer.getShort(), 500));
+                    boolean byBytes = (dataBuffer.get() == 1);
+
+                    ByteBuffer outBuffer = ByteBuffer.allocate(65000);
+                    outBuffer.order(ByteOrder.BIG_ENDIAN);
+
+                    outBuffer.putInt(CTL_PACKET_HEADER);
+                    outBuffer.put(CTL_PROTOCOL_VERSION_2);
+                    outBuffer.putLong(System.currentTimeMillis());
+                    outBuffer.put(CTL_PTYPE_SOURCES_RESPONSE);
+
+                    ControlStats.putLong(outBuffer, ControlStats.TAG_SOURCES_TOTAL, heavyHitters.total());
+
+                    for( HeavyHitters.Source s : heavyHitters.top(n, byBytes) )
+                    {
+                        ControlStats.putString(outBuffer, ControlStats.TAG_SOURCE, s.address);
+                        ControlStats.putLong(outBuffer, ControlStats.TAG_SOURCE_DATAGRAMS, s.datagrams);
+                        ControlStats.putLong(outBuffer, ControlStats.TAG_SOURCE_ERROR, s.error);
+                        ControlStats.putLong(outBuffer, ControlStats.TAG_SOURCE_BYTES, s.bytes);
+                    }
+
+                    outBuffer.flip();
+                    controlListenerSocket.send(new DatagramPacket(outBuffer.array(), outBuffer.limit(), packet.getAddress(), packet.getPort()));
+                }
+                else if( reqType == CTL_PTYPE_STATUS )
                 {
                     logger.writeln( "Received a status request." );
 
@@ -2328,7 +9013,7 @@ public class CheckValveConsoleRelay
                     int usedMem = (totalMem - freeMem);
                     int numBanned = (autoBanEnabled == 1)?bannedClients.size():0;
 
-                    byte[] outArray = new byte[128];
+                    byte[] outArray = new byte[1024];
                     ByteBuffer outBuffer = ByteBuffer.wrap(outArray);
                     outBuffer.order(ByteOrder.BIG_ENDIAN);
 
@@ -2344,11 +9029,64 @@ public class CheckValveConsoleRelay
                     outBuffer.putInt(freeMem);
                     outBuffer.putInt(maxMem);
                     outBuffer.putInt(usedMem);
-                    outBuffer.putLong(totalPackets);
-                    outBuffer.putLong(relayedPackets);
-                    outBuffer.putInt(acceptedConnections);
-                    outBuffer.putInt(rejectedConnections);
+                    outBuffer.putLong(totalPackets.sum());
+                    outBuffer.putLong(relayedPackets.sum());
+                    outBuffer.putInt((int)acceptedConnections.sum());
+                    outBuffer.putInt((int)rejectedConnections.sum());
                     outBuffer.putInt(numBanned);
+                    outBuffer.putInt(ipCapRejections);
+                    outBuffer.putInt(serverCapRejections);
+
+                    // Round trip times of the clients which acknowledge heartbeats
+                    outBuffer.putInt(deadPeerRemovals);
+                    outBuffer.putShort((short)0);
+
+                    int rttCount = 0;
+                    int rttCountPos = outBuffer.position() - 2;
+
+                    // Leave room for the latency section which follows
+                    int latencyBytes = 1;
+
+                    for( LatencyHistogram h : latencyHistograms )
+                        latencyBytes += 1 + h.getName().length() + 8 + 12;
+
+                    for( int i = 0; i < maxClients; i++ )
+                    {
+                        Connection c = connections[i];
+
+                        if( ! c.isAlive() || c.getRtt() == 0 )
+                            continue;
+
+                        byte[] cs = c.getClientString().getBytes("US-ASCII");
+
+                        if( outBuffer.remaining() < 1 + cs.length + 8 + latencyBytes )
+                            break;
+
+                        outBuffer.put((byte)cs.length);
+                        outBuffer.put(cs);
+                        outBuffer.putInt((int)Math.min(c.getRtt(), Integer.MAX_VALUE));
+                        outBuffer.putInt((int)Math.min(c.getRttVariance(), Integer.MAX_VALUE));
+                        rttCount++;
+                    }
+
+                    outBuffer.putShort(rttCountPos, (short)rttCount);
+
+                    // Latency percentiles in microseconds for each stage
+                    outBuffer.put((byte)latencyHistograms.length);
+
+                    for( LatencyHistogram h : latencyHistograms )
+                    {
+                        long[] s = h.snapshot();
+                        byte[] n = h.getName().getBytes("US-ASCII");
+
+                        outBuffer.put((byte)n.length);
+                        outBuffer.put(n);
+                        outBuffer.putLong(LatencyHistogram.count(s));
+                        outBuffer.putInt((int)Math.min(LatencyHistogram.percentile(s, 0.50), Integer.MAX_VALUE));
+                        outBuffer.putInt((int)Math.min(LatencyHistogram.percentile(s, 0.99), Integer.MAX_VALUE));
+                        outBuffer.putInt((int)Math.min(LatencyHistogram.percentile(s, 0.999), Integer.MAX_VALUE));
+                    }
+
                     outBuffer.flip();
 
                     DatagramPacket outPacket = new DatagramPacket(outBuffer.array(), outBuffer.position(), outBuffer.limit(), remoteAddr, remotePort);
@@ -2376,6 +9114,135 @@ public class CheckValveConsoleRelay
 
                     System.exit(0);
                 }
+                else if( reqType == CTL_PTYPE_DUMP )
+                {
+                    logger.writeln( "Received a flight recorder dump request." );
+
+                    InetAddress remoteAddr = packet.getAddress();
+                    int remotePort = packet.getPort();
+
+                    File f = flightRecorder.dump("Requested through the control port");
+                    byte[] path = (f != null)?f.getAbsolutePath().getBytes("UTF-8"):new byte[0];
+
+                    if( f != null )
+                        logger.writeln( "Flight recorder events were saved to " + f.getPath() + "." );
+
+                    byte[] outArray = new byte[128 + path.length];
+                    ByteBuffer outBuffer = ByteBuffer.wrap(outArray);
+                    outBuffer.order(ByteOrder.BIG_ENDIAN);
+
+                    outBuffer.putInt(CTL_PACKET_HEADER);
+                    outBuffer.put(CTL_PROTOCOL_VERSION);
+                    outBuffer.putLong(System.currentTimeMillis());
+                    outBuffer.put(CTL_PTYPE_DUMP_RESPONSE);
+                    outBuffer.put((f != null)?(byte)0x00:(byte)0x01);
+                    outBuffer.putShort((short)path.length);
+                    outBuffer.put(path);
+                    outBuffer.flip();
+
+                    DatagramPacket outPacket = new DatagramPacket(outBuffer.array(), outBuffer.position(), outBuffer.limit(), remoteAddr, remotePort);
+                    controlListenerSocket.send(outPacket);
+                }
+                else if( reqType == CTL_PTYPE_TRAFFIC )
+                {
+                    logger.writeln( "Received a traffic request." );
+
+                    InetAddress remoteAddr = packet.getAddress();
+                    int remotePort = packet.getPort();
+
+                    byte[] outArray = new byte[65000];
+                    ByteBuffer outBuffer = ByteBuffer.wrap(outArray);
+                    outBuffer.order(ByteOrder.BIG_ENDIAN);
+
+                    outBuffer.putInt(CTL_PACKET_HEADER);
+                    outBuffer.put(CTL_PROTOCOL_VERSION);
+                    outBuffer.putLong(System.currentTimeMillis());
+                    outBuffer.put(CTL_PTYPE_TRAFFIC_RESPONSE);
+
+                    // Clients, the ones dropping the most messages first
+                    List<Connection> clients = new ArrayList<Connection>();
+
+                    for( int i = 0; i < maxClients; i++ )
+                        if( connections[i].isAlive() )
+                            clients.add(connections[i]);
+
+                    Collections.sort(clients, new Comparator<Connection>()
+                    {
+                        public int compare(Connection a, Connection b)
+                        {
+                            if( a.getDrops() != b.getDrops() )
+                                return Long.compare(b.getDrops(), a.getDrops());
+
+                            return b.getQueueDepth() - a.getQueueDepth();
+                        }
+                    });
+
+                    int clientCountPos = outBuffer.position();
+                    int clientCount = 0;
+
+                    outBuffer.putShort((short)0);
+
+                    // As many clients as fit, leaving room for the server section's header
+                    for( Connection c : clients )
+                    {
+                        if( outBuffer.remaining() < c.getClientString().length() + c.getServerKey().length() + 38 + 10 )
+                            break;
+
+                        putString(outBuffer, c.getClientString());
+                        putString(outBuffer, c.getServerKey());
+                        outBuffer.putLong(c.getMessagesSent());
+                        outBuffer.putLong(c.getBytesSent());
+                        outBuffer.putInt(c.getQueueDepth());
+                        outBuffer.putLong(c.getDrops());
+                        outBuffer.putLong(c.getConnectTime());
+                        clientCount++;
+                    }
+
+                    outBuffer.putShort(clientCountPos, (short)clientCount);
+
+                    // Game servers, the busiest first, with the number of clients wanting each
+                    Map<String,int[]> subscribers = new HashMap<String,int[]>();
+
+                    for( Connection c : clients )
+                    {
+                        int[] n = subscribers.get(c.getServerKey());
+
+                        if( n == null )
+                            subscribers.put(c.getServerKey(), n = new int[1]);
+
+                        n[0]++;
+                    }
+
+                    List<Integer> servers = serverTraffic.sorted();
+                    int serverCountPos = outBuffer.position();
+                    int serverCount = 0;
+
+                    outBuffer.putShort((short)0);
+                    outBuffer.putLong(serverTraffic.untracked());
+
+                    for( int slot : servers )
+                    {
+                        String s = serverTraffic.serverString(slot);
+                        int[] n = subscribers.get(s);
+
+                        if( outBuffer.remaining() < s.length() + 40 )
+                            break;
+
+                        putString(outBuffer, s);
+                        outBuffer.putLong(serverTraffic.getDatagrams(slot));
+                        outBuffer.putLong(serverTraffic.getBytes(slot));
+                        outBuffer.putLong(serverTraffic.getRelayed(slot));
+                        outBuffer.putShort((short)((n != null)?n[0]:0));
+                        outBuffer.putLong(serverTraffic.getLastSeen(slot));
+                        serverCount++;
+                    }
+
+                    outBuffer.putShort(serverCountPos, (short)serverCount);
+                    outBuffer.flip();
+
+                    DatagramPacket outPacket = new DatagramPacket(outBuffer.array(), outBuffer.position(), outBuffer.limit(), remoteAddr, remotePort);
+                    controlListenerSocket.send(outPacket);
+                }
                 else
                 {
                     logger.writeln( "Rejecting control request : Invalid value." );
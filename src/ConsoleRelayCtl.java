@@ -40,16 +40,118 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteOrder;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class ConsoleRelayCtl
 {
     private static final int CTL_PACKET_HEADER = 0xFFFFFFFE;
     private static final byte CTL_PROTOCOL_VERSION = (byte) 0x01;
+    private static final byte CTL_PROTOCOL_VERSION_2 = (byte) 0x02;
     private static final byte CTL_PTYPE_STATUS = (byte) 0x06;
     private static final byte CTL_PTYPE_SHUTDOWN = (byte) 0x07;
     private static final byte CTL_PTYPE_STATUS_RESPONSE = (byte) 0x08;
     private static final byte CTL_PTYPE_SHUTDOWN_RESPONSE = (byte) 0x09;
+    private static final byte CTL_PTYPE_DUMP = (byte) 0x0A;
+    private static final byte CTL_PTYPE_DUMP_RESPONSE = (byte) 0x0B;
+    private static final byte CTL_PTYPE_TRAFFIC = (byte) 0x0C;
+    private static final byte CTL_PTYPE_TRAFFIC_RESPONSE = (byte) 0x0D;
+    private static final byte CTL_PTYPE_SUBSCRIBE = (byte) 0x0E;
+    private static final byte CTL_PTYPE_STATS_UPDATE = (byte) 0x0F;
+    private static final byte CTL_PTYPE_HISTORY = (byte) 0x10;
+    private static final byte CTL_PTYPE_HISTORY_RESPONSE = (byte) 0x11;
+    private static final byte CTL_PTYPE_SOURCES = (byte) 0x12;
+    private static final byte CTL_PTYPE_SOURCES_RESPONSE = (byte) 0x13;
+
+    // Version 2 field types and tags
+    private static final byte TYPE_INT64 = (byte) 0x01;
+    private static final byte TYPE_STRING = (byte) 0x02;
+    private static final byte TYPE_INT32_ARRAY = (byte) 0x03;
+    private static final int TAG_ELAPSED = 0;
+    private static final int TAG_UPTIME = 1;
+    private static final int TAG_HEAP_USED = 2;
+    private static final int TAG_HEAP_MAX = 3;
+    private static final int TAG_PACKETS_RECEIVED = 10;
+    private static final int TAG_PACKETS_RELAYED = 11;
+    private static final int TAG_MESSAGES_QUEUED = 12;
+    private static final int TAG_MESSAGES_DROPPED = 13;
+    private static final int TAG_CONNECTIONS_ACCEPTED = 14;
+    private static final int TAG_CONNECTIONS_REJECTED = 15;
+    private static final int TAG_IP_CAP_REJECTIONS = 16;
+    private static final int TAG_SERVER_CAP_REJECTIONS = 17;
+    private static final int TAG_DEAD_PEER_REMOVALS = 18;
+    private static final int TAG_LOG_LINES_DROPPED = 19;
+    private static final int TAG_PIPELINE_STALLS = 20;
+    private static final int TAG_GC_COLLECTIONS = 21;
+    private static final int TAG_GC_TIME = 22;
+    private static final int TAG_PROCESS_CPU_TIME = 23;
+    private static final int TAG_CLIENTS_CONNECTED = 30;
+    private static final int TAG_CLIENTS_BANNED = 31;
+    private static final int TAG_SEND_QUEUE_DEPTH = 32;
+    private static final int TAG_LOG_QUEUE_DEPTH = 33;
+    private static final int TAG_THREADS_LIVE = 34;
+    private static final int TAG_THREADS_PEAK = 35;
+    private static final int TAG_PROCESS_CPU_LOAD = 36;
+    private static final int TAG_LATENCY = 40;
+    private static final int TAG_VERSION = 100;
+    private static final int TAG_CLIENT = 101;
+    private static final int TAG_CLIENT_SRTT = 102;
+    private static final int TAG_CLIENT_RTTVAR = 103;
+    private static final int TAG_HISTORY_SECOND = 110;
+    private static final int TAG_HISTORY_MINUTE = 111;
+    private static final int TAG_HISTORY_SECONDS = 120;
+    private static final int TAG_HISTORY_MINUTES = 130;
+    private static final int TAG_SOURCES_TOTAL = 112;
+    private static final int TAG_SOURCE = 140;
+    private static final int TAG_SOURCE_DATAGRAMS = 141;
+    private static final int TAG_SOURCE_ERROR = 142;
+    private static final int TAG_SOURCE_BYTES = 143;
+    private static final int TAG_GC = 150;
+    private static final int TAG_GC_COUNT = 151;
+    private static final int TAG_GC_TIME_MS = 152;
+    private static final int TAG_GC_LAST_PAUSE = 153;
+    private static final int TAG_BUFFER_POOL = 160;
+    private static final int TAG_POOL_BUFFERS = 161;
+    private static final int TAG_POOL_USED = 162;
+    private static final int TAG_POOL_CAPACITY = 163;
+    private static final int TAG_THREAD = 170;
+    private static final int TAG_THREAD_CPU = 171;
+    private static final int TAG_THREAD_CPU_RECENT = 172;
+
+    // Labels for the numeric fields, in the order they are shown
+    private static final int[] STATUS_TAGS = {
+        TAG_PACKETS_RECEIVED, TAG_PACKETS_RELAYED, TAG_MESSAGES_QUEUED, TAG_MESSAGES_DROPPED,
+        TAG_CONNECTIONS_ACCEPTED, TAG_CONNECTIONS_REJECTED, TAG_IP_CAP_REJECTIONS, TAG_SERVER_CAP_REJECTIONS,
+        TAG_DEAD_PEER_REMOVALS, TAG_CLIENTS_CONNECTED, TAG_CLIENTS_BANNED, TAG_SEND_QUEUE_DEPTH,
+        TAG_LOG_QUEUE_DEPTH, TAG_LOG_LINES_DROPPED, TAG_PIPELINE_STALLS
+    };
+    private static final String[] STATUS_LABELS = {
+        "Packets received", "Packets relayed", "Messages queued for clients", "Messages dropped (send queue full)",
+        "Accepted connections", "Rejected connections", "Rejected by per-IP cap", "Rejected by per-server cap",
+        "Removed for unacknowledged heartbeats", "Clients currently connected", "Clients currently banned", "Messages waiting in send queues",
+        "Log lines waiting", "Log lines dropped", "Pipeline stalls"
+    };
+    private static final String[] LATENCY_STAGES = { "receive", "deliver", "total" };
+
+    // History series in the order the relay sends them; the last one is a gauge
+    private static final String[] HISTORY_LABELS = { "Received/s", "Relayed/s", "Sent/s", "Dropped/s", "Rejected/s", "Clients" };
+    private static final int HISTORY_WIDTH = 60;
+    private static final char[] SPARKS = { '\u2581', '\u2582', '\u2583', '\u2584', '\u2585', '\u2586', '\u2587', '\u2588' };
+    private static final char[] ASCII_SPARKS = { '_', '.', '-', '~', '=', '+', '*', '#' };
+    // Layout of the shared counters file (see SharedCounters in the relay)
+    private static final int COUNTERS_MAGIC = 0x43565243;
+    private static final int COUNTERS_LAYOUT_VERSION = 1;
+    private static final int COUNTERS_RETRIES = 100;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
     private static final String PROGRAM_VERSION = "1.0.0";
     private static final String IDENTITY_STRING = "CheckValve Console Relay Control " + PROGRAM_VERSION;
 
@@ -63,6 +165,7 @@ public class ConsoleRelayCtl
     private static boolean debug;
     private static boolean specifyConfig;
     private static int controlListenPort;
+    private static String sharedCountersFile;
     private static File parentDir;
 
     public static void main(String args[]) throws InterruptedException
@@ -87,6 +190,7 @@ public class ConsoleRelayCtl
             debug = false;
             specifyConfig = false;
             controlListenPort = 34568;
+            sharedCountersFile = "";
         }
         catch( Exception e )
         {
@@ -210,11 +314,63 @@ public class ConsoleRelayCtl
                 }
                 else if( opt.equals("stop") )
                 {
-                    sendCtl(CTL_PTYPE_SHUTDOWN);
+                    sendCtl(CTL_PTYPE_SHUTDOWN, CTL_PROTOCOL_VERSION);
                 }
                 else if( opt.equals("status") )
                 {
-                    sendCtl(CTL_PTYPE_STATUS);
+                    if( i+1 < args.length && args[i+1].equals("--watch") )
+                    {
+                        int interval = 1000;
+                        i++;
+
+                        // An optional interval in milliseconds may follow
+                        if( i+1 < args.length && args[i+1].matches("\\d+") )
+                            interval = parseCount(args[++i], 60000);
+
+                        watchStatus(interval);
+                    }
+                    else
+                    {
+                        sendCtl(CTL_PTYPE_STATUS, CTL_PROTOCOL_VERSION_2);
+                    }
+                }
+                else if( opt.equals("dump") )
+                {
+                    sendCtl(CTL_PTYPE_DUMP, CTL_PROTOCOL_VERSION);
+                }
+                else if( opt.equals("traffic") )
+                {
+                    sendCtl(CTL_PTYPE_TRAFFIC, CTL_PROTOCOL_VERSION);
+                }
+                else if( opt.equals("history") )
+                {
+                    sendCtl(CTL_PTYPE_HISTORY, CTL_PROTOCOL_VERSION_2);
+                }
+                else if( opt.equals("sources") )
+                {
+                    short count = 20;
+                    byte byBytes = 0;
+
+                    // Optional --bytes and a number of sources may follow in either order
+                    while( i+1 < args.length && (args[i+1].equals("--bytes") || args[i+1].matches("\\d+")) )
+                    {
+                        if( args[++i].equals("--bytes") )
+                            byBytes = 1;
+                        else
+                            count = (short)parseCount(args[i], 500);
+                    }
+
+                    sendCtl(CTL_PTYPE_SOURCES, CTL_PROTOCOL_VERSION_2, new byte[] { (byte)(count >> 8), (byte)count, byBytes });
+                }
+                else if( opt.equals("counters") )
+                {
+                    // The file name comes from the configuration unless one is given
+                    parseConfig();
+
+                    if( i+1 < args.length && ! args[i+1].startsWith("-") )
+                        sharedCountersFile = args[++i];
+
+                    printCounters();
                 }
                 else
                 {
@@ -232,16 +388,44 @@ public class ConsoleRelayCtl
         parseConfig();
     }
 
+    // Parse a number of digits from the command line, capped at max
+    private static int parseCount(String s, int max)
+    {
+        try
+        {
+            return Math.min(Integer.parseInt(s), max);
+        }
+        catch( NumberFormatException nfe )
+        {
+            System.out.println();
+            System.out.println( "Invalid number: " + s );
+            usage();
+            System.exit(1);
+            return 0;
+        }
+    }
+
     private static void usage()
     {
         System.out.println();
-        System.out.println( "Usage: java -jar consolerelayctl.jar [--config <file>] {start|stop|status}" );
+        System.out.println( "Usage: java -jar consolerelayctl.jar [--config <file>] {start|stop|status [--watch [ms]]|dump|traffic|history|sources [--bytes] [n]|counters [file]}" );
         System.out.println( "       java -jar consolerelayctl.jar --help" );
         System.out.println();
         System.out.println( "Command line options:" );
         System.out.println( "    --config <file>  Get configuration from <file> instead of the default (checkvalveconsolerelay.properties)" );
         System.out.println( "    --help           Show this help and exit." );
         System.out.println();
+        System.out.println( "Commands:" );
+        System.out.println( "    start            Start the relay." );
+        System.out.println( "    stop             Shut down the relay." );
+        System.out.println( "    status           Show the relay's status and statistics." );
+        System.out.println( "    status --watch   Show rates once a second (or every [ms]) until interrupted." );
+        System.out.println( "    dump             Save the relay's flight recorder events to a file." );
+        System.out.println( "    traffic          Show the traffic for each client and game server." );
+        System.out.println( "    history          Show the message rates over the last 10 minutes and 24 hours." );
+        System.out.println( "    sources          Show the [n] heaviest datagram sources (by bytes with --bytes)." );
+        System.out.println( "    counters         Show the counters from the relay's shared counters file (or [file])." );
+        System.out.println();
     }
 
     private static void parseConfig()
@@ -279,6 +463,8 @@ public class ConsoleRelayCtl
             System.out.println();
             System.out.println( "WARNING: Specified value for controlListenPort is invalid, using default (" + DEFAULT_CONTROL_PORT + ")." );
         }
+
+        sharedCountersFile = config.getProperty("sharedCountersFile","").trim();
     }
 
     private static void startConsoleRelay()
@@ -363,7 +549,519 @@ public class ConsoleRelayCtl
         }
     }
 
-    private static void sendCtl( byte ctl )
+    // Read the version 2 fields up to the end of the packet.  Numeric fields
+    // go in nums (the last value of a repeated tag wins) and every field is
+    // also added to fields in order, so repeated groups can be followed.
+    private static void readFields(ByteBuffer b, int end, Map<Integer,Long> nums, List<Object[]> fields) throws UnsupportedEncodingException
+    {
+        while( b.position() + 5 <= end )
+        {
+            int tag = b.getShort() & 0xFFFF;
+            byte type = b.get();
+            int len = b.getShort() & 0xFFFF;
+
+            if( b.position() + len > end )
+                break;
+
+            if( type == TYPE_INT64 && len == 8 )
+            {
+                long v = b.getLong();
+                nums.put(tag, v);
+                fields.add(new Object[] {tag, v});
+            }
+            else if( type == TYPE_INT32_ARRAY )
+            {
+                int[] a = new int[len/4];
+
+                for( int i = 0; i < a.length; i++ )
+                    a[i] = b.getInt();
+
+                fields.add(new Object[] {tag, a});
+            }
+            else if( type == TYPE_STRING )
+            {
+                byte[] s = new byte[len];
+                b.get(s);
+                fields.add(new Object[] {tag, new String(s, "UTF-8")});
+            }
+            else
+            {
+                // Unknown types are skipped
+                b.position(b.position() + len);
+            }
+        }
+    }
+
+    private static void printStatus(ByteBuffer b, int end) throws UnsupportedEncodingException
+    {
+        Map<Integer,Long> nums = new LinkedHashMap<Integer,Long>();
+        List<Object[]> fields = new ArrayList<Object[]>();
+        String version = "";
+
+        readFields(b, end, nums, fields);
+
+        for( Object[] f : fields )
+            if( (Integer)f[0] == TAG_VERSION )
+                version = " (version " + f[1] + ")";
+
+        long uptime = nums.containsKey(TAG_UPTIME)?nums.get(TAG_UPTIME)/60:0;
+
+        System.out.println();
+        System.out.println( "CheckValve Console Relay is running" + version + "." );
+        System.out.println();
+        System.out.println( "  Uptime: " + (uptime/1440) + " days " + ((uptime/60) % 24) + " hours " + (uptime % 60) + " minutes" );
+
+        if( nums.containsKey(TAG_HEAP_USED) )
+            System.out.println( "  Memory: max=" + (nums.get(TAG_HEAP_MAX)/1024) + "k, used=" + (nums.get(TAG_HEAP_USED)/1024) + "k" );
+
+        if( nums.containsKey(TAG_GC_COLLECTIONS) )
+            System.out.println( "  GC: collections=" + nums.get(TAG_GC_COLLECTIONS) + ", time=" + nums.get(TAG_GC_TIME) + "ms" );
+
+        if( nums.containsKey(TAG_THREADS_LIVE) )
+            System.out.println( "  Threads: live=" + nums.get(TAG_THREADS_LIVE) + ", peak=" + nums.get(TAG_THREADS_PEAK) );
+
+        if( get(nums, TAG_PROCESS_CPU_LOAD) >= 0 && nums.containsKey(TAG_PROCESS_CPU_LOAD) )
+            System.out.println( "  Process CPU: load=" + (nums.get(TAG_PROCESS_CPU_LOAD)/10.0) + "%, time=" + (nums.get(TAG_PROCESS_CPU_TIME)/1000) + "s" );
+
+        // Each collector, buffer pool and thread is followed by its figures
+        String item = null;
+        long[] figures = new long[2];
+
+        for( Object[] f : fields )
+        {
+            int tag = (Integer)f[0];
+
+            if( tag == TAG_GC || tag == TAG_BUFFER_POOL || tag == TAG_THREAD )
+                item = (String)f[1];
+            else if( tag == TAG_GC_COUNT || tag == TAG_POOL_BUFFERS || tag == TAG_THREAD_CPU )
+                figures[0] = (Long)f[1];
+            else if( tag == TAG_GC_TIME_MS || tag == TAG_POOL_USED )
+                figures[1] = (Long)f[1];
+            else if( item == null )
+                continue;
+            else if( tag == TAG_GC_LAST_PAUSE )
+                System.out.println( "  GC " + item + ": collections=" + figures[0] + ", time=" + figures[1] + "ms" + (((Long)f[1] >= 0)?(", last pause=" + f[1] + "ms"):"") );
+            else if( tag == TAG_POOL_CAPACITY )
+                System.out.println( "  Buffer pool " + item + ": buffers=" + figures[0] + ", used=" + (figures[1]/1024) + "k, capacity=" + ((Long)f[1]/1024) + "k" );
+            else if( tag == TAG_THREAD_CPU_RECENT )
+                System.out.println( "  Thread " + item + " CPU: time=" + (figures[0]/1000) + "ms, recent=" + ((Long)f[1]/10.0) + "%" );
+        }
+
+        for( int i = 0; i < STATUS_TAGS.length; i++ )
+            if( nums.containsKey(STATUS_TAGS[i]) )
+                System.out.println( "  " + STATUS_LABELS[i] + ": " + nums.get(STATUS_TAGS[i]) );
+
+        for( int i = 0; i < LATENCY_STAGES.length; i++ )
+        {
+            int tag = TAG_LATENCY + i*3;
+
+            if( nums.containsKey(tag) )
+                System.out.println( "  Latency " + LATENCY_STAGES[i] + ": p50=" + nums.get(tag) + "us, p99=" + nums.get(tag+1) + "us, p999=" + nums.get(tag+2) + "us" );
+        }
+
+        // Each client is followed by its smoothed RTT and variance
+        String client = null;
+        long srtt = 0;
+
+        for( Object[] f : fields )
+        {
+            int tag = (Integer)f[0];
+
+            if( tag == TAG_CLIENT )
+                client = (String)f[1];
+            else if( tag == TAG_CLIENT_SRTT )
+                srtt = (Long)f[1];
+            else if( tag == TAG_CLIENT_RTTVAR && client != null )
+                System.out.println( "  Client " + client + " RTT: srtt=" + (srtt/1000.0) + "ms, rttvar=" + ((Long)f[1]/1000.0) + "ms" );
+        }
+
+        System.out.println();
+    }
+
+    private static void printHistory(ByteBuffer b, int end) throws UnsupportedEncodingException
+    {
+        Map<Integer,Long> nums = new LinkedHashMap<Integer,Long>();
+        List<Object[]> fields = new ArrayList<Object[]>();
+        int[][] seconds = new int[HISTORY_LABELS.length][];
+        int[][] minutes = new int[HISTORY_LABELS.length][];
+
+        readFields(b, end, nums, fields);
+
+        for( Object[] f : fields )
+        {
+            int tag = (Integer)f[0];
+
+            if( tag >= TAG_HISTORY_SECONDS && tag < TAG_HISTORY_SECONDS + seconds.length )
+                seconds[tag - TAG_HISTORY_SECONDS] = (int[])f[1];
+            else if( tag >= TAG_HISTORY_MINUTES && tag < TAG_HISTORY_MINUTES + minutes.length )
+                minutes[tag - TAG_HISTORY_MINUTES] = (int[])f[1];
+        }
+
+        System.out.println();
+        printSparklines("Last 10 minutes", seconds, 1, get(nums, TAG_HISTORY_SECOND));
+        printSparklines("Last 24 hours", minutes, 60, get(nums, TAG_HISTORY_MINUTE) + 60);
+    }
+
+    private static void printSources(ByteBuffer b, int end) throws UnsupportedEncodingException
+    {
+        Map<Integer,Long> nums = new LinkedHashMap<Integer,Long>();
+        List<Object[]> fields = new ArrayList<Object[]>();
+        long total;
+        String source = null;
+        long datagrams = 0;
+        long error = 0;
+
+        readFields(b, end, nums, fields);
+        total = get(nums, TAG_SOURCES_TOTAL);
+
+        System.out.println();
+        System.out.println( "Heaviest datagram sources (" + total + " datagrams counted; a count may be over by up to its error):" );
+        System.out.println();
+        System.out.println( String.format("  %-47s %12s %7s %12s %14s", "SOURCE", "DATAGRAMS", "SHARE", "ERROR", "BYTES") );
+
+        // Each source is followed by its datagrams, error and bytes
+        for( Object[] f : fields )
+        {
+            int tag = (Integer)f[0];
+
+            if( tag == TAG_SOURCE )
+                source = (String)f[1];
+            else if( tag == TAG_SOURCE_DATAGRAMS )
+                datagrams = (Long)f[1];
+            else if( tag == TAG_SOURCE_ERROR )
+                error = (Long)f[1];
+            else if( tag == TAG_SOURCE_BYTES && source != null )
+                System.out.println( String.format("  %-47s %12d %6.1f%% %12d %14d", source, datagrams, (total > 0)?(datagrams*100.0/total):0.0, error, (Long)f[1]) );
+        }
+
+        System.out.println();
+    }
+
+    // Print one sparkline per series, each column covering an equal share of the samples
+    private static void printSparklines(String title, int[][] series, int secs, long endTime)
+    {
+        java.text.SimpleDateFormat timeFormat = new java.text.SimpleDateFormat("HH:mm:ss");
+        int n = (series[0] != null)?series[0].length:0;
+
+        if( n == 0 )
+        {
+            System.out.println( title + ": no samples yet." );
+            System.out.println();
+            return;
+        }
+
+        int per = (n + HISTORY_WIDTH - 1)/HISTORY_WIDTH;
+
+        // Fall back to plain characters on consoles which cannot show the block elements
+        char[] sparks = (java.nio.charset.Charset.defaultCharset().newEncoder().canEncode(SPARKS[0]))?SPARKS:ASCII_SPARKS;
+
+        System.out.println( title + " (" + timeFormat.format(new java.util.Date((endTime - (long)n*secs)*1000)) + " to " + timeFormat.format(new java.util.Date(endTime*1000)) + ", " + (per*secs) + "s per column):" );
+
+        for( int s = 0; s < series.length; s++ )
+        {
+            boolean gauge = (s == series.length - 1);
+            double[] cols = new double[(n + per - 1)/per];
+            double peak = 0;
+            double total = 0;
+
+            if( series[s] == null )
+                continue;
+
+            // Counters are shown as a rate per second, the gauge as its highest value
+            for( int c = 0; c < cols.length; c++ )
+            {
+                int from = c*per;
+                int to = Math.min(from + per, n);
+
+                for( int i = from; i < to; i++ )
+                {
+                    total += series[s][i];
+                    cols[c] = (gauge)?Math.max(cols[c], series[s][i]):(cols[c] + series[s][i]);
+                }
+
+                if( ! gauge )
+                    cols[c] /= (double)(to - from)*secs;
+
+                peak = Math.max(peak, cols[c]);
+            }
+
+            StringBuilder sb = new StringBuilder();
+
+            // Zero is left blank so that a few drops still stand out
+            for( int c = 0; c < cols.length; c++ )
+                sb.append( (cols[c] <= 0)?' ':sparks[(int)Math.min(sparks.length - 1, Math.ceil(cols[c]*sparks.length/peak) - 1)] );
+
+            if( gauge )
+                System.out.println( String.format("  %-11s %-" + HISTORY_WIDTH + "s  max %.0f", HISTORY_LABELS[s], sb, peak) );
+            else
+                System.out.println( String.format("  %-11s %-" + HISTORY_WIDTH + "s  peak %.1f, avg %.1f", HISTORY_LABELS[s], sb, peak, total/((double)n*secs)) );
+        }
+
+        System.out.println();
+    }
+
+    // Subscribe to stats updates and print the rates until interrupted
+    private static void watchStatus( int interval )
+    {
+        final int RENEW_INTERVAL = 10000;
+
+        byte[] inArray = new byte[65536];
+        ByteBuffer inBuffer = ByteBuffer.wrap(inArray);
+        inBuffer.order(ByteOrder.BIG_ENDIAN);
+
+        DatagramPacket in = new DatagramPacket(inArray, inArray.length);
+        long lastRenew = 0;
+        int lines = 0;
+
+        try
+        {
+            final DatagramSocket s = new DatagramSocket();
+            s.connect(InetAddress.getByName("127.0.0.1"), controlListenPort);
+            s.setSoTimeout(interval*2 + 2000);
+
+            // Let the relay stop sending as soon as we are interrupted
+            Runtime.getRuntime().addShutdownHook(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        sendSubscribe(s, 0);
+                    }
+                    catch( IOException ioe )
+                    {
+                        // Ignore; the subscription will lapse
+                    }
+                }
+            });
+
+            for(;;)
+            {
+                if( System.currentTimeMillis() - lastRenew >= RENEW_INTERVAL )
+                {
+                    sendSubscribe(s, interval);
+                    lastRenew = System.currentTimeMillis();
+                }
+
+                try
+                {
+                    s.receive(in);
+                }
+                catch( SocketTimeoutException ste )
+                {
+                    System.out.println( "No stats were received from the CheckValve Console Relay." );
+                    System.exit(1);
+                }
+
+                inBuffer.clear();
+
+                if( in.getLength() < 14 || inBuffer.getInt() != CTL_PACKET_HEADER )
+                    continue;
+
+                inBuffer.get();
+                inBuffer.getLong();
+
+                if( inBuffer.get() != CTL_PTYPE_STATS_UPDATE )
+                    continue;
+
+                Map<Integer,Long> nums = new LinkedHashMap<Integer,Long>();
+                readFields(inBuffer, in.getLength(), nums, new ArrayList<Object[]>());
+
+                double secs = Math.max(get(nums, TAG_ELAPSED), 1)/1000.0;
+
+                if( lines++ % 20 == 0 )
+                    System.out.println( String.format("%-8s %9s %9s %9s %8s %8s %7s %9s", "TIME", "RECV/s", "RELAY/s", "SENT/s", "DROP/s", "CLIENTS", "QUEUE", "P99(us)") );
+
+                System.out.println( String.format("%-8s %9.1f %9.1f %9.1f %8.1f %8d %7d %9d",
+                    new java.text.SimpleDateFormat("HH:mm:ss").format(new java.util.Date()),
+                    get(nums, TAG_PACKETS_RECEIVED)/secs,
+                    get(nums, TAG_PACKETS_RELAYED)/secs,
+                    get(nums, TAG_MESSAGES_QUEUED)/secs,
+                    get(nums, TAG_MESSAGES_DROPPED)/secs,
+                    get(nums, TAG_CLIENTS_CONNECTED),
+                    get(nums, TAG_SEND_QUEUE_DEPTH),
+                    get(nums, TAG_LATENCY + 7)) );
+            }
+        }
+        catch( PortUnreachableException e )
+        {
+            System.out.println( "Could not connect to the CheckValve Console Relay." );
+            System.exit(1);
+        }
+        catch( Exception e )
+        {
+            System.out.println( "Failed to subscribe to stats from the CheckValve Console Relay." );
+            System.out.println( "Caught an exception: " + e.toString() );
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static long get(Map<Integer,Long> nums, int tag)
+    {
+        Long v = nums.get(tag);
+
+        return (v != null)?v:0;
+    }
+
+    private static void sendSubscribe(DatagramSocket s, int interval) throws IOException
+    {
+        ByteBuffer outBuffer = ByteBuffer.allocate(18);
+        outBuffer.order(ByteOrder.BIG_ENDIAN);
+
+        outBuffer.putInt(CTL_PACKET_HEADER);
+        outBuffer.put(CTL_PROTOCOL_VERSION_2);
+        outBuffer.putLong(System.currentTimeMillis());
+        outBuffer.put(CTL_PTYPE_SUBSCRIBE);
+        outBuffer.putInt(interval);
+
+        s.send(new DatagramPacket(outBuffer.array(), outBuffer.position()));
+    }
+
+    private static String getString(ByteBuffer b) throws UnsupportedEncodingException
+    {
+        byte[] a = new byte[b.get() & 0xFF];
+        b.get(a);
+
+        return new String(a, "US-ASCII");
+    }
+
+    // Read the counters straight from the relay's shared counters file
+    private static void printCounters()
+    {
+        if( sharedCountersFile.length() == 0 )
+        {
+            System.err.println( "[ERROR] sharedCountersFile is not set in " + configFile + "." );
+            System.exit(1);
+        }
+
+        MappedByteBuffer map;
+
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(sharedCountersFile, "r");
+
+            try
+            {
+                map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( "[ERROR] Unable to open " + sharedCountersFile + ": " + ioe.toString() );
+            System.exit(1);
+            return;
+        }
+
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        if( map.capacity() < 64 || (int)INTS.getAcquire(map, 0) != COUNTERS_MAGIC )
+        {
+            System.err.println( "[ERROR] " + sharedCountersFile + " is not a shared counters file." );
+            System.exit(1);
+        }
+
+        if( map.getInt(4) != COUNTERS_LAYOUT_VERSION )
+        {
+            System.err.println( "[ERROR] " + sharedCountersFile + " has an unsupported layout (version " + map.getInt(4) + ")." );
+            System.exit(1);
+        }
+
+        int headerSize = map.getInt(8);
+        int entries = map.getInt(12);
+        int entrySize = map.getInt(16);
+
+        if( headerSize + (long)entries*entrySize > map.capacity() )
+        {
+            System.err.println( "[ERROR] " + sharedCountersFile + " is truncated." );
+            System.exit(1);
+        }
+
+        long[] values = new long[entries];
+        long updated = 0;
+        boolean consistent = false;
+
+        // Retry while the relay is part way through an update
+        for( int r = 0; r < COUNTERS_RETRIES && ! consistent; r++ )
+        {
+            long seq = (long)LONGS.getAcquire(map, 48);
+
+            if( (seq & 1) != 0 )
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            for( int i = 0; i < entries; i++ )
+                values[i] = (long)LONGS.getOpaque(map, headerSize + i*entrySize);
+
+            updated = (long)LONGS.getOpaque(map, 40);
+
+            VarHandle.loadLoadFence();
+            consistent = ((long)LONGS.getAcquire(map, 48) == seq);
+        }
+
+        if( ! consistent )
+        {
+            System.err.println( "[ERROR] Unable to get a consistent read of " + sharedCountersFile + "." );
+            System.exit(1);
+        }
+
+        long pid = map.getLong(24);
+        String state = " (stopped)";
+
+        // A relay which was killed never marks the file as stopped
+        if( (int)INTS.getAcquire(map, 20) == 1 )
+            state = ProcessHandle.of(pid).isPresent() ? " (running)" : " (not running, did not shut down cleanly)";
+
+        System.out.println();
+        System.out.println( "Process ID:    " + pid + state );
+        System.out.println( "Uptime:        " + age(updated - map.getLong(32)) );
+        System.out.println( "Last updated:  " + age(System.currentTimeMillis() - updated) + " ago (interval " + map.getLong(56) + " ms)" );
+        System.out.println();
+
+        for( int i = 0; i < entries; i++ )
+        {
+            int e = headerSize + i*entrySize;
+            byte[] name = new byte[Math.min(map.get(e + 11) & 0xFF, entrySize - 12)];
+
+            for( int x = 0; x < name.length; x++ )
+                name[x] = map.get(e + 12 + x);
+
+            String kind = (map.get(e + 10) == 1) ? "counter" : "gauge";
+
+            try
+            {
+                System.out.println( String.format("  %-32s %-8s %d", new String(name, "UTF-8"), kind, values[i]) );
+            }
+            catch( UnsupportedEncodingException uee )
+            {
+                // UTF-8 is always supported
+            }
+        }
+
+        System.out.println();
+    }
+
+    // Elapsed time as h:mm:ss
+    private static String age(long millis)
+    {
+        long s = Math.max(millis, 0)/1000;
+
+        return String.format("%d:%02d:%02d", s/3600, (s/60) % 60, s % 60);
+    }
+
+    private static void sendCtl( byte ctl, byte version )
+    {
+        sendCtl(ctl, version, new byte[0]);
+    }
+
+    private static void sendCtl( byte ctl, byte version, byte[] payload )
     {
         int reqHeader;
         byte reqType;
@@ -375,7 +1073,7 @@ public class ConsoleRelayCtl
         ByteBuffer outBuffer = ByteBuffer.wrap(outArray);
         outBuffer.order(ByteOrder.BIG_ENDIAN);
         
-        byte[] inArray = new byte[128];
+        byte[] inArray = new byte[65536];
         ByteBuffer inBuffer = ByteBuffer.wrap(inArray);
         inBuffer.order(ByteOrder.BIG_ENDIAN);
 
@@ -385,9 +1083,10 @@ public class ConsoleRelayCtl
 
         // Assemble the packet data
         outBuffer.putInt(CTL_PACKET_HEADER);           //  4
-        outBuffer.put(CTL_PROTOCOL_VERSION);           // +1 =  5
+        outBuffer.put(version);                        // +1 =  5
         outBuffer.putLong(System.currentTimeMillis()); // +8 = 13
         outBuffer.put(ctl);                            // +1 = 14
+        outBuffer.put(payload);
         outBuffer.flip();
 
         try
@@ -427,7 +1126,11 @@ public class ConsoleRelayCtl
 
             reqType = inBuffer.get();
 
-            if( reqType == CTL_PTYPE_STATUS_RESPONSE )
+            if( reqType == CTL_PTYPE_STATUS_RESPONSE && reqProtocol == CTL_PROTOCOL_VERSION_2 )
+            {
+                printStatus(inBuffer, in.getLength());
+            }
+            else if( reqType == CTL_PTYPE_STATUS_RESPONSE )
             {
                 int uptime = inBuffer.getInt();
                 int upDays = inBuffer.getInt();
@@ -442,6 +1145,15 @@ public class ConsoleRelayCtl
                 int acceptedConnections = inBuffer.getInt();
                 int rejectedConnections = inBuffer.getInt();
                 int numBanned = inBuffer.getInt();
+                int ipCapRejections = -1;
+                int serverCapRejections = -1;
+
+                // Older relays do not send the connection cap counters
+                if( in.getLength() >= inBuffer.position() + 8 )
+                {
+                    ipCapRejections = inBuffer.getInt();
+                    serverCapRejections = inBuffer.getInt();
+                }
 
                 String uptimeMessage = "";
                 String memoryMessage = "";
@@ -476,6 +1188,52 @@ public class ConsoleRelayCtl
                 System.out.println( "  Accepted connections: " + acceptedConnections );
                 System.out.println( "  Rejected connections: " + rejectedConnections );
                 System.out.println( "  Clients currently banned: " + numBanned );
+
+                if( ipCapRejections >= 0 )
+                {
+                    System.out.println( "  Rejected by per-IP cap: " + ipCapRejections );
+                    System.out.println( "  Rejected by per-server cap: " + serverCapRejections );
+                }
+
+                // Round trip times of the clients which acknowledge heartbeats
+                if( in.getLength() >= inBuffer.position() + 6 )
+                {
+                    int deadPeerRemovals = inBuffer.getInt();
+                    int rttCount = inBuffer.getShort();
+
+                    System.out.println( "  Removed for unacknowledged heartbeats: " + deadPeerRemovals );
+
+                    for( int i = 0; i < rttCount; i++ )
+                    {
+                        byte[] cs = new byte[inBuffer.get() & 0xFF];
+                        inBuffer.get(cs);
+
+                        int srtt = inBuffer.getInt();
+                        int rttvar = inBuffer.getInt();
+
+                        System.out.println( "  Client " + new String(cs, "US-ASCII") + " RTT: srtt=" + (srtt/1000.0) + "ms, rttvar=" + (rttvar/1000.0) + "ms" );
+                    }
+                }
+
+                // Latency percentiles for each stage
+                if( in.getLength() >= inBuffer.position() + 1 )
+                {
+                    int histograms = inBuffer.get();
+
+                    for( int i = 0; i < histograms; i++ )
+                    {
+                        byte[] name = new byte[inBuffer.get() & 0xFF];
+                        inBuffer.get(name);
+
+                        long count = inBuffer.getLong();
+                        int p50 = inBuffer.getInt();
+                        int p99 = inBuffer.getInt();
+                        int p999 = inBuffer.getInt();
+
+                        System.out.println( "  Latency " + new String(name, "US-ASCII") + ": p50=" + p50 + "us, p99=" + p99 + "us, p999=" + p999 + "us (" + count + " samples)" );
+                    }
+                }
+
                 System.out.println();
             }
             else if( reqType == CTL_PTYPE_SHUTDOWN_RESPONSE )
@@ -487,6 +1245,72 @@ public class ConsoleRelayCtl
                 else
                     System.out.println( "Rejecting control response : Invalid value." );
             }
+            else if( reqType == CTL_PTYPE_DUMP_RESPONSE )
+            {
+                byte response = inBuffer.get();
+                byte[] path = new byte[inBuffer.getShort() & 0xFFFF];
+                inBuffer.get(path);
+
+                if( response == (byte)0x00 )
+                    System.out.println( "Flight recorder events were saved to " + new String(path, "UTF-8") + "." );
+                else
+                    System.out.println( "The flight recorder is disabled or the events could not be saved." );
+            }
+            else if( reqType == CTL_PTYPE_HISTORY_RESPONSE )
+            {
+                printHistory(inBuffer, in.getLength());
+            }
+            else if( reqType == CTL_PTYPE_SOURCES_RESPONSE )
+            {
+                printSources(inBuffer, in.getLength());
+            }
+            else if( reqType == CTL_PTYPE_TRAFFIC_RESPONSE )
+            {
+                int clients = inBuffer.getShort() & 0xFFFF;
+
+                System.out.println();
+                System.out.println( "Clients (most dropped messages first):" );
+                System.out.println();
+                System.out.println( String.format("  %-24s %-24s %10s %12s %6s %8s  %s", "CLIENT", "GAME SERVER", "MESSAGES", "BYTES", "QUEUE", "DROPS", "CONNECTED") );
+
+                for( int i = 0; i < clients; i++ )
+                {
+                    String client = getString(inBuffer);
+                    String server = getString(inBuffer);
+                    long messages = inBuffer.getLong();
+                    long bytes = inBuffer.getLong();
+                    int queue = inBuffer.getInt();
+                    long drops = inBuffer.getLong();
+                    long connected = inBuffer.getLong();
+
+                    System.out.println( String.format("  %-24s %-24s %10d %12d %6d %8d  %s", client, server, messages, bytes, queue, drops, age(connectTimeMillis - connected)) );
+                }
+
+                int servers = inBuffer.getShort() & 0xFFFF;
+                long untracked = inBuffer.getLong();
+
+                System.out.println();
+                System.out.println( "Game servers (most bytes first):" );
+                System.out.println();
+                System.out.println( String.format("  %-24s %10s %12s %10s %6s  %s", "GAME SERVER", "DATAGRAMS", "BYTES", "RELAYED", "CLNTS", "LAST SEEN") );
+
+                for( int i = 0; i < servers; i++ )
+                {
+                    String server = getString(inBuffer);
+                    long datagrams = inBuffer.getLong();
+                    long bytes = inBuffer.getLong();
+                    long relayed = inBuffer.getLong();
+                    int subscribers = inBuffer.getShort();
+                    long lastSeen = inBuffer.getLong();
+
+                    System.out.println( String.format("  %-24s %10d %12d %10d %6d  %s ago", server, datagrams, bytes, relayed, subscribers, age(connectTimeMillis - lastSeen)) );
+                }
+
+                if( untracked > 0 )
+                    System.out.println( "  (" + untracked + " datagrams from servers which did not fit in the table)" );
+
+                System.out.println();
+            }
             else
             {
                 return;
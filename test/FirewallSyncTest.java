@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010-2015 by David A. Parker <parker.david.a@gmail.com>
+ * 
+ * This file is part of CheckValve, an HLDS/SRCDS query app for Android.
+ * 
+ * CheckValve is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ * 
+ * CheckValve is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the CheckValve source code.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * PROGRAM:
+ * FirewallSyncTest.java
+ *
+ * DESCRIPTION:
+ * Offline check of the firewall export.  Renders the nftables and ipset
+ * rulesets for a fixed set of bans (IPv4, IPv6, permanent and one which
+ * has already expired) and the hook arguments for bans being added and
+ * expiring, and compares them with the expected text.  Exits with status
+ * 1 on any difference.
+ *
+ * Build and run from the top of the source tree:
+ *
+ *     javac -d /tmp/cvcr src/*.java test/FirewallSyncTest.java
+ *     java -cp /tmp/cvcr com.dparker.apps.checkvalve.FirewallSyncTest
+ */
+
+package com.dparker.apps.checkvalve;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+public class FirewallSyncTest
+{
+    private static final long NOW = 1700000000000L;
+    private static final long IPV4_MAPPED = 0x0000FFFF00000000L;
+
+    // (high, low, expires) triples, in no particular order
+    private static final long[] BANS = {
+        0x20010DB800000000L, 0x0000000000000001L, NOW + 90500,          // 2001:db8::1 for 91 s (rounded up)
+        0, IPV4_MAPPED | 0xCB007105L, NOW + 3600000,                    // 203.0.113.5 for an hour
+        0, IPV4_MAPPED | 0xC0000209L, NOW - 1000,                       // 192.0.2.9, already expired
+        0x20010DB800000000L, 0x00000000DEADBEEFL, Long.MAX_VALUE,       // 2001:db8::dead:beef permanently
+        0, IPV4_MAPPED | 0xC6336407L, Long.MAX_VALUE                     // 198.51.100.7 permanently
+    };
+
+    private static final String NFTABLES =
+        "# CheckValve Console Relay " + CheckValveConsoleRelay.PROGRAM_VERSION + " banned clients (4 addresses)\n" +
+        "add table inet checkvalve\n" +
+        "delete table inet checkvalve\n" +
+        "table inet checkvalve {\n" +
+        "\tset banned_v4 {\n" +
+        "\t\ttype ipv4_addr\n" +
+        "\t\tflags timeout\n" +
+        "\t\telements = {\n" +
+        "\t\t\t198.51.100.7,\n" +
+        "\t\t\t203.0.113.5 timeout 3600s\n" +
+        "\t\t}\n" +
+        "\t}\n" +
+        "\tset banned_v6 {\n" +
+        "\t\ttype ipv6_addr\n" +
+        "\t\tflags timeout\n" +
+        "\t\telements = {\n" +
+        "\t\t\t2001:db8:0:0:0:0:0:1 timeout 91s,\n" +
+        "\t\t\t2001:db8:0:0:0:0:dead:beef\n" +
+        "\t\t}\n" +
+        "\t}\n" +
+        "\tchain input {\n" +
+        "\t\ttype filter hook input priority -10; policy accept;\n" +
+        "\t\ttcp dport { 23456, 23457 } ip saddr @banned_v4 drop\n" +
+        "\t\ttcp dport { 23456, 23457 } ip6 saddr @banned_v6 drop\n" +
+        "\t}\n" +
+        "}\n";
+
+    private static final String IPSET =
+        "# CheckValve Console Relay " + CheckValveConsoleRelay.PROGRAM_VERSION + " banned clients (4 addresses)\n" +
+        "create checkvalve_v4 hash:ip family inet timeout 0 -exist\n" +
+        "create checkvalve_v6 hash:ip family inet6 timeout 0 -exist\n" +
+        "flush checkvalve_v4\n" +
+        "flush checkvalve_v6\n" +
+        "add checkvalve_v4 198.51.100.7 timeout 0\n" +
+        "add checkvalve_v4 203.0.113.5 timeout 3600\n" +
+        "add checkvalve_v6 2001:db8:0:0:0:0:0:1 timeout 91\n" +
+        "add checkvalve_v6 2001:db8:0:0:0:0:dead:beef timeout 0\n";
+
+    private static int failures = 0;
+
+    public static void main(String args[]) throws Exception
+    {
+        CheckValveConsoleRelay.firewallTable = "checkvalve";
+        CheckValveConsoleRelay.clientListenPort = 23456;
+        CheckValveConsoleRelay.tlsListenPort = 23457;
+        CheckValveConsoleRelay.tlsEnabled = 1;
+
+        CheckValveConsoleRelay.firewallFormat = "nftables";
+        check("nftables ruleset", render(BANS), NFTABLES);
+
+        CheckValveConsoleRelay.firewallFormat = "ipset";
+        check("ipset ruleset", render(BANS), IPSET);
+
+        // The same bans in another order give the same file
+        long[] reversed = new long[BANS.length];
+
+        for( int i = 0; i < BANS.length; i += 3 )
+            System.arraycopy(BANS, i, reversed, BANS.length - 3 - i, 3);
+
+        check("ipset ruleset (bans reordered)", render(reversed), IPSET);
+
+        // Once every ban has expired only the empty sets are left
+        CheckValveConsoleRelay.firewallFormat = "ipset";
+        check("ipset ruleset (all expired)", render(new long[] { 0, IPV4_MAPPED | 0xCB007105L, NOW }),
+            "# CheckValve Console Relay " + CheckValveConsoleRelay.PROGRAM_VERSION + " banned clients (0 addresses)\n" +
+            "create checkvalve_v4 hash:ip family inet timeout 0 -exist\n" +
+            "create checkvalve_v6 hash:ip family inet6 timeout 0 -exist\n" +
+            "flush checkvalve_v4\n" +
+            "flush checkvalve_v6\n");
+
+        // Incremental changes passed to the hook: bans added, then expired
+        check("hook add (IPv4)", hook(0, IPV4_MAPPED | 0xCB007105L, NOW + 3600000), "add 203.0.113.5 3600");
+        check("hook add (IPv6, part second)", hook(0x20010DB800000000L, 1, NOW + 90500), "add 2001:db8:0:0:0:0:0:1 91");
+        check("hook add (permanent)", hook(0, IPV4_MAPPED | 0xC6336407L, Long.MAX_VALUE), "add 198.51.100.7 0");
+        check("hook add (under a second left)", hook(0, IPV4_MAPPED | 0xCB007105L, NOW + 1), "add 203.0.113.5 1");
+        check("hook expire (IPv4)", hook(0, IPV4_MAPPED | 0xCB007105L, 0), "del 203.0.113.5");
+        check("hook expire (IPv6)", hook(0x20010DB800000000L, 1, 0), "del 2001:db8:0:0:0:0:0:1");
+
+        System.out.println( (failures == 0)?"OK":(failures + " FAILED") );
+        System.exit((failures == 0)?0:1);
+    }
+
+    private static String render(long[] bans) throws Exception
+    {
+        StringWriter w = new StringWriter();
+
+        CheckValveConsoleRelay.FirewallSync.writeRuleset(w, bans, NOW);
+
+        return w.toString();
+    }
+
+    private static String hook(long hi, long lo, long expires)
+    {
+        String[] a = CheckValveConsoleRelay.FirewallSync.hookArgs(new long[] { hi, lo, expires }, NOW);
+        StringBuilder sb = new StringBuilder(a[0]);
+
+        for( int i = 1; i < a.length; i++ )
+            sb.append(' ').append(a[i]);
+
+        return sb.toString();
+    }
+
+    private static void check(String what, String actual, String expected)
+    {
+        if( actual.equals(expected) )
+        {
+            System.out.println( "ok    " + what );
+            return;
+        }
+
+        failures++;
+        System.out.println( "FAIL  " + what );
+        System.out.println( "--- expected" );
+        System.out.print( expected );
+        System.out.println( "--- actual" );
+        System.out.print( actual );
+        System.out.println( "---" );
+    }
+}